@@ -1,8 +1,8 @@
 package com.mocktutorial.advanced;
 
-import java.lang.reflect.Constructor;
+import java.lang.invoke.MethodType;
 import java.util.Arrays;
-import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
 import java.util.function.Supplier;
@@ -11,18 +11,31 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.mocktutorial.advanced.agent.ConstructorAgent;
+import com.mocktutorial.advanced.agent.InstrumentationPath;
+import com.mocktutorial.advanced.internal.DispatchTable;
 import com.mocktutorial.advanced.internal.Jdk21Optimizer;
+import com.mocktutorial.advanced.internal.StateCopier;
 
 /**
  * Provides support for mocking constructors.
  * This allows you to intercept constructor calls and either provide
  * a custom implementation or return a pre-created instance.
+ * <p>
+ * Every instrumented constructor is interned into an integer id that is baked
+ * into its bytecode, and handlers live in a {@link DispatchTable} indexed by
+ * that id. A constructor without a mock therefore costs one volatile read and
+ * no allocation.
  */
 public class ConstructorMocker {
     private static final Logger logger = LoggerFactory.getLogger(ConstructorMocker.class);
     
-    // Store constructor mocks by class and constructor parameter types
-    private static final Map<Class<?>, Map<String, Object>> constructorMocks = new ConcurrentHashMap<>();
+    private static final String CONSTRUCTOR_NAME = "<init>";
+    
+    // Constructor handlers indexed by the id baked into the instrumented constructor
+    private static final DispatchTable constructorHandlers = new DispatchTable();
+    
+    // Names of the classes that have been prepared for constructor mocking
+    private static final Set<String> preparedClasses = ConcurrentHashMap.newKeySet();
     
     /**
      * Special value indicating that the original constructor should be called.
@@ -39,17 +52,13 @@ public class ConstructorMocker {
     public static <T> void prepareForConstructorMocking(Class<T> classToMock) {
         try {
             // Set up tracking structures
-            constructorMocks.putIfAbsent(classToMock, new ConcurrentHashMap<>());
+            preparedClasses.add(classToMock.getName());
             
-            // Try JDK21 optimized path first if available
-            if (Jdk21Optimizer.isJdk21OrHigher() && 
-                Jdk21Optimizer.applyJdk21Optimizations(classToMock)) {
-                logger.info("Applied JDK21 optimized constructor mocking to class {}", 
-                           classToMock.getName());
-                return;
+            // Compile the fast state copy used by mocked constructions ahead of time
+            if (Jdk21Optimizer.applyJdk21Optimizations(classToMock)) {
+                logger.debug("Applied JDK21 optimizations to class {}", classToMock.getName());
             }
             
-            // Fall back to standard implementation
             boolean modified = ConstructorAgent.modifyClass(classToMock);
             
             if (modified) {
@@ -63,6 +72,60 @@ public class ConstructorMocker {
         }
     }
     
+    /**
+     * Prepares a class for constructor mocking by name, without loading it.
+     * If the mock agent is present and the class is not loaded yet, its
+     * constructors are instrumented when it is loaded; otherwise the class is
+     * redefined or, without an agent, defined directly.
+     * 
+     * @param className the fully qualified name of the class to prepare
+     * @param loader the class loader that will load the class
+     * @return the path used to install the instrumented class
+     */
+    public static InstrumentationPath prepareForConstructorMocking(String className, ClassLoader loader) {
+        preparedClasses.add(className);
+        InstrumentationPath path = ConstructorAgent.modifyClass(className, loader);
+        if (path == InstrumentationPath.FAILED) {
+            logger.warn("Failed to prepare class for constructor mocking: {}", className);
+        } else {
+            logger.info("Prepared class {} for constructor mocking via {}", className, path);
+        }
+        return path;
+    }
+    
+    /**
+     * Prepares constructor mocking at the call sites of a caller class.
+     * Every {@code new} expression for one of the constructed classes inside the
+     * caller is rewritten so that a mocked constructor returns the configured
+     * instance itself, without running the original constructor.
+     * The constructed classes are not modified.
+     *
+     * @param callerClass the class that instantiates the mocked classes, e.g. a controller
+     * @param constructedClasses the classes whose instantiation should be intercepted
+     * @return true if the call sites were rewritten, false if the mock agent is
+     *         not available or the caller does not instantiate every given class
+     */
+    public static boolean prepareCallSites(Class<?> callerClass, Class<?>... constructedClasses) {
+        try {
+            boolean modified = ConstructorAgent.modifyCallSites(callerClass, constructedClasses);
+
+            if (modified) {
+                // Call-site interception replaces constructor body instrumentation for these classes
+                for (Class<?> constructedClass : constructedClasses) {
+                    preparedClasses.add(constructedClass.getName());
+                }
+                logger.info("Prepared call sites in class {} for constructor mocking of {}",
+                           callerClass.getName(), Arrays.toString(constructedClasses));
+            } else {
+                logger.warn("Failed to prepare call sites in class {} for constructor mocking", callerClass.getName());
+            }
+            return modified;
+        } catch (Exception e) {
+            logger.error("Failed to prepare call sites for constructor mocking: " + callerClass.getName(), e);
+            throw new RuntimeException("Failed to prepare call sites for constructor mocking", e);
+        }
+    }
+
     /**
      * Configures a constructor to return a pre-created instance.
      * 
@@ -73,9 +136,7 @@ public class ConstructorMocker {
      */
     public static <T> void whenConstructor(Class<T> clazz, T instance, Class<?>... parameterTypes) {
         ensurePrepared(clazz);
-        String key = constructorKey(parameterTypes);
-        Map<String, Object> constructorMap = constructorMocks.get(clazz);
-        constructorMap.put(key, instance);
+        constructorHandlers.set(constructorId(clazz.getName(), constructorDescriptor(parameterTypes)), instance);
         logger.debug("Configured constructor for class {} with parameters {} to return instance {}", 
                     clazz.getName(), Arrays.toString(parameterTypes), instance);
     }
@@ -91,9 +152,7 @@ public class ConstructorMocker {
     public static <T> void whenConstructorImplement(Class<T> clazz, Function<Object[], T> implementation, 
                                                    Class<?>... parameterTypes) {
         ensurePrepared(clazz);
-        String key = constructorKey(parameterTypes);
-        Map<String, Object> constructorMap = constructorMocks.get(clazz);
-        constructorMap.put(key, implementation);
+        constructorHandlers.set(constructorId(clazz.getName(), constructorDescriptor(parameterTypes)), implementation);
         logger.debug("Configured constructor for class {} with parameters {} to use custom implementation", 
                     clazz.getName(), Arrays.toString(parameterTypes));
     }
@@ -109,9 +168,87 @@ public class ConstructorMocker {
         whenConstructorImplement(clazz, args -> implementation.get());
     }
     
+    /**
+     * Returns the id of a constructor, interning it on first use.
+     * Called by the instrumentation agent to obtain the constant that is
+     * baked into the modified constructor.
+     * 
+     * @param className the fully qualified name of the declaring class
+     * @param descriptor the JVM descriptor of the constructor, e.g. {@code (Ljava/lang/String;)V}
+     * @return the constructor id
+     */
+    public static int constructorId(String className, String descriptor) {
+        return constructorHandlers.intern(className, CONSTRUCTOR_NAME, descriptor);
+    }
+    
+    /**
+     * Returns the handler configured for a constructor id.
+     * This method is called from the bytecode-modified constructors and is the
+     * only call made when the constructor is not mocked.
+     * 
+     * @param constructorId the id baked into the instrumented constructor
+     * @return the configured instance or implementation, or null if the constructor is not mocked
+     */
+    public static Object handlerFor(int constructorId) {
+        return constructorHandlers.get(constructorId);
+    }
+    
+    /**
+     * Applies a handler returned by {@link #handlerFor(int)}.
+     * This method is called from the bytecode-modified constructors only when
+     * a handler is present.
+     * 
+     * @param handler the configured instance or implementation
+     * @param args the arguments passed to the constructor
+     * @return the instance to use in place of the constructed object
+     */
+    @SuppressWarnings("unchecked")
+    public static Object applyHandler(Object handler, Object[] args) {
+        if (handler instanceof Function) {
+            return ((Function<Object[], Object>) handler).apply(args);
+        }
+        return handler;
+    }
+    
+    /**
+     * Copies the instance fields of a mock result into the object under construction.
+     * This method is called from the bytecode-modified constructors when a handler is present.
+     * 
+     * @param source the instance returned by the handler
+     * @param target the object under construction
+     */
+    public static void copyState(Object source, Object target) {
+        if (source == null || source == target) {
+            return;
+        }
+        Class<?> type = source.getClass();
+        if (type.isInstance(target)) {
+            StateCopier copier = Jdk21Optimizer.stateCopier(type);
+            if (copier != null) {
+                copier.copy(source, target);
+                return;
+            }
+        }
+        while (type != null && type != Object.class) {
+            if (type.isInstance(target)) {
+                for (java.lang.reflect.Field field : type.getDeclaredFields()) {
+                    if (java.lang.reflect.Modifier.isStatic(field.getModifiers())) {
+                        continue;
+                    }
+                    try {
+                        field.setAccessible(true);
+                        field.set(target, field.get(source));
+                    } catch (Exception e) {
+                        logger.debug("Could not copy field {} of class {}", field.getName(), type.getName());
+                    }
+                }
+            }
+            type = type.getSuperclass();
+        }
+    }
+    
     /**
      * Handles a constructor call.
-     * This method is called from the bytecode-modified constructors.
      * 
      * @param <T> the type of the class
      * @param clazz the class being constructed
@@ -123,48 +260,57 @@ public class ConstructorMocker {
     @SuppressWarnings("unchecked")
     public static <T> T handleConstructorCall(Class<T> clazz, Object[] args, Class<?>[] parameterTypes) 
             throws Throwable {
-        
-        Map<String, Object> constructorMap = constructorMocks.get(clazz);
-        if (constructorMap != null) {
-            String key = constructorKey(parameterTypes);
-            
-            if (constructorMap.containsKey(key)) {
-                Object result = constructorMap.get(key);
-                
-                if (result instanceof Function) {
-                    return ((Function<Object[], T>) result).apply(args);
-                } else {
-                    return (T) result;
-                }
-            }
+        int id = constructorHandlers.lookup(clazz.getName(), CONSTRUCTOR_NAME, constructorDescriptor(parameterTypes));
+        Object handler = id < 0 ? null : constructorHandlers.get(id);
+        if (handler == null) {
+            // If no mock configuration is found, indicate that the original constructor should be called
+            return (T) PROCEED;
         }
-        
-        // If no mock configuration is found, indicate that the original constructor should be called
-        logger.debug("No mock configuration found for constructor of class {} with parameters {}, proceeding with original", 
-                    clazz.getName(), Arrays.toString(parameterTypes));
-        return (T) PROCEED;
+        return (T) applyHandler(handler, args);
     }
     
     /**
-     * Creates a key for identifying a constructor based on its parameter types.
+     * Stores a handler for a constructor interned under the given owner key.
      * 
+     * @param owner the owner key the constructor ids were interned under
+     * @param handler the instance or implementation to use
      * @param parameterTypes the parameter types of the constructor
-     * @return a string key
      */
-    private static String constructorKey(Class<?>... parameterTypes) {
+    static void registerOwnerHandler(String owner, Object handler, Class<?>... parameterTypes) {
+        constructorHandlers.set(constructorId(owner, constructorDescriptor(parameterTypes)), handler);
+    }
+    
+    /**
+     * Clears the handlers of every constructor interned under the given owner key.
+     * 
+     * @param owner the owner key
+     */
+    static void resetOwner(String owner) {
+        constructorHandlers.clearOwner(owner);
+    }
+    
+    /**
+     * Frees the constructor ids interned under the given owner key, once the
+     * classes instrumented with them have been discarded.
+     * 
+     * @param owner the owner key
+     * @return the number of ids released
+     */
+    static int releaseOwner(String owner) {
+        return constructorHandlers.releaseOwner(owner);
+    }
+    
+    /**
+     * Creates the JVM descriptor of a constructor from its parameter types.
+     * 
+     * @param parameterTypes the parameter types of the constructor
+     * @return the constructor descriptor
+     */
+    private static String constructorDescriptor(Class<?>... parameterTypes) {
         if (parameterTypes == null || parameterTypes.length == 0) {
-            return "()";
-        }
-        
-        StringBuilder key = new StringBuilder("(");
-        for (int i = 0; i < parameterTypes.length; i++) {
-            if (i > 0) {
-                key.append(",");
-            }
-            key.append(parameterTypes[i].getName());
+            return "()V";
         }
-        key.append(")");
-        return key.toString();
+        return MethodType.methodType(void.class, parameterTypes).toMethodDescriptorString();
     }
     
     /**
@@ -173,7 +319,7 @@ public class ConstructorMocker {
      * @param clazz the class to prepare
      */
     private static void ensurePrepared(Class<?> clazz) {
-        if (!constructorMocks.containsKey(clazz)) {
+        if (!preparedClasses.contains(clazz.getName())) {
             prepareForConstructorMocking(clazz);
         }
     }
@@ -204,7 +350,8 @@ public class ConstructorMocker {
      * Resets all constructor mocks.
      */
     public static void resetAll() {
-        constructorMocks.clear();
+        preparedClasses.clear();
+        constructorHandlers.clearAll();
         logger.info("Reset all constructor mocks");
     }
     
@@ -214,7 +361,8 @@ public class ConstructorMocker {
      * @param clazz the class to reset
      */
     public static void reset(Class<?> clazz) {
-        constructorMocks.remove(clazz);
+        preparedClasses.remove(clazz.getName());
+        constructorHandlers.clearOwner(clazz.getName());
         logger.info("Reset constructor mocks for class: {}", clazz.getName());
     }
 } 
\ No newline at end of file
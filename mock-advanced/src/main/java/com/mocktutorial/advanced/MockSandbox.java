@@ -0,0 +1,368 @@
+package com.mocktutorial.advanced;
+
+import com.mocktutorial.advanced.agent.ConstructorAgent;
+import com.mocktutorial.advanced.agent.StaticMethodAgent;
+import com.mocktutorial.advanced.internal.SandboxClassLoader;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Class loader isolated sandbox for static and constructor mocking.
+ * <p>
+ * Instead of redefining shared classes, a sandbox defines instrumented copies
+ * of the prepared classes in its own child-first class loader. Code under test
+ * that should see the mocks is loaded through the sandbox as well. The ids of
+ * the sandboxed members are qualified with the sandbox name, so stubs of one
+ * sandbox never affect the original classes or any other sandbox, and no
+ * {@code Instrumentation} is needed.
+ * <p>
+ * Sandboxes are pooled by their class sets: {@link Builder#acquire()} reuses a
+ * released sandbox with the same configuration, including its already defined
+ * classes, and {@link #close()} resets the stubs and returns it to the pool.
+ * Test classes running in parallel each hold their own sandbox. At most
+ * {@link #MAX_POOLED_PER_CONFIGURATION} sandboxes are kept per configuration;
+ * a sandbox released beyond that, or removed by {@link #clearPool()}, is
+ * discarded and the member ids it interned are freed.
+ * <pre>
+ * try (MockSandbox sandbox = MockSandbox.builder()
+ *         .staticMocks(IdGenerator.class)
+ *         .include(OrderService.class)
+ *         .acquire()) {
+ *     sandbox.when(IdGenerator.class, "next", 42L);
+ *     Class&lt;?&gt; service = sandbox.loadClass(OrderService.class);
+ * }
+ * </pre>
+ */
+public final class MockSandbox implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(MockSandbox.class);
+    private static final AtomicInteger sandboxCounter = new AtomicInteger();
+
+    /** The number of released sandboxes kept for reuse per configuration. */
+    public static final int MAX_POOLED_PER_CONFIGURATION = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    // Released sandboxes by configuration, ready for reuse
+    private static final Map<List<Object>, BlockingQueue<MockSandbox>> pool = new ConcurrentHashMap<>();
+
+    private final String name;
+    private final List<Object> key;
+    private final SandboxClassLoader classLoader;
+    // Set while the sandbox sits in the pool, so that a repeated close() does not offer it twice
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    private MockSandbox(List<Object> key, ClassLoader parent, Set<String> staticClasses,
+                        Set<String> constructorClasses, Set<String> includedClasses) {
+        this.name = "sandbox-" + sandboxCounter.incrementAndGet();
+        this.key = key;
+        Set<String> sandboxed = new HashSet<>(staticClasses);
+        sandboxed.addAll(constructorClasses);
+        sandboxed.addAll(includedClasses);
+        this.classLoader = new SandboxClassLoader(parent, sandboxed, (className, classfile) -> {
+            try {
+                byte[] result = classfile;
+                if (staticClasses.contains(className)) {
+                    result = StaticMethodAgent.instrumentStaticMethods(result, owner(className));
+                }
+                if (constructorClasses.contains(className)) {
+                    result = ConstructorAgent.instrumentConstructors(result, owner(className));
+                }
+                return result;
+            } catch (Exception e) {
+                throw new IllegalStateException("Failed to instrument " + className + " for " + name, e);
+            }
+        });
+    }
+
+    /**
+     * Creates a builder describing the classes of a sandbox.
+     *
+     * @return a new sandbox builder
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Returns the sandboxed copy of a class.
+     *
+     * @param original the class as loaded outside the sandbox
+     * @return the class defined by the sandbox, or the original class if it is not sandboxed
+     * @throws ClassNotFoundException if the class cannot be loaded
+     */
+    public Class<?> loadClass(Class<?> original) throws ClassNotFoundException {
+        return loadClass(original.getName());
+    }
+
+    /**
+     * Returns the sandboxed copy of a class.
+     *
+     * @param className the fully qualified class name
+     * @return the class as seen from inside the sandbox
+     * @throws ClassNotFoundException if the class cannot be loaded
+     */
+    public Class<?> loadClass(String className) throws ClassNotFoundException {
+        return Class.forName(className, true, classLoader);
+    }
+
+    /**
+     * Returns the class loader of this sandbox.
+     *
+     * @return the sandbox class loader
+     */
+    public ClassLoader getClassLoader() {
+        return classLoader;
+    }
+
+    /**
+     * Configures a sandboxed static method to return the specified value.
+     *
+     * @param clazz the class containing the static method
+     * @param methodName the name of the static method
+     * @param returnValue the value to return when the method is called
+     */
+    public void when(Class<?> clazz, String methodName, Object returnValue) {
+        StaticMocker.registerOwnerBehavior(owner(clazz.getName()), clazz, methodName, returnValue);
+        logger.debug("Configured static method {} in class {} of {} to return {}",
+                    methodName, clazz.getName(), name, returnValue);
+    }
+
+    /**
+     * Configures a sandboxed static method to throw the specified exception.
+     *
+     * @param clazz the class containing the static method
+     * @param methodName the name of the static method
+     * @param throwable the exception to throw when the method is called
+     */
+    public void whenThrow(Class<?> clazz, String methodName, Throwable throwable) {
+        StaticMocker.registerOwnerBehavior(owner(clazz.getName()), clazz, methodName, throwable);
+        logger.debug("Configured static method {} in class {} of {} to throw {}",
+                    methodName, clazz.getName(), name, throwable);
+    }
+
+    /**
+     * Configures a sandboxed static method to use the specified implementation.
+     *
+     * @param <R> the return type of the method
+     * @param clazz the class containing the static method
+     * @param methodName the name of the static method
+     * @param implementation the function to execute when the method is called
+     */
+    public <R> void whenImplement(Class<?> clazz, String methodName, Function<Object[], R> implementation) {
+        StaticMocker.registerOwnerBehavior(owner(clazz.getName()), clazz, methodName, implementation);
+        logger.debug("Configured static method {} in class {} of {} with custom implementation",
+                    methodName, clazz.getName(), name);
+    }
+
+    /**
+     * Configures a sandboxed constructor to return a pre-created instance.
+     * The instance should be created from the sandboxed class.
+     *
+     * @param clazz the class containing the constructor
+     * @param instance the instance to return when the constructor is called
+     * @param parameterTypes the parameter types of the constructor
+     */
+    public void whenConstructor(Class<?> clazz, Object instance, Class<?>... parameterTypes) {
+        ConstructorMocker.registerOwnerHandler(owner(clazz.getName()), instance, parameterTypes);
+        logger.debug("Configured constructor for class {} of {} with parameters {} to return instance {}",
+                    clazz.getName(), name, Arrays.toString(parameterTypes), instance);
+    }
+
+    /**
+     * Configures a sandboxed constructor to use a custom implementation.
+     *
+     * @param clazz the class containing the constructor
+     * @param implementation the function to execute when the constructor is called
+     * @param parameterTypes the parameter types of the constructor
+     */
+    public void whenConstructorImplement(Class<?> clazz, Function<Object[], ?> implementation,
+                                         Class<?>... parameterTypes) {
+        ConstructorMocker.registerOwnerHandler(owner(clazz.getName()), implementation, parameterTypes);
+        logger.debug("Configured constructor for class {} of {} with parameters {} to use custom implementation",
+                    clazz.getName(), name, Arrays.toString(parameterTypes));
+    }
+
+    /**
+     * Clears every stub of this sandbox. Sandboxed classes stay defined.
+     */
+    public void reset() {
+        String prefix = name + '/';
+        for (String className : sandboxedClassNames()) {
+            StaticMocker.resetOwner(prefix + className);
+            ConstructorMocker.resetOwner(prefix + className);
+        }
+        logger.debug("Reset stubs of {}", name);
+    }
+
+    /**
+     * Resets the stubs and returns the sandbox to the pool.
+     * The sandbox must not be used after it has been closed; closing it again
+     * has no effect.
+     */
+    @Override
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        reset();
+        if (pool.computeIfAbsent(key, k -> new LinkedBlockingQueue<>(MAX_POOLED_PER_CONFIGURATION)).offer(this)) {
+            logger.debug("Released {} to the sandbox pool", name);
+        } else {
+            discard();
+        }
+    }
+
+    /**
+     * Returns the name of this sandbox, which qualifies the ids of its members.
+     *
+     * @return the sandbox name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Discards all pooled sandboxes so that their loaders can be collected.
+     */
+    public static void clearPool() {
+        for (Queue<MockSandbox> released : pool.values()) {
+            for (MockSandbox sandbox = released.poll(); sandbox != null; sandbox = released.poll()) {
+                sandbox.discard();
+            }
+        }
+        pool.clear();
+        logger.info("Cleared the sandbox pool");
+    }
+
+    /**
+     * Returns the number of released sandboxes waiting in the pool.
+     *
+     * @return the number of pooled sandboxes
+     */
+    static int pooledCount() {
+        int count = 0;
+        for (Queue<MockSandbox> released : pool.values()) {
+            count += released.size();
+        }
+        return count;
+    }
+
+    /**
+     * Frees the member ids of a sandbox that will not be reused, so that its
+     * loader and classes are the only things left for the garbage collector.
+     */
+    private void discard() {
+        String prefix = name + '/';
+        int released = 0;
+        for (String className : sandboxedClassNames()) {
+            released += StaticMocker.releaseOwner(prefix + className);
+            released += ConstructorMocker.releaseOwner(prefix + className);
+        }
+        logger.debug("Discarded {} and released {} member ids", name, released);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Set<String> sandboxedClassNames() {
+        Set<String> names = new HashSet<>();
+        for (int i = 1; i < key.size(); i++) {
+            names.addAll((Set<String>) key.get(i));
+        }
+        return names;
+    }
+
+    private String owner(String className) {
+        return name + '/' + className;
+    }
+
+    /**
+     * Describes the classes of a sandbox.
+     */
+    public static final class Builder {
+        private final Set<String> staticClasses = new TreeSet<>();
+        private final Set<String> constructorClasses = new TreeSet<>();
+        private final Set<String> includedClasses = new TreeSet<>();
+        private ClassLoader parent;
+
+        private Builder() {
+        }
+
+        /**
+         * Adds classes whose static methods can be mocked inside the sandbox.
+         *
+         * @param classes the classes to instrument
+         * @return this builder
+         */
+        public Builder staticMocks(Class<?>... classes) {
+            return add(staticClasses, classes);
+        }
+
+        /**
+         * Adds classes whose constructors can be mocked inside the sandbox.
+         *
+         * @param classes the classes to instrument
+         * @return this builder
+         */
+        public Builder constructorMocks(Class<?>... classes) {
+            return add(constructorClasses, classes);
+        }
+
+        /**
+         * Adds classes that are loaded inside the sandbox without instrumentation,
+         * typically the code under test that calls the mocked classes.
+         *
+         * @param classes the classes to load inside the sandbox
+         * @return this builder
+         */
+        public Builder include(Class<?>... classes) {
+            return add(includedClasses, classes);
+        }
+
+        /**
+         * Returns a released sandbox with the same configuration from the pool,
+         * or creates a new one.
+         *
+         * @return a sandbox owned by the caller until it is closed
+         */
+        public MockSandbox acquire() {
+            ClassLoader parentLoader = parent != null ? parent : MockSandbox.class.getClassLoader();
+            Set<String> statics = Collections.unmodifiableSet(new TreeSet<>(staticClasses));
+            Set<String> constructors = Collections.unmodifiableSet(new TreeSet<>(constructorClasses));
+            Set<String> included = Collections.unmodifiableSet(new TreeSet<>(includedClasses));
+            List<Object> key = Arrays.asList(parentLoader, statics, constructors, included);
+            Queue<MockSandbox> released = pool.get(key);
+            MockSandbox sandbox = released == null ? null : released.poll();
+            if (sandbox != null) {
+                sandbox.closed.set(false);
+                logger.debug("Reusing pooled {}", sandbox.name);
+                return sandbox;
+            }
+            sandbox = new MockSandbox(key, parentLoader, statics, constructors, included);
+            logger.info("Created {} for static mocks {}, constructor mocks {}",
+                       sandbox.name, statics, constructors);
+            return sandbox;
+        }
+
+        private Builder add(Set<String> target, Class<?>... classes) {
+            for (Class<?> clazz : classes) {
+                target.add(clazz.getName());
+                if (parent == null) {
+                    parent = clazz.getClassLoader();
+                }
+            }
+            return this;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.mocktutorial.advanced;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
+
+/**
+ * Typed, reusable invoker for a private method.
+ * <p>
+ * The method handle is resolved once, through a private lookup in the
+ * declaring class, and adapted to {@code (Object, Object[])Object}. Each call
+ * is a single {@code invokeExact}, with no reflective lookup, access check or
+ * argument wrapping in {@code InvocationTargetException}. Keep the invoker in a
+ * {@code static final} field to let the JIT inline the call.
+ * <pre>
+ * private static final PrivateMethodInvoker&lt;User, Integer&gt; SCORE =
+ *     PrivateMethodMocker.invoker(User.class, "calculateScore", int.class);
+ * int score = SCORE.invoke(user);
+ * </pre>
+ *
+ * @param <T> the type of the receiver
+ * @param <R> the return type of the method, boxed for primitives
+ */
+public final class PrivateMethodInvoker<T, R> {
+    private static final MethodType GENERIC = MethodType.methodType(Object.class, Object.class, Object[].class);
+
+    private final MethodHandle handle;
+    private final MethodHandle spreader;
+
+    /**
+     * Creates an invoker for a resolved method handle.
+     *
+     * @param handle the handle of the method, taking the receiver as first
+     *               parameter; static methods take an ignored receiver
+     */
+    PrivateMethodInvoker(MethodHandle handle) {
+        this.handle = handle;
+        this.spreader = handle.asSpreader(Object[].class, handle.type().parameterCount() - 1).asType(GENERIC);
+    }
+
+    /**
+     * Invokes the method. Exceptions thrown by the method propagate unwrapped.
+     *
+     * @param instance the receiver, ignored for static methods
+     * @param args the arguments
+     * @return the result, boxed for primitives, or null for void methods
+     * @throws Throwable whatever the method throws
+     */
+    @SuppressWarnings("unchecked")
+    public R invoke(T instance, Object... args) throws Throwable {
+        return (R) spreader.invokeExact((Object) instance, args);
+    }
+
+    /**
+     * Returns the underlying handle, with the exact declared parameter and
+     * return types and the receiver as first parameter, for use with
+     * {@code invokeExact}.
+     *
+     * @return the method handle
+     */
+    public MethodHandle handle() {
+        return handle;
+    }
+}
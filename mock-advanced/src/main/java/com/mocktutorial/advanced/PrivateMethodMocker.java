@@ -1,7 +1,26 @@
 package com.mocktutorial.advanced;
 
+import com.mocktutorial.advanced.agent.InstrumentationPath;
+import com.mocktutorial.advanced.agent.LoadTimeTransformer;
+import com.mocktutorial.advanced.agent.MockAgent;
+import com.mocktutorial.advanced.internal.DispatchTable;
+import com.mocktutorial.advanced.internal.IdentityWeakMap;
+import com.mocktutorial.advanced.internal.StaticBytecodeEnhancer;
+import com.mocktutorial.advanced.internal.StaticMethodAdvice;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
 
@@ -10,10 +29,41 @@ import org.slf4j.LoggerFactory;
 
 /**
  * Provides support for mocking private methods.
+ * <p>
+ * When the mock agent is present, stubbing a private method instruments it
+ * in place with a prologue that checks a per-method guard slot. The slot is
+ * empty until some instance of the class has a stub for the method, so calls
+ * on unstubbed classes cost one array read. Once armed, the slot holds the
+ * stubbed instances in an identity-keyed weak map; the instance's own
+ * {@code hashCode} and {@code equals} are never called.
  */
 public class PrivateMethodMocker {
     private static final Logger logger = LoggerFactory.getLogger(PrivateMethodMocker.class);
-    private static final Map<Object, Map<String, Object>> privateMethodReturns = new ConcurrentHashMap<>();
+    private static final IdentityWeakMap<Object, Map<String, Object>> privateMethodReturns = new IdentityWeakMap<>();
+    
+    // Per-method guard slots holding the stubbed instances, indexed by the id baked into the instrumented method
+    private static final DispatchTable methodGuards = new DispatchTable();
+    
+    // Names of the private methods instrumented so far, per class name
+    private static final Map<String, Set<String>> instrumentedMethods = new ConcurrentHashMap<>();
+    
+    // Method invokers keyed by the method name followed by the parameter classes, per class the search started from
+    private static final ClassValue<Map<List<Object>, PrivateMethodInvoker<?, ?>>> invokerCache =
+        new ClassValue<Map<List<Object>, PrivateMethodInvoker<?, ?>>>() {
+            @Override
+            protected Map<List<Object>, PrivateMethodInvoker<?, ?>> computeValue(Class<?> type) {
+                return new ConcurrentHashMap<>();
+            }
+        };
+    
+    // Stands in for a stubbed null return value, since an empty guard entry means "not stubbed"
+    private static final Object NULL_RESULT = new Object();
+    
+    /**
+     * Special return value for custom implementations that indicates the
+     * original private method should run.
+     */
+    public static final Object PROCEED = new Object();
     
     /**
      * Configures a private method to return the specified value.
@@ -23,10 +73,11 @@ public class PrivateMethodMocker {
      * @param mockInstance the mock instance
      * @param methodName the name of the private method
      * @param returnValue the value to return when the method is called
+     * @throws IllegalArgumentException if the value is null and every private
+     *         method with that name returns a primitive
      */
     public static <T, R> void when(T mockInstance, String methodName, R returnValue) {
-        Map<String, Object> methodMap = privateMethodReturns.computeIfAbsent(mockInstance, k -> new ConcurrentHashMap<>());
-        methodMap.put(methodName, returnValue);
+        register(mockInstance, methodName, returnValue);
         logger.debug("Configured private method {} in instance {} to return {}", methodName, mockInstance, returnValue);
     }
     
@@ -39,8 +90,7 @@ public class PrivateMethodMocker {
      * @param throwable the exception to throw when the method is called
      */
     public static <T> void whenThrow(T mockInstance, String methodName, Throwable throwable) {
-        Map<String, Object> methodMap = privateMethodReturns.computeIfAbsent(mockInstance, k -> new ConcurrentHashMap<>());
-        methodMap.put(methodName, throwable);
+        register(mockInstance, methodName, throwable);
         logger.debug("Configured private method {} in instance {} to throw {}", methodName, mockInstance, throwable);
     }
     
@@ -54,11 +104,202 @@ public class PrivateMethodMocker {
      * @param implementation the function to execute when the method is called
      */
     public static <T, R> void whenImplement(T mockInstance, String methodName, Function<Object[], R> implementation) {
-        Map<String, Object> methodMap = privateMethodReturns.computeIfAbsent(mockInstance, k -> new ConcurrentHashMap<>());
-        methodMap.put(methodName, implementation);
+        register(mockInstance, methodName, implementation);
         logger.debug("Configured private method {} in instance {} with custom implementation", methodName, mockInstance);
     }
     
+    /**
+     * Registers a behavior for an instance and arms the guards of the private
+     * methods with that name, instrumenting them if needed.
+     * 
+     * @param instance the instance
+     * @param methodName the name of the private method
+     * @param behavior the return value, exception or implementation
+     */
+    private static void register(Object instance, String methodName, Object behavior) {
+        Class<?> declaringClass = declaringClass(instance.getClass(), methodName);
+        if (behavior == null && declaringClass != null && !returnsReference(declaringClass, methodName)) {
+            throw new IllegalArgumentException("Private method " + methodName + " of class "
+                    + declaringClass.getName() + " returns a primitive and cannot be stubbed to return null");
+        }
+        privateMethodReturns.computeIfAbsent(instance, k -> new ConcurrentHashMap<>())
+                            .put(methodName, behavior != null ? behavior : NULL_RESULT);
+        if (declaringClass == null) {
+            return;
+        }
+        prepare(declaringClass, methodName);
+        synchronized (methodGuards) {
+            for (Method method : declaringClass.getDeclaredMethods()) {
+                if (isInstrumentable(method) && method.getName().equals(methodName)
+                        && (behavior != null || !isPrimitiveReturn(method))) {
+                    int id = methodId(declaringClass.getName(), methodName, descriptor(method));
+                    guardFor(id).put(instance, behavior != null ? behavior : NULL_RESULT);
+                }
+            }
+        }
+    }
+    
+    @SuppressWarnings("unchecked")
+    private static IdentityWeakMap<Object, Object> guardFor(int methodId) {
+        IdentityWeakMap<Object, Object> guard = (IdentityWeakMap<Object, Object>) methodGuards.get(methodId);
+        if (guard == null) {
+            guard = new IdentityWeakMap<>();
+            methodGuards.set(methodId, guard);
+        }
+        return guard;
+    }
+    
+    /**
+     * Finds the class in the hierarchy that declares a private instance method.
+     * 
+     * @param type the runtime class of the instance
+     * @param methodName the name of the method
+     * @return the declaring class, or null if no private method has that name
+     */
+    private static Class<?> declaringClass(Class<?> type, String methodName) {
+        for (Class<?> current = type; current != null && current != Object.class; current = current.getSuperclass()) {
+            for (Method method : current.getDeclaredMethods()) {
+                if (isInstrumentable(method) && method.getName().equals(methodName)) {
+                    return current;
+                }
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Checks whether a null stub can apply to a private method: at least one
+     * overload with that name returns a reference type or void. The prologue
+     * of a primitive overload would unbox the null, so such overloads keep
+     * running their original bodies.
+     */
+    private static boolean returnsReference(Class<?> declaringClass, String methodName) {
+        for (Method method : declaringClass.getDeclaredMethods()) {
+            if (isInstrumentable(method) && method.getName().equals(methodName) && !isPrimitiveReturn(method)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    private static boolean isPrimitiveReturn(Method method) {
+        return method.getReturnType().isPrimitive() && method.getReturnType() != void.class;
+    }
+    
+    private static boolean isInstrumentable(Method method) {
+        int modifiers = method.getModifiers();
+        return Modifier.isPrivate(modifiers) && !Modifier.isStatic(modifiers) && !Modifier.isNative(modifiers)
+                && !Modifier.isAbstract(modifiers);
+    }
+    
+    private static String descriptor(Method method) {
+        return MethodType.methodType(method.getReturnType(), method.getParameterTypes()).toMethodDescriptorString();
+    }
+    
+    /**
+     * Instruments the named private methods of a class so that stubs
+     * registered for its instances are applied by the methods themselves.
+     * Requires the mock agent; without it, stubs are only visible through
+     * {@link #handlePrivateMethodCall(Object, String, Object[])}.
+     * 
+     * @param clazz the class declaring the private methods
+     * @param methodNames the names of the private methods
+     * @return true if the methods are instrumented, false otherwise
+     */
+    public static boolean prepare(Class<?> clazz, String... methodNames) {
+        String className = clazz.getName();
+        synchronized (instrumentedMethods) {
+            if (LoadTimeTransformer.getInstance().clearFailure(className)) {
+                // The class was loaded unmodified; redefine it instead
+                instrumentedMethods.remove(className);
+            }
+            Set<String> instrumented = instrumentedMethods.getOrDefault(className, Collections.emptySet());
+            if (instrumented.containsAll(Arrays.asList(methodNames))) {
+                return true;
+            }
+            if (!StaticBytecodeEnhancer.isInstrumentationAvailable()) {
+                logger.debug("Instrumentation not available, private methods {} of class {} are not instrumented",
+                             Arrays.toString(methodNames), className);
+                return false;
+            }
+            Set<String> requested = new TreeSet<>(instrumented);
+            requested.addAll(Arrays.asList(methodNames));
+            try {
+                InstrumentationPath path = MockAgent.apply(className, clazz.getClassLoader(),
+                        classfile -> instrumentPrivateMethods(classfile, className, requested));
+                instrumentedMethods.put(className, requested);
+                logger.info("Instrumented private methods {} of class {} via {}", requested, className, path);
+                return true;
+            } catch (Exception e) {
+                logger.error("Failed to instrument private methods of class " + className, e);
+                return false;
+            }
+        }
+    }
+    
+    /**
+     * Instruments the named private methods in a class file without defining it.
+     * 
+     * @param classfile the original class file
+     * @param owner the owner key the method ids are interned under
+     * @param methodNames the names of the private methods, or null for all private instance methods
+     * @return the instrumented class file
+     */
+    public static byte[] instrumentPrivateMethods(byte[] classfile, String owner, Collection<String> methodNames) {
+        return StaticMethodAdvice.instrument(classfile, StaticMethodAdvice.Registry.PRIVATE_METHOD_MOCKER, owner,
+                                             methodNames);
+    }
+    
+    /**
+     * Returns the id of a private method, interning it on first use.
+     * Called by the instrumentation to obtain the constant that is baked
+     * into the modified method.
+     * 
+     * @param className the declaring class
+     * @param methodName the method name
+     * @param descriptor the JVM method descriptor
+     * @return the method id
+     */
+    public static int methodId(String className, String methodName, String descriptor) {
+        return methodGuards.intern(className, methodName, descriptor);
+    }
+    
+    /**
+     * Returns the behavior registered for an instance.
+     * This method is called first from the bytecode-modified private methods;
+     * for a method without stubbed instances it only reads the guard slot.
+     * 
+     * @param methodId the id baked into the instrumented method
+     * @param instance the receiver of the call
+     * @return the registered behavior, or null if the instance is not stubbed
+     */
+    @SuppressWarnings("unchecked")
+    public static Object behaviorFor(int methodId, Object instance) {
+        Object guard = methodGuards.get(methodId);
+        return guard == null ? null : ((IdentityWeakMap<Object, Object>) guard).get(instance);
+    }
+    
+    /**
+     * Applies a behavior returned by {@link #behaviorFor(int, Object)}.
+     * 
+     * @param behavior the registered return value, exception or implementation
+     * @param args the arguments passed to the method
+     * @return the value to return from the private method, or PROCEED
+     * @throws Throwable if the behavior is an exception
+     */
+    @SuppressWarnings("unchecked")
+    public static Object applyBehavior(Object behavior, Object[] args) throws Throwable {
+        if (behavior == NULL_RESULT) {
+            return null;
+        } else if (behavior instanceof Throwable) {
+            throw (Throwable) behavior;
+        } else if (behavior instanceof Function) {
+            return ((Function<Object[], Object>) behavior).apply(args);
+        } else {
+            return behavior;
+        }
+    }
+    
     /**
      * Gets the configured behavior for a private method.
      * This method is primarily used for testing purposes.
@@ -70,7 +311,8 @@ public class PrivateMethodMocker {
     public static Object getConfiguredBehavior(Object mockInstance, String methodName) {
         Map<String, Object> methodMap = privateMethodReturns.get(mockInstance);
         if (methodMap != null) {
-            return methodMap.get(methodName);
+            Object behavior = methodMap.get(methodName);
+            return behavior == NULL_RESULT ? null : behavior;
         }
         return null;
     }
@@ -90,15 +332,7 @@ public class PrivateMethodMocker {
     public static <R> R handlePrivateMethodCall(Object mockInstance, String methodName, Object[] args) throws Throwable {
         Map<String, Object> methodMap = privateMethodReturns.get(mockInstance);
         if (methodMap != null && methodMap.containsKey(methodName)) {
-            Object result = methodMap.get(methodName);
-            
-            if (result instanceof Throwable) {
-                throw (Throwable) result;
-            } else if (result instanceof Function) {
-                return ((Function<Object[], R>) result).apply(args);
-            } else {
-                return (R) result;
-            }
+            return (R) applyBehavior(methodMap.get(methodName), args);
         }
         
         // If no mock configuration is found, we would normally call the original method
@@ -110,6 +344,8 @@ public class PrivateMethodMocker {
     /**
      * Executes a private method on the specified instance.
      * This is a convenience method for invoking private methods during testing.
+     * The method is looked up in the runtime class and its superclasses, and
+     * its handle is cached, so repeated calls skip the reflective lookup.
      * 
      * @param <T> the instance type
      * @param <R> the return type of the method
@@ -118,18 +354,110 @@ public class PrivateMethodMocker {
      * @param parameterTypes the parameter types of the method
      * @param args the arguments to pass to the method
      * @return the result of the method invocation
-     * @throws Exception if the method cannot be invoked
+     * @throws Exception if the method cannot be found or accessed, or an
+     *         {@link InvocationTargetException} wrapping what the method threw
      */
     @SuppressWarnings("unchecked")
     public static <T, R> R invokePrivateMethod(T instance, String methodName, Class<?>[] parameterTypes, Object... args) throws Exception {
+        PrivateMethodInvoker<Object, R> invoker;
         try {
-            Method method = instance.getClass().getDeclaredMethod(methodName, parameterTypes);
-            method.setAccessible(true);
-            return (R) method.invoke(instance, args);
+            invoker = (PrivateMethodInvoker<Object, R>) resolve(instance.getClass(), methodName, parameterTypes);
         } catch (Exception e) {
             logger.error("Failed to invoke private method: " + methodName, e);
             throw e;
         }
+        try {
+            return invoker.invoke(instance, args);
+        } catch (Error e) {
+            throw e;
+        } catch (Throwable e) {
+            // Keep the contract of the reflective implementation
+            throw new InvocationTargetException(e);
+        }
+    }
+    
+    /**
+     * Returns a typed invoker for a private method, declared by the given
+     * class or one of its superclasses. Invokers are cached and cheap to
+     * call; see {@link PrivateMethodInvoker}.
+     * 
+     * @param <T> the receiver type
+     * @param <R> the return type, boxed for primitives
+     * @param type the class to start the search from
+     * @param methodName the name of the method
+     * @param returnType the declared return type of the method
+     * @param parameterTypes the parameter types of the method
+     * @return the invoker
+     * @throws IllegalArgumentException if no such method exists, the return type
+     *         does not match, or the method cannot be accessed
+     */
+    @SuppressWarnings("unchecked")
+    public static <T, R> PrivateMethodInvoker<T, R> invoker(Class<T> type, String methodName, Class<?> returnType,
+                                                             Class<?>... parameterTypes) {
+        PrivateMethodInvoker<?, ?> invoker;
+        try {
+            invoker = resolve(type, methodName, parameterTypes);
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new IllegalArgumentException("Cannot access method " + methodName + Arrays.toString(parameterTypes)
+                    + " of class " + type.getName(), e);
+        }
+        if (invoker.handle().type().returnType() != returnType) {
+            throw new IllegalArgumentException("Method " + methodName + " of class " + type.getName() + " returns "
+                    + invoker.handle().type().returnType().getName() + ", not " + returnType.getName());
+        }
+        return (PrivateMethodInvoker<T, R>) invoker;
+    }
+    
+    /**
+     * Resolves the cached invoker of a method declared by a class or one of
+     * its superclasses.
+     */
+    private static PrivateMethodInvoker<?, ?> resolve(Class<?> type, String methodName, Class<?>[] parameterTypes)
+            throws NoSuchMethodException, IllegalAccessException {
+        Map<List<Object>, PrivateMethodInvoker<?, ?>> invokers = invokerCache.get(type);
+        // Parameter classes are compared by identity, so same-named classes from different loaders stay apart
+        Object[] parts = new Object[parameterTypes.length + 1];
+        parts[0] = methodName;
+        System.arraycopy(parameterTypes, 0, parts, 1, parameterTypes.length);
+        List<Object> key = Arrays.asList(parts);
+        PrivateMethodInvoker<?, ?> invoker = invokers.get(key);
+        if (invoker == null) {
+            invoker = new PrivateMethodInvoker<>(unreflect(findMethod(type, methodName, parameterTypes)));
+            invokers.putIfAbsent(key, invoker);
+        }
+        return invoker;
+    }
+    
+    private static Method findMethod(Class<?> type, String methodName, Class<?>[] parameterTypes)
+            throws NoSuchMethodException {
+        for (Class<?> current = type; current != null; current = current.getSuperclass()) {
+            try {
+                return current.getDeclaredMethod(methodName, parameterTypes);
+            } catch (NoSuchMethodException e) {
+                // Continue with the superclass
+            }
+        }
+        throw new NoSuchMethodException(type.getName() + "." + methodName + Arrays.toString(parameterTypes));
+    }
+    
+    /**
+     * Unreflects a method through a private lookup in its declaring class, so
+     * no accessibility override is needed. Static methods get an ignored
+     * receiver parameter to share the invoker shape.
+     */
+    private static MethodHandle unreflect(Method method) throws IllegalAccessException {
+        MethodHandle handle;
+        try {
+            handle = MethodHandles.privateLookupIn(method.getDeclaringClass(), MethodHandles.lookup()).unreflect(method);
+        } catch (IllegalAccessException e) {
+            // The declaring module does not open the package; fall back to an accessibility override
+            method.setAccessible(true);
+            handle = MethodHandles.lookup().unreflect(method);
+        }
+        if (Modifier.isStatic(method.getModifiers())) {
+            handle = MethodHandles.dropArguments(handle, 0, method.getDeclaringClass());
+        }
+        return handle;
     }
     
     /**
@@ -137,6 +465,7 @@ public class PrivateMethodMocker {
      */
     public static void resetAll() {
         privateMethodReturns.clear();
+        methodGuards.clearAll();
         logger.info("Reset all private method mocks");
     }
     
@@ -146,7 +475,34 @@ public class PrivateMethodMocker {
      * @param instance the instance to reset
      */
     public static void reset(Object instance) {
-        privateMethodReturns.remove(instance);
+        Map<String, Object> methodMap = privateMethodReturns.remove(instance);
+        if (methodMap != null) {
+            for (String methodName : methodMap.keySet()) {
+                Class<?> declaringClass = declaringClass(instance.getClass(), methodName);
+                if (declaringClass != null) {
+                    disarm(declaringClass.getName(), methodName, instance);
+                }
+            }
+        }
         logger.info("Reset private method mocks for instance: {}", instance);
     }
+    
+    /**
+     * Removes an instance from the guards of a method, emptying the slots
+     * when no stubbed instance remains.
+     */
+    @SuppressWarnings("unchecked")
+    private static void disarm(String className, String methodName, Object instance) {
+        synchronized (methodGuards) {
+            for (int id : methodGuards.lookupAll(className, methodName)) {
+                IdentityWeakMap<Object, Object> guard = (IdentityWeakMap<Object, Object>) methodGuards.get(id);
+                if (guard != null) {
+                    guard.remove(instance);
+                    if (guard.isEmpty()) {
+                        methodGuards.set(id, null);
+                    }
+                }
+            }
+        }
+    }
 } 
\ No newline at end of file
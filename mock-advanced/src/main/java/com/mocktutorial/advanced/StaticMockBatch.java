@@ -0,0 +1,137 @@
+package com.mocktutorial.advanced;
+
+import com.mocktutorial.advanced.internal.StaticBytecodeEnhancer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A batch of class redefinitions that is applied as a single redefinition.
+ * <p>
+ * Every redefinition costs a safepoint and deoptimizes the code that depends
+ * on the redefined class. While a batch is open, redefinitions requested on
+ * the opening thread, by {@link StaticMocker}, {@link StaticMockBuilder} or
+ * {@link ConstructorMocker} preparing or restoring classes, are collected
+ * instead of being applied. Closing the batch applies all of them in one
+ * {@code redefineClasses} call; a class redefined several times within the
+ * batch is redefined once, with its last bytecode.
+ * <p>
+ * Stubs registered inside the batch take effect when the batch is closed.
+ * If the redefinition fails, no class is changed and the instrumentation
+ * bookkeeping of the batch is rolled back.
+ * <pre>
+ * try (StaticMockBatch batch = StaticMocker.batch()) {
+ *     StaticMocker.when(Clock.class, "now", 42L);
+ *     StaticMocker.when(Ids.class, "next", "id-1");
+ * }
+ * </pre>
+ */
+public final class StaticMockBatch implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(StaticMockBatch.class);
+    private static final ThreadLocal<StaticMockBatch> CURRENT = new ThreadLocal<>();
+
+    private final Map<Class<?>, byte[]> definitions = new LinkedHashMap<>();
+    private final List<Runnable> rollbacks = new ArrayList<>();
+    // Nested batches join the outermost one, which applies the redefinitions
+    private int depth = 1;
+
+    private StaticMockBatch() {
+    }
+
+    /**
+     * Opens a batch on the current thread, or joins the batch that is already open.
+     *
+     * @return the batch
+     */
+    static StaticMockBatch open() {
+        StaticMockBatch batch = CURRENT.get();
+        if (batch != null) {
+            batch.depth++;
+            return batch;
+        }
+        batch = new StaticMockBatch();
+        CURRENT.set(batch);
+        return batch;
+    }
+
+    /**
+     * Adds redefinitions to the batch of the current thread.
+     * Called by {@link StaticBytecodeEnhancer#redefineClasses(Map)}.
+     *
+     * @param redefinitions the new bytecode per class
+     * @return true if the redefinitions were deferred, false if no batch is open
+     */
+    public static boolean defer(Map<Class<?>, byte[]> redefinitions) {
+        StaticMockBatch batch = CURRENT.get();
+        if (batch == null) {
+            return false;
+        }
+        batch.definitions.putAll(redefinitions);
+        return true;
+    }
+
+    /**
+     * Registers an action that undoes bookkeeping for a deferred redefinition,
+     * run if the batch fails to apply. Actions run in reverse order of registration.
+     * Without an open batch the action is discarded.
+     *
+     * @param rollback the action to run on failure
+     */
+    public static void onRollback(Runnable rollback) {
+        StaticMockBatch batch = CURRENT.get();
+        if (batch != null) {
+            batch.rollbacks.add(rollback);
+        }
+    }
+
+    /**
+     * Returns whether a batch is open on the current thread.
+     *
+     * @return true if redefinitions are being collected
+     */
+    public static boolean isOpen() {
+        return CURRENT.get() != null;
+    }
+
+    /**
+     * Returns the number of classes waiting to be redefined.
+     *
+     * @return the number of collected redefinitions
+     */
+    public int size() {
+        return definitions.size();
+    }
+
+    /**
+     * Closes the batch and applies the collected redefinitions in one call.
+     * Closing a nested batch only leaves it.
+     *
+     * @throws RuntimeException if the redefinition fails
+     */
+    @Override
+    public void close() {
+        if (depth == 0 || --depth > 0) {
+            return;
+        }
+        CURRENT.remove();
+        if (definitions.isEmpty()) {
+            return;
+        }
+        try {
+            StaticBytecodeEnhancer.redefineClasses(definitions);
+            logger.info("Applied batched redefinition of {} classes", definitions.size());
+        } catch (Exception e) {
+            for (int i = rollbacks.size() - 1; i >= 0; i--) {
+                rollbacks.get(i).run();
+            }
+            throw new RuntimeException("Failed to apply batched redefinition of " + definitions.keySet(), e);
+        } finally {
+            definitions.clear();
+            rollbacks.clear();
+        }
+    }
+}
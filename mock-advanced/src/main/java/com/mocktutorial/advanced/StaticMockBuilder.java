@@ -5,6 +5,14 @@ import com.mocktutorial.advanced.internal.StaticMockHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.function.Function;
 
 /**
@@ -17,16 +25,19 @@ public class StaticMockBuilder {
     
     private final Class<?> targetClass;
     private final String methodName;
+    private final Class<?>[] parameterTypes;
     
     /**
      * Creates a new static mock builder for the specified class and method.
      * 
      * @param targetClass the class containing the static method
      * @param methodName the name of the static method
+     * @param parameterTypes the parameter types of the overload, or null for all overloads
      */
-    private StaticMockBuilder(Class<?> targetClass, String methodName) {
+    private StaticMockBuilder(Class<?> targetClass, String methodName, Class<?>[] parameterTypes) {
         this.targetClass = targetClass;
         this.methodName = methodName;
+        this.parameterTypes = parameterTypes;
     }
     
     /**
@@ -36,14 +47,20 @@ public class StaticMockBuilder {
      * @return a new static mock builder
      */
     public static StaticMockBuilder forClass(Class<?> targetClass) {
-        try {
-            // Enable static mocking for the class
-            enableStaticMockingFor(targetClass);
-            return new StaticMockBuilder(targetClass, null);
-        } catch (Exception e) {
-            logger.error("Failed to create static mock for class: " + targetClass.getName(), e);
-            throw new RuntimeException("Failed to create static mock", e);
-        }
+        // Methods are instrumented when they are first stubbed
+        return new StaticMockBuilder(targetClass, null, null);
+    }
+    
+    /**
+     * Instruments several static methods of the target class in a single
+     * redefinition, ahead of stubbing them.
+     * 
+     * @param methodNames the names of the static methods
+     * @return this builder for chaining
+     */
+    public StaticMockBuilder prepareMethods(String... methodNames) {
+        instrument(Arrays.asList(methodNames));
+        return this;
     }
     
     /**
@@ -53,7 +70,18 @@ public class StaticMockBuilder {
      * @return a new static mock builder focused on the specified method
      */
     public StaticMockBuilder method(String methodName) {
-        return new StaticMockBuilder(this.targetClass, methodName);
+        return new StaticMockBuilder(this.targetClass, methodName, null);
+    }
+    
+    /**
+     * Specifies a single overload of the static method to mock.
+     * 
+     * @param methodName the name of the static method
+     * @param parameterTypes the parameter types of the overload
+     * @return a new static mock builder focused on the specified overload
+     */
+    public StaticMockBuilder method(String methodName, Class<?>... parameterTypes) {
+        return new StaticMockBuilder(this.targetClass, methodName, parameterTypes);
     }
     
     /**
@@ -68,7 +96,7 @@ public class StaticMockBuilder {
             throw new IllegalStateException("Method name must be specified using method()");
         }
         
-        StaticMockHandler.registerBehavior(targetClass.getName(), methodName, returnValue);
+        register(returnValue);
         return this;
     }
     
@@ -83,7 +111,7 @@ public class StaticMockBuilder {
             throw new IllegalStateException("Method name must be specified using method()");
         }
         
-        StaticMockHandler.registerBehavior(targetClass.getName(), methodName, throwable);
+        register(throwable);
         return this;
     }
     
@@ -99,32 +127,66 @@ public class StaticMockBuilder {
             throw new IllegalStateException("Method name must be specified using method()");
         }
         
-        StaticMockHandler.registerBehavior(targetClass.getName(), methodName, implementation);
+        register(implementation);
         return this;
     }
     
     /**
-     * Enables static mocking for the specified class.
+     * Registers a behavior for the selected method, or only for the selected
+     * overload when parameter types were given.
+     * 
+     * @param behavior the behavior to register
+     */
+    private void register(Object behavior) {
+        instrument(Collections.singleton(methodName));
+        if (parameterTypes == null) {
+            StaticMockHandler.registerBehavior(targetClass.getName(), methodName, behavior);
+            return;
+        }
+        try {
+            Method method = targetClass.getDeclaredMethod(methodName, parameterTypes);
+            String descriptor = MethodType.methodType(method.getReturnType(), parameterTypes).toMethodDescriptorString();
+            StaticMockHandler.registerBehavior(targetClass.getName(), methodName, descriptor, behavior);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalArgumentException("No static method " + methodName + Arrays.toString(parameterTypes)
+                    + " in class " + targetClass.getName(), e);
+        }
+    }
+    
+    /**
+     * Instruments static methods of the target class that are not instrumented yet.
+     * 
+     * @param methodNames the names of the static methods
+     */
+    private void instrument(Collection<String> methodNames) {
+        try {
+            enhancer.instrumentMethods(targetClass, methodNames);
+        } catch (Exception e) {
+            logger.error("Failed to create static mock for class: " + targetClass.getName(), e);
+            throw new RuntimeException("Failed to create static mock", e);
+        }
+    }
+    
+    /**
+     * Enables static mocking for every static method of the specified class.
      * 
      * @param classToMock the class to enable static mocking for
      * @throws Exception if enabling static mocking fails
      */
     public static void enableStaticMockingFor(Class<?> classToMock) throws Exception {
-        String className = classToMock.getName();
-        
-        // If already enabled, do nothing
-        if (StaticMockHandler.hasMockBehaviors(className)) {
-            logger.debug("Static mocking already enabled for class: {}", className);
-            return;
+        Set<String> methodNames = new HashSet<>();
+        for (Method method : classToMock.getDeclaredMethods()) {
+            if (Modifier.isStatic(method.getModifiers()) && !Modifier.isNative(method.getModifiers())) {
+                methodNames.add(method.getName());
+            }
         }
         
-        // Modify the class bytecode
-        byte[] modifiedBytecode = enhancer.modifyAllStaticMethods(className);
-        
-        // Redefine the class with the modified bytecode
-        enhancer.redefineClass(classToMock, modifiedBytecode);
-        
-        logger.info("Enabled static mocking for class: {}", className);
+        // Instrument the methods that are not instrumented yet, in one redefinition
+        if (enhancer.instrumentMethods(classToMock, methodNames)) {
+            logger.info("Enabled static mocking for class: {}", classToMock.getName());
+        } else {
+            logger.debug("Static mocking already enabled for class: {}", classToMock.getName());
+        }
     }
     
     /**
@@ -143,6 +205,20 @@ public class StaticMockBuilder {
         StaticMockHandler.reset(classToReset.getName());
     }
     
+    /**
+     * Restores the original bytecode of every class with instrumented static
+     * methods in a single redefinition, and resets all static mocks.
+     * 
+     * @throws Exception if restoration fails
+     */
+    @SuppressWarnings("try")
+    public static void restoreAll() throws Exception {
+        try (StaticMockBatch ignored = StaticMocker.batch()) {
+            enhancer.restoreAll();
+        }
+        StaticMockHandler.resetAll();
+    }
+    
     /**
      * Restores the original bytecode for the specified class.
      * 
@@ -0,0 +1,216 @@
+package com.mocktutorial.advanced;
+
+import com.mocktutorial.advanced.internal.DispatchTable;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+
+/**
+ * A scope for static stubs that are visible only to the thread that opened it.
+ * <p>
+ * While a scope is open, stubs registered through {@link StaticMocker} or
+ * {@link StaticMockBuilder} on the opening thread are stored in the scope
+ * instead of the global registry. They are visible to the opening thread, to
+ * threads started from it, and to tasks passed through one of the
+ * {@code wrap} methods. Closing the scope discards its stubs. This allows
+ * tests that stub the same static method to run in parallel.
+ * <p>
+ * Lookups from instrumented code only consult scopes while at least one
+ * scope is open, so the unscoped path costs a single volatile read.
+ * <pre>
+ * try (StaticMockScope scope = StaticMocker.openScope()) {
+ *     StaticMocker.when(Clock.class, "now", 42L);
+ *     executor.submit(scope.wrap(task));
+ * }
+ * </pre>
+ */
+public final class StaticMockScope implements AutoCloseable {
+    private static final InheritableThreadLocal<StaticMockScope> CURRENT = new InheritableThreadLocal<>();
+
+    // Number of open scopes; lookups skip the thread-local entirely while this is zero
+    private static volatile int openScopes;
+
+    private final StaticMockScope parent;
+    private final Map<DispatchTable, Object[]> slots = new ConcurrentHashMap<>();
+    private volatile boolean closed;
+
+    private StaticMockScope(StaticMockScope parent) {
+        this.parent = parent;
+    }
+
+    /**
+     * Opens a new scope on the current thread. Scopes may be nested; an inner
+     * scope sees the stubs of its enclosing scopes.
+     *
+     * @return the opened scope
+     */
+    static StaticMockScope open() {
+        StaticMockScope scope = new StaticMockScope(CURRENT.get());
+        synchronized (StaticMockScope.class) {
+            openScopes++;
+        }
+        CURRENT.set(scope);
+        return scope;
+    }
+
+    /**
+     * Returns the open scope of the current thread.
+     *
+     * @return the current scope, or null if stubs are registered globally
+     */
+    public static StaticMockScope current() {
+        if (openScopes == 0) {
+            return null;
+        }
+        StaticMockScope scope = CURRENT.get();
+        while (scope != null && scope.closed) {
+            scope = scope.parent;
+        }
+        return scope;
+    }
+
+    /**
+     * Returns the scoped handler of a member for the current thread.
+     * Called by the static method registries before the global slot is read.
+     *
+     * @param table the table the id belongs to
+     * @param id the member id
+     * @return the scoped handler, or null if the current thread has none
+     */
+    public static Object lookup(DispatchTable table, int id) {
+        if (openScopes == 0) {
+            return null;
+        }
+        for (StaticMockScope scope = CURRENT.get(); scope != null; scope = scope.parent) {
+            if (scope.closed) {
+                continue;
+            }
+            Object[] scoped = scope.slots.get(table);
+            if (scoped != null && id < scoped.length && scoped[id] != null) {
+                return scoped[id];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the scoped handler of any overload of a member for the current thread.
+     *
+     * @param table the table the member belongs to
+     * @param owner fully qualified name of the declaring class
+     * @param member member name
+     * @return the first scoped handler found, or null if the current thread has none
+     */
+    public static Object lookupMember(DispatchTable table, String owner, String member) {
+        if (openScopes == 0) {
+            return null;
+        }
+        for (int id : table.lookupAll(owner, member)) {
+            Object scoped = lookup(table, id);
+            if (scoped != null) {
+                return scoped;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Stores a handler for a member in this scope.
+     *
+     * @param table the table the id belongs to
+     * @param id the member id
+     * @param handler the handler
+     */
+    public synchronized void set(DispatchTable table, int id, Object handler) {
+        Object[] current = slots.get(table);
+        Object[] updated = current == null ? new Object[id + 1]
+                : Arrays.copyOf(current, Math.max(current.length, id + 1));
+        updated[id] = handler;
+        slots.put(table, updated);
+    }
+
+    /**
+     * Stores a handler for every interned overload of a member in this scope.
+     *
+     * @param table the table the member belongs to
+     * @param owner fully qualified name of the declaring class
+     * @param member member name
+     * @param handlerForDescriptor creates the handler for an overload from its descriptor
+     */
+    public synchronized void setMember(DispatchTable table, String owner, String member,
+                                       Function<String, Object> handlerForDescriptor) {
+        for (int id : table.lookupAll(owner, member)) {
+            set(table, id, handlerForDescriptor.apply(table.descriptorOf(id)));
+        }
+    }
+
+    /**
+     * Wraps a task so that it runs inside this scope on whichever thread executes it.
+     *
+     * @param task the task to wrap
+     * @return the wrapped task
+     */
+    public Runnable wrap(Runnable task) {
+        return () -> {
+            StaticMockScope previous = CURRENT.get();
+            CURRENT.set(this);
+            try {
+                task.run();
+            } finally {
+                CURRENT.set(previous);
+            }
+        };
+    }
+
+    /**
+     * Wraps a task so that it runs inside this scope on whichever thread executes it.
+     *
+     * @param <T> the result type
+     * @param task the task to wrap
+     * @return the wrapped task
+     */
+    public <T> Callable<T> wrap(Callable<T> task) {
+        return () -> {
+            StaticMockScope previous = CURRENT.get();
+            CURRENT.set(this);
+            try {
+                return task.call();
+            } finally {
+                CURRENT.set(previous);
+            }
+        };
+    }
+
+    /**
+     * Wraps an executor so that every task submitted to it runs inside this scope.
+     *
+     * @param executor the executor to wrap
+     * @return an executor that propagates this scope
+     */
+    public Executor wrap(Executor executor) {
+        return task -> executor.execute(wrap(task));
+    }
+
+    /**
+     * Closes the scope and discards its stubs. Threads that inherited the
+     * scope fall back to the enclosing scope or the global stubs.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        slots.clear();
+        if (CURRENT.get() == this) {
+            CURRENT.set(parent);
+        }
+        synchronized (StaticMockScope.class) {
+            openScopes--;
+        }
+    }
+}
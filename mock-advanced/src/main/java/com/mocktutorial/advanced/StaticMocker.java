@@ -1,10 +1,19 @@
 package com.mocktutorial.advanced;
 
+import com.mocktutorial.advanced.agent.InstrumentationPath;
 import com.mocktutorial.advanced.agent.StaticMethodAgent;
+import com.mocktutorial.advanced.internal.DispatchTable;
+import com.mocktutorial.advanced.internal.TypedReturn;
 
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
 import org.slf4j.Logger;
@@ -12,11 +21,20 @@ import org.slf4j.LoggerFactory;
 
 /**
  * Provides advanced support for mocking static methods.
+ * <p>
+ * Static methods are instrumented lazily, only once they are stubbed.
+ * Instrumented static methods carry a baked-in method id and first check the
+ * behavior slot for that id. A method without an active stub only pays one
+ * volatile read; argument boxing and handler dispatch happen only when a
+ * behavior is registered.
  */
 public class StaticMocker {
     private static final Logger logger = LoggerFactory.getLogger(StaticMocker.class);
     private static final Map<Class<?>, Map<String, Object>> staticMethodReturns = new ConcurrentHashMap<>();
     
+    // Per-method guard slots indexed by the id baked into the instrumented method
+    private static final DispatchTable methodGuards = new DispatchTable();
+    
     /**
      * Special value indicating that the original method should be called.
      * This is used internally and should not be returned from custom implementations.
@@ -25,30 +43,72 @@ public class StaticMocker {
     
     /**
      * Prepares a class for static method mocking.
+     * The bytecode is not modified here; each static method is instrumented
+     * when it is first stubbed.
      * 
      * @param classToMock the class to prepare for static mocking
      */
     public static void prepareForStaticMocking(Class<?> classToMock) {
+        // Set up the tracking structures
+        staticMethodReturns.putIfAbsent(classToMock, new ConcurrentHashMap<>());
+        logger.info("Prepared class for static mocking: {}", classToMock.getName());
+    }
+    
+    /**
+     * Instruments the named static methods of a class in one step, ahead of
+     * stubbing them. Useful to batch several methods into a single redefinition.
+     * 
+     * @param classToMock the class declaring the methods
+     * @param methodNames the names of the static methods to instrument
+     */
+    public static void prepareMethods(Class<?> classToMock, String... methodNames) {
+        ensurePrepared(classToMock);
+        instrument(classToMock, Arrays.asList(methodNames));
+    }
+    
+    /**
+     * Instruments the named static methods of a class identified by name,
+     * without loading it. If the mock agent is present and the class is not
+     * loaded yet, the methods are instrumented when it is loaded; otherwise the
+     * class is redefined or, without an agent, defined directly.
+     * 
+     * @param className the fully qualified name of the class
+     * @param loader the class loader that will load the class
+     * @param methodNames the names of the static methods to instrument
+     * @return the path used to install the instrumented class
+     */
+    public static InstrumentationPath prepareMethods(String className, ClassLoader loader, String... methodNames) {
+        InstrumentationPath path = StaticMethodAgent.modifyMethods(className, loader, Arrays.asList(methodNames));
+        if (path == InstrumentationPath.FAILED) {
+            logger.warn("Failed to prepare static methods {} of class {}", Arrays.toString(methodNames), className);
+        } else {
+            logger.info("Prepared static methods {} of class {} via {}", Arrays.toString(methodNames), className, path);
+        }
+        return path;
+    }
+    
+    /**
+     * Instruments static methods that are about to be stubbed.
+     * 
+     * @param clazz the class declaring the methods
+     * @param methodNames the names of the static methods
+     */
+    private static void instrument(Class<?> clazz, Collection<String> methodNames) {
         try {
-            // Set up the tracking structures
-            staticMethodReturns.putIfAbsent(classToMock, new ConcurrentHashMap<>());
-            
-            // Modify the class bytecode to redirect static method calls
-            boolean modified = StaticMethodAgent.modifyClass(classToMock);
-            
-            if (modified) {
-                logger.info("Prepared class for static mocking: {}", classToMock.getName());
-            } else {
-                logger.warn("Failed to prepare class for static mocking: {}", classToMock.getName());
+            // Only the stubbed methods are rewritten; the rest of the class stays untouched
+            boolean modified = StaticMethodAgent.modifyMethods(clazz, methodNames);
+            if (!modified) {
+                logger.warn("Failed to instrument static methods {} of class {}", methodNames, clazz.getName());
             }
         } catch (Exception e) {
-            logger.error("Failed to prepare class for static mocking: " + classToMock.getName(), e);
+            logger.error("Failed to instrument static methods of class: " + clazz.getName(), e);
             throw new RuntimeException("Failed to prepare for static mocking", e);
         }
     }
     
     /**
      * Configures a static method to return the specified value.
+     * The behavior applies to every overload of the method.
      * 
      * @param <T> the class type
      * @param <R> the return type of the method
@@ -57,14 +117,31 @@ public class StaticMocker {
      * @param returnValue the value to return when the method is called
      */
     public static <T, R> void when(Class<T> clazz, String methodName, R returnValue) {
-        ensurePrepared(clazz);
-        Map<String, Object> methodMap = staticMethodReturns.get(clazz);
-        methodMap.put(methodName, returnValue);
+        registerBehavior(clazz, methodName, returnValue);
         logger.debug("Configured static method {} in class {} to return {}", methodName, clazz.getName(), returnValue);
     }
     
+    /**
+     * Configures one overload of a static method to return the specified value.
+     * Constants for {@code int}, {@code long}, {@code double} and {@code boolean}
+     * methods are stored unboxed.
+     * 
+     * @param <T> the class type
+     * @param <R> the return type of the method
+     * @param clazz the class containing the static method
+     * @param methodName the name of the static method
+     * @param parameterTypes the parameter types identifying the overload
+     * @param returnValue the value to return when the method is called
+     */
+    public static <T, R> void when(Class<T> clazz, String methodName, Class<?>[] parameterTypes, R returnValue) {
+        registerBehavior(clazz, methodName, parameterTypes, returnValue);
+        logger.debug("Configured static method {}{} in class {} to return {}", methodName, 
+                    Arrays.toString(parameterTypes), clazz.getName(), returnValue);
+    }
+    
     /**
      * Configures a static method to throw the specified exception.
+     * The behavior applies to every overload of the method.
      * 
      * @param <T> the class type
      * @param clazz the class containing the static method
@@ -72,14 +149,28 @@ public class StaticMocker {
      * @param throwable the exception to throw when the method is called
      */
     public static <T> void whenThrow(Class<T> clazz, String methodName, Throwable throwable) {
-        ensurePrepared(clazz);
-        Map<String, Object> methodMap = staticMethodReturns.get(clazz);
-        methodMap.put(methodName, throwable);
+        registerBehavior(clazz, methodName, throwable);
         logger.debug("Configured static method {} in class {} to throw {}", methodName, clazz.getName(), throwable);
     }
     
+    /**
+     * Configures one overload of a static method to throw the specified exception.
+     * 
+     * @param <T> the class type
+     * @param clazz the class containing the static method
+     * @param methodName the name of the static method
+     * @param parameterTypes the parameter types identifying the overload
+     * @param throwable the exception to throw when the method is called
+     */
+    public static <T> void whenThrow(Class<T> clazz, String methodName, Class<?>[] parameterTypes, Throwable throwable) {
+        registerBehavior(clazz, methodName, parameterTypes, throwable);
+        logger.debug("Configured static method {}{} in class {} to throw {}", methodName, 
+                    Arrays.toString(parameterTypes), clazz.getName(), throwable);
+    }
+    
     /**
      * Configures a static method to use the specified implementation.
+     * The behavior applies to every overload of the method.
      * 
      * @param <T> the class type
      * @param <R> the return type of the method
@@ -88,15 +179,234 @@ public class StaticMocker {
      * @param implementation the function to execute when the method is called
      */
     public static <T, R> void whenImplement(Class<T> clazz, String methodName, Function<Object[], R> implementation) {
-        ensurePrepared(clazz);
-        Map<String, Object> methodMap = staticMethodReturns.get(clazz);
-        methodMap.put(methodName, implementation);
+        registerBehavior(clazz, methodName, implementation);
         logger.debug("Configured static method {} in class {} with custom implementation", methodName, clazz.getName());
     }
     
+    /**
+     * Configures one overload of a static method to use the specified implementation.
+     * 
+     * @param <T> the class type
+     * @param <R> the return type of the method
+     * @param clazz the class containing the static method
+     * @param methodName the name of the static method
+     * @param parameterTypes the parameter types identifying the overload
+     * @param implementation the function to execute when the method is called
+     */
+    public static <T, R> void whenImplement(Class<T> clazz, String methodName, Class<?>[] parameterTypes,
+                                            Function<Object[], R> implementation) {
+        registerBehavior(clazz, methodName, parameterTypes, implementation);
+        logger.debug("Configured static method {}{} in class {} with custom implementation", methodName, 
+                    Arrays.toString(parameterTypes), clazz.getName());
+    }
+    
+    /**
+     * Registers a behavior for every static overload of a method.
+     * 
+     * @param clazz the class containing the static method
+     * @param methodName the name of the static method
+     * @param behavior the return value, exception or implementation
+     */
+    private static void registerBehavior(Class<?> clazz, String methodName, Object behavior) {
+        ensurePrepared(clazz);
+        instrument(clazz, Collections.singleton(methodName));
+        if (!registerOwnerBehavior(clazz.getName(), clazz, methodName, behavior)) {
+            staticMethodReturns.get(clazz).put(methodName, behavior);
+        }
+    }
+    
+    /**
+     * Stores a behavior in the guard slots of every static overload of a method
+     * interned under the given owner key.
+     * 
+     * @param owner the owner key the method ids were interned under
+     * @param clazz the class declaring the static method
+     * @param methodName the name of the static method
+     * @param behavior the return value, exception or implementation
+     * @return true if the behavior was stored in the current thread's scope
+     */
+    static boolean registerOwnerBehavior(String owner, Class<?> clazz, String methodName, Object behavior) {
+        // Intern every overload so that slots are filled even before instrumentation
+        for (Method method : clazz.getDeclaredMethods()) {
+            if (Modifier.isStatic(method.getModifiers()) && method.getName().equals(methodName)) {
+                methodId(owner, methodName, descriptor(method));
+            }
+        }
+        StaticMockScope scope = StaticMockScope.current();
+        if (scope != null) {
+            scope.setMember(methodGuards, owner, methodName, 
+                           descriptor -> TypedReturn.specialize(behavior, descriptor));
+            return true;
+        }
+        methodGuards.setMember(owner, methodName, descriptor -> TypedReturn.specialize(behavior, descriptor));
+        return false;
+    }
+    
+    /**
+     * Clears the guard slots of every method interned under the given owner key.
+     * 
+     * @param owner the owner key
+     */
+    static void resetOwner(String owner) {
+        methodGuards.clearOwner(owner);
+    }
+    
+    /**
+     * Frees the method ids interned under the given owner key, once the
+     * classes instrumented with them have been discarded.
+     * 
+     * @param owner the owner key
+     * @return the number of ids released
+     */
+    static int releaseOwner(String owner) {
+        return methodGuards.releaseOwner(owner);
+    }
+    
+    /**
+     * Registers a behavior for a single static overload identified by its descriptor.
+     * 
+     * @param clazz the class containing the static method
+     * @param methodName the name of the static method
+     * @param parameterTypes the parameter types identifying the overload
+     * @param behavior the return value, exception or implementation
+     */
+    private static void registerBehavior(Class<?> clazz, String methodName, Class<?>[] parameterTypes, Object behavior) {
+        ensurePrepared(clazz);
+        instrument(clazz, Collections.singleton(methodName));
+        String descriptor;
+        try {
+            descriptor = descriptor(clazz.getDeclaredMethod(methodName, parameterTypes));
+        } catch (NoSuchMethodException e) {
+            throw new IllegalArgumentException("No static method " + methodName + Arrays.toString(parameterTypes)
+                    + " in class " + clazz.getName(), e);
+        }
+        int methodId = methodId(clazz.getName(), methodName, descriptor);
+        StaticMockScope scope = StaticMockScope.current();
+        if (scope != null) {
+            scope.set(methodGuards, methodId, TypedReturn.specialize(behavior, descriptor));
+            return;
+        }
+        staticMethodReturns.get(clazz).put(methodName + descriptor, behavior);
+        methodGuards.set(methodId, TypedReturn.specialize(behavior, descriptor));
+    }
+    
+    private static String descriptor(Method method) {
+        return MethodType.methodType(method.getReturnType(), method.getParameterTypes()).toMethodDescriptorString();
+    }
+    
+    /**
+     * Opens a scope on the current thread. Until the scope is closed, stubs
+     * registered on this thread are visible only to it, to threads it starts
+     * and to tasks wrapped by the scope.
+     * 
+     * @return the opened scope, to be closed when the test finishes
+     */
+    public static StaticMockScope openScope() {
+        return StaticMockScope.open();
+    }
+    
+    /**
+     * Runs an action inside a new static mock scope.
+     * 
+     * @param action the action that registers stubs and exercises the code under test
+     */
+    @SuppressWarnings("try")
+    public static void inScope(Runnable action) {
+        try (StaticMockScope ignored = openScope()) {
+            action.run();
+        }
+    }
+    
+    /**
+     * Runs an action inside a new static mock scope and returns its result.
+     * 
+     * @param <V> the result type
+     * @param action the action that registers stubs and exercises the code under test
+     * @return the result of the action
+     * @throws Exception if the action throws
+     */
+    @SuppressWarnings("try")
+    public static <V> V inScope(Callable<V> action) throws Exception {
+        try (StaticMockScope ignored = openScope()) {
+            return action.call();
+        }
+    }
+    
+    /**
+     * Opens a batch on the current thread. Until the batch is closed, classes
+     * prepared or restored on this thread are collected and then redefined
+     * together in a single redefinition.
+     * 
+     * @return the opened batch, to be closed once all mocks are set up
+     */
+    public static StaticMockBatch batch() {
+        return StaticMockBatch.open();
+    }
+    
+    /**
+     * Runs an action inside a batch, so that every class it prepares or
+     * restores is redefined once, together, when the action returns.
+     * 
+     * @param action the action that sets up or restores static mocks
+     */
+    @SuppressWarnings("try")
+    public static void batch(Runnable action) {
+        try (StaticMockBatch ignored = batch()) {
+            action.run();
+        }
+    }
+    
+    /**
+     * Returns the id of a static method, interning it on first use.
+     * Called by the instrumentation agent to obtain the constant that is
+     * baked into the modified method.
+     * 
+     * @param className the fully qualified name of the declaring class
+     * @param methodName the name of the static method
+     * @param descriptor the JVM descriptor of the method
+     * @return the method id
+     */
+    public static int methodId(String className, String methodName, String descriptor) {
+        return methodGuards.intern(className, methodName, descriptor);
+    }
+    
+    /**
+     * Returns the behavior registered for a method id.
+     * This method is called first from the bytecode-modified static methods and
+     * is the only call made when the method has no active stub. Stubs of the
+     * current thread's {@link StaticMockScope} take precedence over global ones.
+     * 
+     * @param methodId the id baked into the instrumented method
+     * @return the registered behavior, or null if the method is not stubbed
+     */
+    public static Object behaviorFor(int methodId) {
+        Object scoped = StaticMockScope.lookup(methodGuards, methodId);
+        return scoped != null ? scoped : methodGuards.get(methodId);
+    }
+    
+    /**
+     * Applies a behavior returned by {@link #behaviorFor(int)}.
+     * 
+     * @param behavior the registered return value, exception or implementation
+     * @param args the arguments passed to the method
+     * @return the value to return from the static method, or PROCEED
+     * @throws Throwable if the behavior is an exception
+     */
+    @SuppressWarnings("unchecked")
+    public static Object applyBehavior(Object behavior, Object[] args) throws Throwable {
+        if (behavior instanceof TypedReturn) {
+            return ((TypedReturn) behavior).boxed();
+        } else if (behavior instanceof Throwable) {
+            throw (Throwable) behavior;
+        } else if (behavior instanceof Function) {
+            return ((Function<Object[], Object>) behavior).apply(args);
+        } else {
+            return behavior;
+        }
+    }
+    
     /**
      * Handles a static method call.
-     * This method is called from the bytecode-modified static methods.
      * 
      * @param <R> the return type of the method
      * @param clazz the class containing the static method
@@ -107,23 +417,16 @@ public class StaticMocker {
      */
     @SuppressWarnings("unchecked")
     public static <R> R handleStaticMethodCall(Class<?> clazz, String methodName, Object[] args) throws Throwable {
-        Map<String, Object> methodMap = staticMethodReturns.get(clazz);
-        if (methodMap != null && methodMap.containsKey(methodName)) {
-            Object result = methodMap.get(methodName);
-            
-            if (result instanceof Throwable) {
-                throw (Throwable) result;
-            } else if (result instanceof Function) {
-                return ((Function<Object[], R>) result).apply(args);
-            } else {
-                return (R) result;
-            }
+        Object behavior = StaticMockScope.lookupMember(methodGuards, clazz.getName(), methodName);
+        if (behavior == null) {
+            Map<String, Object> methodMap = staticMethodReturns.get(clazz);
+            behavior = methodMap == null ? null : methodMap.get(methodName);
+        }
+        if (behavior == null) {
+            // If no mock configuration is found, indicate that the original method should be called
+            return (R) PROCEED;
         }
-        
-        // If no mock configuration is found, indicate that the original method should be called
-        logger.debug("No mock configuration found for static method {} in class {}, proceeding with original", 
-                    methodName, clazz.getName());
-        return (R) PROCEED;
+        return (R) applyBehavior(behavior, args);
     }
     
     /**
@@ -142,10 +445,27 @@ public class StaticMocker {
      */
     public static void resetAll() {
         staticMethodReturns.clear();
+        methodGuards.clearAll();
         StaticMethodAgent.reset();
         logger.info("Reset all static method mocks");
     }
     
+    /**
+     * Resets all static method mocks and restores every instrumented class to
+     * its original bytecode in a single redefinition. Intended to run once at
+     * the end of a test suite, e.g. from an {@code @AfterAll} method.
+     */
+    @SuppressWarnings("try")
+    public static void restoreAll() {
+        try (StaticMockBatch ignored = batch()) {
+            StaticMethodAgent.restoreAll();
+        } catch (Exception e) {
+            logger.error("Failed to restore classes modified for static mocking", e);
+            throw new RuntimeException("Failed to restore static mocks", e);
+        }
+        resetAll();
+    }
+    
     /**
      * Resets static method mocks for the specified class.
      * 
@@ -153,6 +473,7 @@ public class StaticMocker {
      */
     public static void reset(Class<?> clazz) {
         staticMethodReturns.remove(clazz);
+        methodGuards.clearOwner(clazz.getName());
         logger.info("Reset static method mocks for class: {}", clazz.getName());
     }
 } 
\ No newline at end of file
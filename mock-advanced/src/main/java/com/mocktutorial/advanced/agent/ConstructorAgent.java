@@ -1,8 +1,20 @@
 package com.mocktutorial.advanced.agent;
 
+import com.mocktutorial.advanced.StaticMockBatch;
+import com.mocktutorial.advanced.internal.StaticBytecodeEnhancer;
+import com.mocktutorial.core.internal.ClassPoolManager;
+
+import java.io.ByteArrayInputStream;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.Map;
 import javassist.*;
+import javassist.expr.ExprEditor;
+import javassist.expr.NewExpr;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -10,10 +22,16 @@ import org.slf4j.LoggerFactory;
  * Agent responsible for modifying class bytecode to enable constructor mocking.
  * This class uses Javassist to inject code into constructors that redirects
  * calls to the ConstructorMocker handler.
+ * <p>
+ * Two modes are supported: rewriting the constructors of the mocked class
+ * itself, and rewriting the {@code new} call sites inside chosen caller classes.
+ * Only the call-site mode can hand the mock instance back to the caller as-is.
  */
 public class ConstructorAgent {
     private static final Logger logger = LoggerFactory.getLogger(ConstructorAgent.class);
-    private static final Map<Class<?>, Boolean> modifiedClasses = new ConcurrentHashMap<>();
+    private static final Map<String, InstrumentationPath> modifiedClasses = new ConcurrentHashMap<>();
+    // Names of the constructed classes whose call sites are rewritten so far, per caller class name
+    private static final Map<String, Set<String>> callSiteTargets = new ConcurrentHashMap<>();
     
     /**
      * Modifies a class to enable constructor mocking.
@@ -24,133 +42,276 @@ public class ConstructorAgent {
      * @return true if the class was successfully modified, false otherwise
      */
     public static boolean modifyClass(Class<?> clazz) {
-        if (modifiedClasses.containsKey(clazz)) {
-            logger.debug("Class {} is already modified for constructor mocking", clazz.getName());
-            return modifiedClasses.get(clazz);
+        if (!StaticBytecodeEnhancer.isInstrumentationAvailable()) {
+            // A loaded class can only be changed by redefinition
+            logger.warn("Instrumentation not available, cannot modify constructors of loaded class {}", clazz.getName());
+            return false;
+        }
+        return modifyClass(clazz.getName(), clazz.getClassLoader()) != InstrumentationPath.FAILED;
+    }
+    
+    /**
+     * Modifies a class identified by name, which does not need to be loaded yet.
+     * A class that is not loaded is marked for transformation at load time;
+     * a loaded class is redefined.
+     *
+     * @param className fully qualified class name
+     * @param loader the class loader of the class
+     * @return the path used to install the instrumented class
+     */
+    public static InstrumentationPath modifyClass(String className, ClassLoader loader) {
+        if (LoadTimeTransformer.getInstance().clearFailure(className)) {
+            // The class was loaded unmodified; redefine it instead
+            modifiedClasses.remove(className);
+        }
+        InstrumentationPath previous = modifiedClasses.get(className);
+        if (previous != null && previous != InstrumentationPath.FAILED) {
+            logger.debug("Class {} is already modified for constructor mocking", className);
+            return InstrumentationPath.UNCHANGED;
         }
         
         try {
-            ClassPool classPool = ClassPool.getDefault();
-            
-            // Add the class path of the target class
-            classPool.appendClassPath(new ClassClassPath(clazz));
-            
-            // Get the CtClass (compile-time class) for modification
-            CtClass ctClass = classPool.get(clazz.getName());
-            
-            if (ctClass.isFrozen()) {
-                logger.warn("Class {} is frozen and cannot be modified", clazz.getName());
-                modifiedClasses.put(clazz, false);
-                return false;
+            InstrumentationPath path = MockAgent.apply(className, loader, 
+                    classfile -> instrumentConstructors(classfile, className));
+            logger.info("Successfully modified class {} for constructor mocking via {}", className, path);
+            if (path == InstrumentationPath.REDEFINITION) {
+                StaticMockBatch.onRollback(() -> modifiedClasses.remove(className));
             }
-            
-            // Process all constructors in the class
-            boolean anyConstructorModified = false;
+            modifiedClasses.put(className, path);
+            return path;
+        } catch (Exception e) {
+            logger.error("Failed to modify class " + className + " for constructor mocking", e);
+            modifiedClasses.put(className, InstrumentationPath.FAILED);
+            return InstrumentationPath.FAILED;
+        }
+    }
+    
+    /**
+     * Instruments the constructors in a class file without defining it.
+     * Constructor ids are interned under the given owner key, which lets
+     * several copies of the same class, e.g. in different sandboxes, be
+     * mocked independently.
+     *
+     * @param classfile the original class file
+     * @param owner the owner key the constructor ids are interned under
+     * @return the instrumented class file
+     * @throws Exception if the class file cannot be parsed or instrumented
+     */
+    public static byte[] instrumentConstructors(byte[] classfile, String owner) throws Exception {
+        CtClass ctClass = classPool().makeClass(new ByteArrayInputStream(classfile));
+        try {
             for (CtConstructor constructor : ctClass.getDeclaredConstructors()) {
                 if (!Modifier.isPrivate(constructor.getModifiers())) {
-                    modifyConstructor(ctClass, constructor);
-                    anyConstructorModified = true;
+                    modifyConstructor(ctClass, constructor, owner);
                 }
             }
-            
-            if (anyConstructorModified) {
-                // Replace the original class with our modified version
-                ctClass.toClass(clazz.getClassLoader(), clazz.getProtectionDomain());
-                logger.info("Successfully modified class {} for constructor mocking", clazz.getName());
-                modifiedClasses.put(clazz, true);
-                return true;
-            } else {
-                logger.info("No constructors to modify in class {}", clazz.getName());
-                modifiedClasses.put(clazz, false);
-                return false;
-            }
-        } catch (Exception e) {
-            logger.error("Failed to modify class " + clazz.getName() + " for constructor mocking", e);
-            modifiedClasses.put(clazz, false);
-            return false;
+            return ctClass.toBytecode();
+        } finally {
+            ctClass.detach();
         }
     }
     
     /**
      * Modifies a constructor to redirect calls through the ConstructorMocker handler.
+     * The constructor is interned into an id that is baked into the injected code,
+     * so an unmocked constructor only performs a single handler lookup before
+     * running its original body.
      *
      * @param ctClass the CtClass containing the constructor
      * @param constructor the constructor to modify
+     * @param owner the owner key the constructor id is interned under
      * @throws CannotCompileException if the constructor cannot be modified
      */
-    private static void modifyConstructor(CtClass ctClass, CtConstructor constructor) throws CannotCompileException, NotFoundException {
-        // Get the parameter types of the constructor
-        CtClass[] parameterTypes = constructor.getParameterTypes();
+    private static void modifyConstructor(CtClass ctClass, CtConstructor constructor, String owner) 
+            throws CannotCompileException {
+        int constructorId = com.mocktutorial.advanced.ConstructorMocker.constructorId(
+                owner, constructor.getSignature());
         
-        // Build the parameter types array string
-        StringBuilder paramTypesArray = new StringBuilder("new Class[] {");
-        for (int i = 0; i < parameterTypes.length; i++) {
-            if (i > 0) paramTypesArray.append(", ");
-            paramTypesArray.append(parameterTypes[i].getName()).append(".class");
-        }
-        paramTypesArray.append("}");
-        
-        // Build the constructor body
+        // Build the code inserted after the super()/this() call
         StringBuilder body = new StringBuilder();
         body.append("{\n");
+        body.append("    Object handler = com.mocktutorial.advanced.ConstructorMocker.handlerFor(")
+            .append(constructorId).append(");\n");
         
-        // Try to handle the constructor call through ConstructorMocker
-        body.append("    try {\n");
-        body.append("        Object[] args = new Object[]{");
-        
-        // Add parameters to args array
-        for (int i = 0; i < parameterTypes.length; i++) {
-            if (i > 0) body.append(", ");
-            body.append("$").append(i + 1);
-        }
-        body.append("};\n");
-        
-        // Call the ConstructorMocker handler
-        body.append("        Object mockResult = com.mocktutorial.advanced.ConstructorMocker.handleConstructorCall(");
-        body.append(ctClass.getName()).append(".class, args, ").append(paramTypesArray).append(");\n");
+        // Only allocate the argument array when a mock is configured
+        body.append("    if (handler != null) {\n");
+        body.append("        Object mockResult = com.mocktutorial.advanced.ConstructorMocker.applyHandler(handler, $args);\n");
+        body.append("        com.mocktutorial.advanced.ConstructorMocker.copyState(mockResult, this);\n");
+        body.append("        return;\n");
+        body.append("    }\n");
+        body.append("}");
         
-        // Check if the handler processed the call
-        body.append("        if (mockResult != com.mocktutorial.advanced.ConstructorMocker.PROCEED) {\n");
-        body.append("            // 将mockResult的所有字段赋值到this\n");
-        body.append("            java.lang.Class<?> clazz = mockResult.getClass();\n");
-        body.append("            while (clazz != null && clazz != Object.class) {\n");
-        body.append("                java.lang.reflect.Field[] fields = clazz.getDeclaredFields();\n");
-        body.append("                for (java.lang.reflect.Field f : fields) {\n");
-        body.append("                    if (java.lang.reflect.Modifier.isStatic(f.getModifiers())) continue;\n");
-        body.append("                    f.setAccessible(true);\n");
-        body.append("                    try { f.set(this, f.get(mockResult)); } catch (Throwable ignore) {}\n");
-        body.append("                }\n");
-        body.append("                clazz = clazz.getSuperclass();\n");
-        body.append("            }\n");
-        body.append("            return;\n");
-        body.append("        }\n");
+        // Keep the original constructor body after the injected check
+        constructor.insertBeforeBody(body.toString());
         
-        body.append("    } catch (Throwable e) {\n");
-        body.append("        if (e instanceof RuntimeException) throw (RuntimeException)e;\n");
-        body.append("        if (e instanceof Error) throw (Error)e;\n");
-        body.append("        throw new RuntimeException(\"ConstructorMocker error\", e);\n");
-        body.append("    }\n");
+        logger.debug("Modified constructor {} in class {} with id {}", 
+                    constructor.getSignature(), ctClass.getName(), constructorId);
+    }
+    
+    /**
+     * Modifies a caller class so that its {@code new} expressions for the given
+     * classes are routed through the ConstructorMocker handler.
+     * A mocked allocation returns the configured instance directly, without
+     * running the original constructor or copying fields.
+     * <p>
+     * The caller is loaded, so the rewritten class file is installed by
+     * redefinition, which requires the mock agent. Constructed classes are
+     * added incrementally: each call rewrites the original class file with
+     * every constructed class requested so far, and a call that adds no new
+     * class does not touch the caller at all.
+     *
+     * @param callerClass the class whose call sites should be rewritten
+     * @param constructedClasses the classes whose instantiation should be intercepted
+     * @return true if the call sites of every constructed class are rewritten, false otherwise
+     */
+    public static synchronized boolean modifyCallSites(Class<?> callerClass, Class<?>... constructedClasses) {
+        String callerName = callerClass.getName();
+        Set<String> requested = classNames(constructedClasses);
+        Set<String> rewritten = callSiteTargets.getOrDefault(callerName, Collections.emptySet());
+        if (rewritten.containsAll(requested)) {
+            logger.debug("Call sites of {} in class {} are already modified for constructor mocking",
+                        requested, callerName);
+            return true;
+        }
+        if (!StaticBytecodeEnhancer.isInstrumentationAvailable()) {
+            // A loaded class can only be changed by redefinition
+            logger.warn("Instrumentation not available, cannot rewrite constructor call sites of loaded class {}",
+                        callerName);
+            return false;
+        }
         
-        // Call the original constructor implementation
-        if (parameterTypes.length > 0) {
-            body.append("    this(");
-            for (int i = 0; i < parameterTypes.length; i++) {
-                if (i > 0) body.append(", ");
-                body.append("$").append(i + 1);
+        try {
+            ClassLoader loader = callerClass.getClassLoader();
+            Set<String> missing = new TreeSet<>(requested);
+            missing.removeAll(findCallSiteTargets(MockAgent.readClassFile(callerName, loader), requested));
+            if (!missing.isEmpty()) {
+                logger.warn("Class {} has no constructor call sites for {}", callerName, missing);
+                return false;
+            }
+            Set<String> targets = new TreeSet<>(rewritten);
+            targets.addAll(requested);
+            InstrumentationPath path = MockAgent.apply(callerName, loader,
+                    classfile -> rewriteCallSites(classfile, targets));
+            if (path == InstrumentationPath.REDEFINITION) {
+                Set<String> previous = callSiteTargets.get(callerName);
+                StaticMockBatch.onRollback(() -> restoreCallSiteEntry(callerName, previous));
             }
-            body.append(");\n");
+            callSiteTargets.put(callerName, targets);
+            logger.info("Rewrote constructor call sites of {} in class {} via {}", targets, callerName, path);
+            return true;
+        } catch (Exception e) {
+            logger.error("Failed to rewrite constructor call sites in class " + callerName, e);
+            return false;
+        }
+    }
+    
+    private static void restoreCallSiteEntry(String callerName, Set<String> constructedClassNames) {
+        if (constructedClassNames == null) {
+            callSiteTargets.remove(callerName);
         } else {
-            // For the default constructor, we need different handling
-            // This is a placeholder and would need to be properly implemented
-            body.append("    // Original constructor logic would be called here\n");
+            callSiteTargets.put(callerName, constructedClassNames);
         }
-        
-        body.append("}");
-        
-        // Set the constructor body
-        constructor.setBody(body.toString());
-        
-        logger.debug("Modified constructor {} in class {}", constructor.getSignature(), ctClass.getName());
+    }
+    
+    /**
+     * Returns which of the given classes are instantiated in a class file,
+     * without rewriting it.
+     */
+    private static Set<String> findCallSiteTargets(byte[] classfile, Set<String> constructedClassNames) 
+            throws Exception {
+        Set<String> found = new HashSet<>();
+        CtClass ctClass = classPool().makeClass(new ByteArrayInputStream(classfile));
+        try {
+            ctClass.instrument(new ExprEditor() {
+                @Override
+                public void edit(NewExpr newExpr) {
+                    if (constructedClassNames.contains(newExpr.getClassName())) {
+                        found.add(newExpr.getClassName());
+                    }
+                }
+            });
+            return found;
+        } finally {
+            ctClass.detach();
+        }
+    }
+    
+    /**
+     * Rewrites the constructor call sites in a class file.
+     * This is the byte-level variant of {@link #modifyCallSites(Class, Class...)}
+     * for callers that define or redefine the class themselves.
+     *
+     * @param classfile the original class file of the caller class
+     * @param constructedClassNames fully qualified names of the classes whose instantiation should be intercepted
+     * @return the rewritten class file
+     * @throws Exception if the class file cannot be parsed or rewritten
+     */
+    public static byte[] rewriteCallSites(byte[] classfile, Collection<String> constructedClassNames) throws Exception {
+        CtClass ctClass = classPool().makeClass(new ByteArrayInputStream(classfile));
+        try {
+            rewriteCallSites(ctClass, new HashSet<>(constructedClassNames));
+            return ctClass.toBytecode();
+        } finally {
+            ctClass.detach();
+        }
+    }
+    
+    /**
+     * Replaces every matching {@code new} expression (the NEW/DUP/INVOKESPECIAL
+     * sequence) with a handler lookup that either returns the mock instance or
+     * proceeds with the original allocation.
+     *
+     * @param ctClass the caller class
+     * @param constructedClassNames the classes whose instantiation should be intercepted
+     * @return the number of rewritten call sites
+     * @throws CannotCompileException if a call site cannot be rewritten
+     */
+    private static int rewriteCallSites(CtClass ctClass, Set<String> constructedClassNames) 
+            throws CannotCompileException {
+        int[] rewritten = new int[1];
+        ctClass.instrument(new ExprEditor() {
+            @Override
+            public void edit(NewExpr newExpr) throws CannotCompileException {
+                if (!constructedClassNames.contains(newExpr.getClassName())) {
+                    return;
+                }
+                int constructorId = com.mocktutorial.advanced.ConstructorMocker.constructorId(
+                        newExpr.getClassName(), newExpr.getSignature());
+                
+                StringBuilder body = new StringBuilder();
+                body.append("{\n");
+                body.append("    Object handler = com.mocktutorial.advanced.ConstructorMocker.handlerFor(")
+                    .append(constructorId).append(");\n");
+                body.append("    if (handler != null) {\n");
+                body.append("        $_ = ($r) com.mocktutorial.advanced.ConstructorMocker.applyHandler(handler, $args);\n");
+                body.append("    } else {\n");
+                body.append("        $_ = $proceed($$);\n");
+                body.append("    }\n");
+                body.append("}");
+                
+                newExpr.replace(body.toString());
+                rewritten[0]++;
+                logger.debug("Rewrote call site new {}{} at line {} in class {}", newExpr.getClassName(),
+                            newExpr.getSignature(), newExpr.getLineNumber(), ctClass.getName());
+            }
+        });
+        return rewritten[0];
+    }
+    
+    private static Set<String> classNames(Class<?>... classes) {
+        Set<String> names = new HashSet<>();
+        for (Class<?> clazz : classes) {
+            names.add(clazz.getName());
+        }
+        return names;
+    }
+    
+    /**
+     * Returns the pool used to parse class files handed to this agent as bytes.
+     * The framework classes referenced by the injected code resolve through it.
+     */
+    private static ClassPool classPool() {
+        return ClassPoolManager.forLoader(ConstructorAgent.class.getClassLoader());
     }
     
     /**
@@ -159,6 +320,7 @@ public class ConstructorAgent {
      */
     public static void reset() {
         modifiedClasses.clear();
+        callSiteTargets.clear();
         logger.info("Reset ConstructorAgent state");
     }
 } 
\ No newline at end of file
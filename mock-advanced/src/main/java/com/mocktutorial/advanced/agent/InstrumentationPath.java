@@ -0,0 +1,17 @@
+package com.mocktutorial.advanced.agent;
+
+/**
+ * Reports how instrumented bytecode was installed for a class.
+ */
+public enum InstrumentationPath {
+    /** The class was not loaded yet; it will be transformed by the agent when it is loaded. */
+    LOAD_TIME,
+    /** The class was already loaded and has been redefined through the agent. */
+    REDEFINITION,
+    /** No agent is available; the instrumented class was defined directly in its class loader. */
+    DEFINITION,
+    /** The requested members were already instrumented; nothing was changed. */
+    UNCHANGED,
+    /** The class could not be instrumented. */
+    FAILED
+}
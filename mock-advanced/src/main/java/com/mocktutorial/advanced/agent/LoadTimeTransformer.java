@@ -0,0 +1,155 @@
+package com.mocktutorial.advanced.agent;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.security.ProtectionDomain;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Class file transformer registered by {@link MockAgent}.
+ * <p>
+ * Classes that are prepared for mocking before they are loaded are marked
+ * here instead of being redefined. When the class is loaded, its class file
+ * is instrumented once and the mark is removed; later changes to the class
+ * go through redefinition. Redefinitions pass through unchanged.
+ * <p>
+ * A transformation that fails leaves the class loaded unmodified. The failure
+ * is recorded per class, so that the mocker which registered it can discard
+ * its bookkeeping and instrument the now loaded class by redefinition.
+ */
+public final class LoadTimeTransformer implements ClassFileTransformer {
+    private static final Logger logger = LoggerFactory.getLogger(LoadTimeTransformer.class);
+    private static final LoadTimeTransformer INSTANCE = new LoadTimeTransformer();
+
+    // Pending transformations by fully qualified class name
+    private final Map<String, Pending> pending = new ConcurrentHashMap<>();
+    // Names of the classes that were loaded unmodified because their transformation failed
+    private final Set<String> failed = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Instruments a class file.
+     */
+    @FunctionalInterface
+    public interface Transformation {
+        /**
+         * Returns the instrumented form of a class file.
+         *
+         * @param classfile the original class file
+         * @return the instrumented class file
+         * @throws Exception if the class file cannot be instrumented
+         */
+        byte[] apply(byte[] classfile) throws Exception;
+    }
+
+    private static final class Pending {
+        final ClassLoader loader;
+        final Transformation transformation;
+
+        Pending(ClassLoader loader, Transformation transformation) {
+            this.loader = loader;
+            this.transformation = transformation;
+        }
+    }
+
+    private LoadTimeTransformer() {
+    }
+
+    /**
+     * Returns the transformer instance shared by the agent and the mockers.
+     *
+     * @return the transformer
+     */
+    public static LoadTimeTransformer getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Marks a class for transformation when it is loaded. A later registration
+     * for the same class replaces the earlier one.
+     *
+     * @param className fully qualified class name
+     * @param loader the loader expected to load the class; classes defined by its parents also match
+     * @param transformation the instrumentation to apply to the class file
+     */
+    public void register(String className, ClassLoader loader, Transformation transformation) {
+        pending.put(className, new Pending(loader, transformation));
+        logger.debug("Marked class {} for load-time transformation", className);
+    }
+
+    /**
+     * Removes a pending transformation.
+     *
+     * @param className fully qualified class name
+     * @return true if the transformation was still pending, false if it was applied or never registered
+     */
+    public boolean unregister(String className) {
+        return pending.remove(className) != null;
+    }
+
+    /**
+     * Checks whether a class is waiting to be transformed at load time.
+     *
+     * @param className fully qualified class name
+     * @return true if a transformation is pending
+     */
+    public boolean isPending(String className) {
+        return pending.containsKey(className);
+    }
+
+    /**
+     * Clears the failure mark of a class whose load-time transformation
+     * failed. The mark is reported once: the caller that clears it is
+     * responsible for instrumenting the class again.
+     *
+     * @param className fully qualified class name
+     * @return true if the class was loaded unmodified because its transformation failed
+     */
+    public boolean clearFailure(String className) {
+        return failed.remove(className);
+    }
+
+    @Override
+    public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+                            ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+        if (className == null || classBeingRedefined != null) {
+            return null;
+        }
+        String name = className.replace('/', '.');
+        Pending transformation = pending.get(name);
+        if (transformation == null || !delegatesTo(transformation.loader, loader)
+                || !pending.remove(name, transformation)) {
+            return null;
+        }
+        try {
+            byte[] transformed = transformation.transformation.apply(classfileBuffer);
+            logger.info("Transformed class {} at load time", name);
+            return transformed;
+        } catch (Throwable e) {
+            // A transformer must not throw; the class is loaded unmodified
+            failed.add(name);
+            logger.error("Failed to transform class " + name + " at load time", e);
+            return null;
+        }
+    }
+
+    /**
+     * Removes all pending transformations and failure marks.
+     */
+    public void reset() {
+        pending.clear();
+        failed.clear();
+    }
+
+    private static boolean delegatesTo(ClassLoader expected, ClassLoader defining) {
+        for (ClassLoader loader = expected; loader != null; loader = loader.getParent()) {
+            if (loader == defining) {
+                return true;
+            }
+        }
+        return defining == null;
+    }
+}
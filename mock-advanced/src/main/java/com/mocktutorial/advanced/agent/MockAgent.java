@@ -1,38 +1,114 @@
 package com.mocktutorial.advanced.agent;
 
 import com.mocktutorial.advanced.internal.StaticBytecodeEnhancer;
+import com.mocktutorial.core.internal.ClassPoolManager;
+import javassist.CtClass;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.lang.instrument.Instrumentation;
+import java.util.Collections;
 
 /**
  * Java agent for the enhanced mock framework.
  * This agent provides instrumentation capabilities required for
  * advanced features like static method mocking.
+ * <p>
+ * The agent registers a {@link LoadTimeTransformer}, so classes prepared for
+ * mocking before they are loaded are instrumented when they are loaded, and
+ * only classes that are already loaded need to be redefined.
  */
 public class MockAgent {
     private static final Logger logger = LoggerFactory.getLogger(MockAgent.class);
-    
+
     /**
      * Premain method called when the JVM starts with this agent.
-     * 
+     *
      * @param agentArgs agent arguments
      * @param inst instrumentation instance
      */
     public static void premain(String agentArgs, Instrumentation inst) {
         logger.info("Enhanced Mock Framework Agent initialized");
-        StaticBytecodeEnhancer.setInstrumentation(inst);
+        install(inst);
     }
-    
+
     /**
      * Agentmain method called when the agent is attached to a running JVM.
-     * 
+     *
      * @param agentArgs agent arguments
      * @param inst instrumentation instance
      */
     public static void agentmain(String agentArgs, Instrumentation inst) {
         logger.info("Enhanced Mock Framework Agent attached to running JVM");
+        install(inst);
+    }
+
+    private static void install(Instrumentation inst) {
         StaticBytecodeEnhancer.setInstrumentation(inst);
+        inst.addTransformer(LoadTimeTransformer.getInstance());
+    }
+
+    /**
+     * Installs instrumented bytecode for a class, choosing the cheapest available path.
+     * A class that is not loaded yet is marked for load-time transformation, a
+     * loaded class is redefined, and without an agent the instrumented class is
+     * defined directly, which only works if it has not been loaded.
+     *
+     * @param className fully qualified class name
+     * @param loader the class loader of the class
+     * @param transformation the instrumentation to apply to the original class file
+     * @return the path that was used
+     * @throws Exception if the class cannot be instrumented or installed
+     */
+    public static InstrumentationPath apply(String className, ClassLoader loader,
+                                            LoadTimeTransformer.Transformation transformation) throws Exception {
+        LoadTimeTransformer transformer = LoadTimeTransformer.getInstance();
+        if (StaticBytecodeEnhancer.isInstrumentationAvailable()) {
+            Class<?> loaded = StaticBytecodeEnhancer.findLoadedClass(className, loader);
+            if (loaded == null) {
+                transformer.register(className, loader, transformation);
+                loaded = StaticBytecodeEnhancer.findLoadedClass(className, loader);
+                // The class may have been loaded concurrently before the mark was visible
+                if (loaded == null || !transformer.unregister(className)) {
+                    return InstrumentationPath.LOAD_TIME;
+                }
+            } else {
+                transformer.unregister(className);
+            }
+            byte[] instrumented = transformation.apply(readClassFile(className, loaded.getClassLoader()));
+            StaticBytecodeEnhancer.redefineClasses(Collections.singletonMap(loaded, instrumented));
+            return InstrumentationPath.REDEFINITION;
+        }
+
+        byte[] instrumented = transformation.apply(readClassFile(className, loader));
+        CtClass ctClass = ClassPoolManager.forLoader(loader).makeClass(new ByteArrayInputStream(instrumented));
+        try {
+            ctClass.toClass(loader, null);
+        } finally {
+            ctClass.detach();
+        }
+        return InstrumentationPath.DEFINITION;
+    }
+
+    /**
+     * Reads the original class file of a class without loading it.
+     *
+     * @param className fully qualified class name
+     * @param loader the class loader to read the class file from
+     * @return the class file
+     * @throws IOException if the class file cannot be found or read
+     */
+    public static byte[] readClassFile(String className, ClassLoader loader) throws IOException {
+        String resource = className.replace('.', '/') + ".class";
+        try (InputStream in = loader != null ? loader.getResourceAsStream(resource)
+                                             : ClassLoader.getSystemResourceAsStream(resource)) {
+            if (in == null) {
+                throw new IOException("Class file not found: " + resource);
+            }
+            return in.readAllBytes();
+        }
     }
-}
\ No newline at end of file
+}
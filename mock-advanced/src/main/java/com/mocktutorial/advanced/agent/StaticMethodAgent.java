@@ -1,21 +1,34 @@
 package com.mocktutorial.advanced.agent;
 
-import com.mocktutorial.advanced.internal.Jdk21Optimizer;
+import com.mocktutorial.advanced.StaticMockBatch;
+import com.mocktutorial.advanced.internal.StaticBytecodeEnhancer;
+import com.mocktutorial.advanced.internal.StaticMethodAdvice;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.Map;
-import javassist.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Agent responsible for modifying class bytecode to enable static method mocking.
- * This class uses Javassist to inject code into static methods that redirects
- * calls to the StaticMocker handler.
+ * A prologue that checks the StaticMocker handler is injected into each
+ * stubbed static method in place; see {@link StaticMethodAdvice}.
+ * <p>
+ * Only the methods that are actually stubbed are instrumented; the rest of the
+ * class keeps its original, inlinable bytecode.
  */
 public class StaticMethodAgent {
     private static final Logger logger = LoggerFactory.getLogger(StaticMethodAgent.class);
-    private static final Map<Class<?>, Boolean> modifiedClasses = new ConcurrentHashMap<>();
+    
+    // Names of the static methods instrumented so far, per class name
+    private static final Map<String, Set<String>> instrumentedMethods = new ConcurrentHashMap<>();
     
     /**
      * Modifies a class to enable static method mocking.
@@ -26,165 +39,145 @@ public class StaticMethodAgent {
      * @return true if the class was successfully modified, false otherwise
      */
     public static boolean modifyClass(Class<?> clazz) {
-        if (modifiedClasses.containsKey(clazz)) {
-            logger.debug("Class {} is already modified for static method mocking", clazz.getName());
-            return modifiedClasses.get(clazz);
+        Set<String> methodNames = new HashSet<>();
+        for (java.lang.reflect.Method method : clazz.getDeclaredMethods()) {
+            int modifiers = method.getModifiers();
+            if (java.lang.reflect.Modifier.isStatic(modifiers) && !java.lang.reflect.Modifier.isNative(modifiers)) {
+                methodNames.add(method.getName());
+            }
         }
-        
-        // Try JDK21 optimized path first if available
-        if (Jdk21Optimizer.isJdk21OrHigher() && Jdk21Optimizer.applyJdk21Optimizations(clazz)) {
-            logger.info("Applied JDK21 optimized static method mocking to class {}", clazz.getName());
-            modifiedClasses.put(clazz, true);
+        return modifyMethods(clazz, methodNames);
+    }
+    
+    /**
+     * Modifies only the given static methods of a class.
+     * Methods are added incrementally: each call re-instruments the original
+     * class file with every method requested so far, and a call that adds no
+     * new method does not touch the class at all.
+     *
+     * @param clazz the class to modify
+     * @param methodNames the names of the static methods to instrument
+     * @return true if the methods are instrumented, false otherwise
+     */
+    public static synchronized boolean modifyMethods(Class<?> clazz, Collection<String> methodNames) {
+        discardFailedTransformation(clazz.getName());
+        Set<String> instrumented = instrumentedMethods.getOrDefault(clazz.getName(), Collections.emptySet());
+        if (instrumented.containsAll(methodNames)) {
+            logger.debug("Methods {} of class {} are already modified for static method mocking", 
+                        methodNames, clazz.getName());
             return true;
         }
+        if (!StaticBytecodeEnhancer.isInstrumentationAvailable()) {
+            // A loaded class can only be changed by redefinition
+            logger.warn("Instrumentation not available, cannot modify static methods {} of loaded class {}",
+                        methodNames, clazz.getName());
+            return false;
+        }
         
-        // Fall back to standard Javassist implementation
+        return modifyMethods(clazz.getName(), clazz.getClassLoader(), methodNames) != InstrumentationPath.FAILED;
+    }
+    
+    /**
+     * Modifies the given static methods of a class identified by name, which
+     * does not need to be loaded yet. A class that is not loaded is marked for
+     * transformation at load time; a loaded class is redefined.
+     *
+     * @param className fully qualified class name
+     * @param loader the class loader of the class
+     * @param methodNames the names of the static methods to instrument
+     * @return the path used to install the instrumented class
+     */
+    public static synchronized InstrumentationPath modifyMethods(String className, ClassLoader loader, 
+                                                                 Collection<String> methodNames) {
+        discardFailedTransformation(className);
+        Set<String> instrumented = instrumentedMethods.getOrDefault(className, Collections.emptySet());
+        if (instrumented.containsAll(methodNames)) {
+            return InstrumentationPath.UNCHANGED;
+        }
+        Set<String> requested = new TreeSet<>(instrumented);
+        requested.addAll(methodNames);
         try {
-            ClassPool classPool = ClassPool.getDefault();
-            
-            // Add the class path of the target class
-            classPool.appendClassPath(new ClassClassPath(clazz));
-            
-            // Get the CtClass (compile-time class) for modification
-            CtClass ctClass = classPool.get(clazz.getName());
-            
-            if (ctClass.isFrozen()) {
-                logger.warn("Class {} is frozen and cannot be modified", clazz.getName());
-                modifiedClasses.put(clazz, false);
-                return false;
-            }
-            
-            // Process all static methods in the class
-            boolean anyMethodModified = false;
-            for (CtMethod method : ctClass.getDeclaredMethods()) {
-                if (Modifier.isStatic(method.getModifiers()) && !Modifier.isNative(method.getModifiers())) {
-                    modifyStaticMethod(ctClass, method);
-                    anyMethodModified = true;
-                }
-            }
-            
-            if (anyMethodModified) {
-                // Replace the original class with our modified version
-                ctClass.toClass(clazz.getClassLoader(), clazz.getProtectionDomain());
-                logger.info("Successfully modified class {} for static method mocking", clazz.getName());
-                modifiedClasses.put(clazz, true);
-                return true;
-            } else {
-                logger.info("No static methods to modify in class {}", clazz.getName());
-                modifiedClasses.put(clazz, false);
-                return false;
+            InstrumentationPath path = MockAgent.apply(className, loader, 
+                    classfile -> instrumentStaticMethods(classfile, className, requested));
+            if (path == InstrumentationPath.REDEFINITION) {
+                Set<String> previous = instrumentedMethods.get(className);
+                StaticMockBatch.onRollback(() -> restoreEntry(className, previous));
             }
+            instrumentedMethods.put(className, requested);
+            logger.info("Modified static methods {} of class {} via {}", requested, className, path);
+            return path;
         } catch (Exception e) {
-            logger.error("Failed to modify class " + clazz.getName() + " for static method mocking", e);
-            modifiedClasses.put(clazz, false);
-            return false;
+            logger.error("Failed to modify class " + className + " for static method mocking", e);
+            return InstrumentationPath.FAILED;
         }
     }
     
     /**
-     * Modifies a static method to redirect calls through the StaticMocker handler.
+     * Instruments the static methods in a class file without defining it.
+     * Method ids are interned under the given owner key, which lets several
+     * copies of the same class, e.g. in different sandboxes, be stubbed
+     * independently.
      *
-     * @param ctClass the CtClass containing the method
-     * @param method the static method to modify
-     * @throws CannotCompileException if the method cannot be modified
-     * @throws NotFoundException if a class or method cannot be found
+     * @param classfile the original class file
+     * @param owner the owner key the method ids are interned under
+     * @return the instrumented class file
      */
-    private static void modifyStaticMethod(CtClass ctClass, CtMethod method) 
-            throws CannotCompileException, NotFoundException {
-        // Create a unique name for the original method
-        String originalMethodName = method.getName() + "$original";
-        
-        // Rename the original method
-        method.setName(originalMethodName);
-        
-        // Create a new method with the original name that delegates to our handler
-        CtMethod newMethod = CtNewMethod.copy(method, method.getName(), ctClass, null);
-        
-        // Build the body for the new method
-        StringBuilder body = new StringBuilder();
-        body.append("{\n");
-        
-        // Try to handle the method call through StaticMocker
-        body.append("    try {\n");
-        body.append("        Object[] args = new Object[]{");
-        
-        // Add parameters to args array
-        for (int i = 0; i < method.getParameterTypes().length; i++) {
-            if (i > 0) body.append(", ");
-            body.append("$").append(i + 1);
-        }
-        body.append("};\n");
-        
-        // Call the StaticMocker handler
-        body.append("        Object result = com.mocktutorial.advanced.StaticMocker.handleStaticMethodCall(");
-        body.append(ctClass.getName()).append(".class, \"").append(method.getName()).append("\", args);\n");
-        
-        // Check if the handler processed the call
-        body.append("        if (result != com.mocktutorial.advanced.StaticMocker.PROCEED) {\n");
-        
-        // Handle method return based on return type
-        if (!method.getReturnType().equals(CtClass.voidType)) {
-            body.append("            return ");
-            appendCast(body, method.getReturnType());
-            body.append("result;\n");
+    public static byte[] instrumentStaticMethods(byte[] classfile, String owner) {
+        return instrumentStaticMethods(classfile, owner, null);
+    }
+    
+    /**
+     * Instruments the named static methods in a class file without defining it.
+     *
+     * @param classfile the original class file
+     * @param owner the owner key the method ids are interned under
+     * @param methodNames the names of the methods to instrument, or null for all static methods
+     * @return the instrumented class file
+     */
+    public static byte[] instrumentStaticMethods(byte[] classfile, String owner, Collection<String> methodNames) {
+        return StaticMethodAdvice.instrument(classfile, StaticMethodAdvice.Registry.STATIC_MOCKER, owner, methodNames);
+    }
+    
+    /**
+     * Restores every class instrumented by this agent to its original class
+     * file in a single redefinition, and drops pending load-time
+     * transformations. Without an agent only the bookkeeping is cleared.
+     *
+     * @return the number of restored classes
+     * @throws Exception if the class files cannot be read or redefinition fails
+     */
+    public static synchronized int restoreAll() throws Exception {
+        Map<Class<?>, byte[]> definitions = new LinkedHashMap<>();
+        for (Class<?> clazz : StaticBytecodeEnhancer.findLoadedClasses(instrumentedMethods.keySet())) {
+            definitions.put(clazz, MockAgent.readClassFile(clazz.getName(), clazz.getClassLoader()));
         }
-        body.append("        }\n");
-        
-        body.append("    } catch (Throwable e) {\n");
-        body.append("        if (e instanceof RuntimeException) throw (RuntimeException)e;\n");
-        body.append("        if (e instanceof Error) throw (Error)e;\n");
-        body.append("        throw new RuntimeException(\"StaticMocker error\", e);\n");
-        body.append("    }\n");
-        
-        // Call the original method if the handler didn't process the call
-        body.append("    return ");
-        if (method.getReturnType().equals(CtClass.voidType)) {
-            body.delete(body.length() - 7, body.length()); // Remove "return "
+        if (!definitions.isEmpty()) {
+            StaticBytecodeEnhancer.redefineClasses(definitions);
         }
-        
-        body.append(originalMethodName).append("(");
-        for (int i = 0; i < method.getParameterTypes().length; i++) {
-            if (i > 0) body.append(", ");
-            body.append("$").append(i + 1);
+        for (String className : new ArrayList<>(instrumentedMethods.keySet())) {
+            LoadTimeTransformer.getInstance().unregister(className);
+            Set<String> previous = instrumentedMethods.remove(className);
+            StaticMockBatch.onRollback(() -> restoreEntry(className, previous));
         }
-        body.append(");\n");
-        
-        body.append("}");
-        
-        newMethod.setBody(body.toString());
-        ctClass.addMethod(newMethod);
-        
-        logger.debug("Modified static method {}.{} for mocking", ctClass.getName(), method.getName());
+        logger.info("Restored {} classes modified for static method mocking", definitions.size());
+        return definitions.size();
     }
     
     /**
-     * Appends the appropriate cast based on the method return type.
-     *
-     * @param body the StringBuilder to append to
-     * @param returnType the return type of the method
-     * @throws NotFoundException if a class cannot be found
+     * Forgets the instrumented methods of a class whose load-time transformation
+     * failed, so that the next request instruments the loaded class by redefinition.
      */
-    private static void appendCast(StringBuilder body, CtClass returnType) throws NotFoundException {
-        if (returnType.isPrimitive()) {
-            if (returnType.equals(CtClass.booleanType)) {
-                body.append("((Boolean)result).booleanValue();\n");
-            } else if (returnType.equals(CtClass.byteType)) {
-                body.append("((Byte)result).byteValue();\n");
-            } else if (returnType.equals(CtClass.charType)) {
-                body.append("((Character)result).charValue();\n");
-            } else if (returnType.equals(CtClass.shortType)) {
-                body.append("((Short)result).shortValue();\n");
-            } else if (returnType.equals(CtClass.intType)) {
-                body.append("((Integer)result).intValue();\n");
-            } else if (returnType.equals(CtClass.longType)) {
-                body.append("((Long)result).longValue();\n");
-            } else if (returnType.equals(CtClass.floatType)) {
-                body.append("((Float)result).floatValue();\n");
-            } else if (returnType.equals(CtClass.doubleType)) {
-                body.append("((Double)result).doubleValue();\n");
-            }
+    private static void discardFailedTransformation(String className) {
+        if (LoadTimeTransformer.getInstance().clearFailure(className)) {
+            instrumentedMethods.remove(className);
+        }
+    }
+    
+    private static void restoreEntry(String className, Set<String> methodNames) {
+        if (methodNames == null) {
+            instrumentedMethods.remove(className);
         } else {
-            body.append("(").append(returnType.getName()).append(")");
+            instrumentedMethods.put(className, methodNames);
         }
     }
     
@@ -193,7 +186,7 @@ public class StaticMethodAgent {
      * This removes all cached class modification information.
      */
     public static void reset() {
-        modifiedClasses.clear();
+        instrumentedMethods.clear();
         logger.info("Reset StaticMethodAgent state");
     }
 } 
\ No newline at end of file
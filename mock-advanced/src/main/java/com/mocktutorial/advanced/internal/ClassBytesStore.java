@@ -0,0 +1,222 @@
+package com.mocktutorial.advanced.internal;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compact store for original class files that are kept for restoration.
+ * <p>
+ * Class files are deflate-compressed and appended to direct (off-heap) chunks;
+ * only a small index entry per class stays on the heap. Original class files
+ * are read rarely, when a class is re-instrumented or restored, so trading a
+ * decompression for the memory is worthwhile in large suites.
+ * <p>
+ * Each chunk counts the bytes of its live entries. A released entry is not
+ * reclaimed individually, but a chunk whose entries have all been released is
+ * dropped, and its native memory is freed with the buffer. A filled chunk whose
+ * live entries take less than a quarter of its used bytes is compacted: the
+ * remaining entries are copied, still compressed, to the current chunk, so a
+ * few long-lived classes cannot pin a mostly released chunk.
+ */
+public final class ClassBytesStore {
+    private static final int CHUNK_SIZE = 1 << 20;
+    // A filled chunk is compacted once less than 1/COMPACTION_DIVISOR of its used bytes are live
+    private static final int COMPACTION_DIVISOR = 4;
+
+    private final Map<String, Entry> index = new HashMap<>();
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final Inflater inflater = new Inflater();
+    private byte[] scratch = new byte[8192];
+    private Chunk current;
+    private int chunkCount;
+
+    private static final class Chunk {
+        final ByteBuffer buffer;
+        int liveBytes;
+
+        Chunk(int capacity) {
+            this.buffer = ByteBuffer.allocateDirect(capacity);
+        }
+    }
+
+    private static final class Entry {
+        final Chunk chunk;
+        final int offset;
+        final int compressedLength;
+        final int originalLength;
+
+        Entry(Chunk chunk, int offset, int compressedLength, int originalLength) {
+            this.chunk = chunk;
+            this.offset = offset;
+            this.compressedLength = compressedLength;
+            this.originalLength = originalLength;
+        }
+    }
+
+    /**
+     * Stores the class file of a class unless one is stored already.
+     *
+     * @param className fully qualified class name
+     * @param classfile the class file
+     * @return true if the class file was stored, false if the class already had one
+     */
+    public synchronized boolean putIfAbsent(String className, byte[] classfile) {
+        if (index.containsKey(className)) {
+            return false;
+        }
+        int length = compress(classfile);
+        index.put(className, append(ByteBuffer.wrap(scratch, 0, length), classfile.length));
+        return true;
+    }
+
+    /**
+     * Returns a copy of the stored class file of a class.
+     *
+     * @param className fully qualified class name
+     * @return the class file, or null if none is stored
+     */
+    public synchronized byte[] get(String className) {
+        Entry entry = index.get(className);
+        if (entry == null) {
+            return null;
+        }
+        ByteBuffer input = entry.chunk.buffer.duplicate();
+        input.limit(entry.offset + entry.compressedLength).position(entry.offset);
+        byte[] classfile = new byte[entry.originalLength];
+        inflater.reset();
+        inflater.setInput(input);
+        try {
+            int read = 0;
+            while (read < classfile.length && !inflater.finished()) {
+                read += inflater.inflate(classfile, read, classfile.length - read);
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Corrupted class bytes stored for class: " + className, e);
+        }
+        return classfile;
+    }
+
+    /**
+     * Releases the stored class file of a class.
+     *
+     * @param className fully qualified class name
+     * @return true if a class file was released
+     */
+    public synchronized boolean release(String className) {
+        Entry entry = index.remove(className);
+        if (entry == null) {
+            return false;
+        }
+        Chunk chunk = entry.chunk;
+        chunk.liveBytes -= entry.compressedLength;
+        if (chunk.liveBytes == 0) {
+            chunkCount--;
+            if (chunk == current) {
+                current = null;
+            }
+        } else if (chunk != current && chunk.liveBytes < chunk.buffer.position() / COMPACTION_DIVISOR) {
+            compact(chunk);
+        }
+        return true;
+    }
+
+    /**
+     * Releases all stored class files.
+     */
+    public synchronized void clear() {
+        index.clear();
+        current = null;
+        chunkCount = 0;
+    }
+
+    /**
+     * Checks whether a class file is stored for a class.
+     *
+     * @param className fully qualified class name
+     * @return true if a class file is stored
+     */
+    public synchronized boolean contains(String className) {
+        return index.containsKey(className);
+    }
+
+    /**
+     * Returns the number of stored class files.
+     *
+     * @return the number of entries
+     */
+    public synchronized int size() {
+        return index.size();
+    }
+
+    /**
+     * Returns the number of off-heap chunks that still hold live entries.
+     *
+     * @return the number of chunks
+     */
+    public synchronized int chunkCount() {
+        return chunkCount;
+    }
+
+    /**
+     * Appends compressed class bytes to the current chunk, starting a new
+     * chunk if they do not fit.
+     *
+     * @param compressed the compressed class file, from position to limit
+     * @param originalLength the length of the uncompressed class file
+     * @return the index entry for the appended bytes
+     */
+    private Entry append(ByteBuffer compressed, int originalLength) {
+        int length = compressed.remaining();
+        if (current == null || current.buffer.remaining() < length) {
+            current = new Chunk(Math.max(CHUNK_SIZE, length));
+            chunkCount++;
+        }
+        int offset = current.buffer.position();
+        current.buffer.put(compressed);
+        current.liveBytes += length;
+        return new Entry(current, offset, length, originalLength);
+    }
+
+    /**
+     * Moves the live entries of a chunk to the current chunk and drops it.
+     * Entries are copied as they are, without decompressing them.
+     *
+     * @param chunk a chunk other than the current one
+     */
+    private void compact(Chunk chunk) {
+        chunkCount--;
+        for (Map.Entry<String, Entry> indexed : index.entrySet()) {
+            Entry entry = indexed.getValue();
+            if (entry.chunk == chunk) {
+                ByteBuffer compressed = chunk.buffer.duplicate();
+                compressed.limit(entry.offset + entry.compressedLength).position(entry.offset);
+                indexed.setValue(append(compressed, entry.originalLength));
+            }
+        }
+    }
+
+    /**
+     * Compresses a class file into the scratch buffer.
+     *
+     * @param classfile the class file
+     * @return the compressed length
+     */
+    private int compress(byte[] classfile) {
+        deflater.reset();
+        deflater.setInput(classfile);
+        deflater.finish();
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == scratch.length) {
+                scratch = Arrays.copyOf(scratch, scratch.length * 2);
+            }
+            length += deflater.deflate(scratch, length, scratch.length - length);
+        }
+        return length;
+    }
+}
@@ -0,0 +1,222 @@
+package com.mocktutorial.advanced.internal;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Dense, id-indexed table of mock handlers for instrumented members.
+ * <p>
+ * Every instrumented member (constructor or method) is interned once, at
+ * instrumentation time, into an integer id that is baked into the generated
+ * bytecode as a constant. At call time the instrumented code only needs
+ * {@link #get(int)}: one volatile read of the slot array plus an array load,
+ * with no key building, hashing or allocation. A {@code null} slot means
+ * "not mocked, run the original code".
+ * <p>
+ * Writes are rare (stubbing and reset) and use copy-on-write so that readers
+ * never need to synchronize.
+ * <p>
+ * Ids of an owner whose instrumented classes are discarded can be released
+ * with {@link #releaseOwner(String)} and are then reused by later interning.
+ */
+public final class DispatchTable {
+    private static final Object[] EMPTY = new Object[0];
+
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private final Map<String, List<Integer>> memberIds = new ConcurrentHashMap<>();
+    private volatile Object[] slots = EMPTY;
+    private volatile String[] owners = new String[0];
+    private volatile String[] descriptors = new String[0];
+    // Released ids, reused before the tables grow; guarded by this
+    private final Deque<Integer> freeIds = new ArrayDeque<>();
+
+    /**
+     * Interns a member and returns its id, allocating a new id on first use.
+     *
+     * @param owner fully qualified name of the declaring class
+     * @param member member name, {@code <init>} for constructors
+     * @param descriptor JVM method descriptor of the member
+     * @return the stable id of the member
+     */
+    public int intern(String owner, String member, String descriptor) {
+        String key = key(owner, member, descriptor);
+        Integer id = ids.get(key);
+        if (id != null) {
+            return id;
+        }
+        synchronized (this) {
+            id = ids.get(key);
+            if (id == null) {
+                Integer free = freeIds.poll();
+                id = free != null ? free : owners.length;
+                int length = Math.max(owners.length, id + 1);
+                String[] newOwners = Arrays.copyOf(owners, length);
+                newOwners[id] = owner;
+                String[] newDescriptors = Arrays.copyOf(descriptors, length);
+                newDescriptors[id] = descriptor;
+                Object[] newSlots = Arrays.copyOf(slots, length);
+                newSlots[id] = null;
+                owners = newOwners;
+                descriptors = newDescriptors;
+                slots = newSlots;
+                ids.put(key, id);
+                memberIds.computeIfAbsent(owner + '#' + member, k -> new CopyOnWriteArrayList<>()).add(id);
+            }
+            return id;
+        }
+    }
+
+    /**
+     * Looks up the id of a member without interning it.
+     *
+     * @param owner fully qualified name of the declaring class
+     * @param member member name, {@code <init>} for constructors
+     * @param descriptor JVM method descriptor of the member
+     * @return the id of the member, or -1 if it was never interned
+     */
+    public int lookup(String owner, String member, String descriptor) {
+        Integer id = ids.get(key(owner, member, descriptor));
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * Returns the ids of every interned overload of a member.
+     *
+     * @param owner fully qualified name of the declaring class
+     * @param member member name
+     * @return the ids of all interned overloads, empty if none
+     */
+    public int[] lookupAll(String owner, String member) {
+        List<Integer> found = memberIds.get(owner + '#' + member);
+        if (found == null) {
+            return new int[0];
+        }
+        return found.stream().mapToInt(Integer::intValue).toArray();
+    }
+    
+    /**
+     * Returns the JVM descriptor a member was interned with.
+     *
+     * @param id the member id
+     * @return the descriptor of the member
+     */
+    public String descriptorOf(int id) {
+        return descriptors[id];
+    }
+    
+    /**
+     * Returns the handler stored for the given id.
+     * This is the only method on the hot path of instrumented code.
+     *
+     * @param id the member id
+     * @return the handler, or null if the member is not mocked
+     */
+    public Object get(int id) {
+        return slots[id];
+    }
+
+    /**
+     * Stores a handler for the given id.
+     *
+     * @param id the member id
+     * @param handler the handler, or null to clear the slot
+     */
+    public synchronized void set(int id, Object handler) {
+        Object[] newSlots = slots.clone();
+        newSlots[id] = handler;
+        slots = newSlots;
+    }
+
+    /**
+     * Stores a handler for every interned overload of a member.
+     *
+     * @param owner fully qualified name of the declaring class
+     * @param member member name
+     * @param handlerForDescriptor creates the handler for an overload from its descriptor
+     */
+    public synchronized void setMember(String owner, String member, Function<String, Object> handlerForDescriptor) {
+        int[] memberSlots = lookupAll(owner, member);
+        if (memberSlots.length == 0) {
+            return;
+        }
+        Object[] newSlots = slots.clone();
+        for (int id : memberSlots) {
+            newSlots[id] = handlerForDescriptor.apply(descriptors[id]);
+        }
+        slots = newSlots;
+    }
+    
+    /**
+     * Clears the handlers of every member declared by the given class.
+     *
+     * @param owner fully qualified name of the declaring class
+     */
+    public synchronized void clearOwner(String owner) {
+        Object[] newSlots = slots.clone();
+        String[] currentOwners = owners;
+        for (int i = 0; i < newSlots.length; i++) {
+            if (owner.equals(currentOwners[i])) {
+                newSlots[i] = null;
+            }
+        }
+        slots = newSlots;
+    }
+
+    /**
+     * Forgets every member declared by the given owner and frees their ids for
+     * reuse. Only call this once no class instrumented with these ids can run
+     * any more, e.g. when the class loader that defined them is discarded.
+     *
+     * @param owner fully qualified name of the declaring class, or owner key
+     * @return the number of ids released
+     */
+    public synchronized int releaseOwner(String owner) {
+        String prefix = owner + '#';
+        ids.keySet().removeIf(key -> key.startsWith(prefix));
+        memberIds.keySet().removeIf(key -> key.startsWith(prefix));
+        Object[] newSlots = slots.clone();
+        String[] newOwners = owners.clone();
+        String[] newDescriptors = descriptors.clone();
+        int released = 0;
+        for (int i = 0; i < newOwners.length; i++) {
+            if (owner.equals(newOwners[i])) {
+                newSlots[i] = null;
+                newOwners[i] = null;
+                newDescriptors[i] = null;
+                freeIds.push(i);
+                released++;
+            }
+        }
+        owners = newOwners;
+        descriptors = newDescriptors;
+        slots = newSlots;
+        return released;
+    }
+
+    /**
+     * Returns the number of members currently interned.
+     *
+     * @return the number of live ids
+     */
+    public synchronized int size() {
+        return owners.length - freeIds.size();
+    }
+
+    /**
+     * Clears all handlers. Interned ids stay valid because they are baked
+     * into already instrumented classes.
+     */
+    public synchronized void clearAll() {
+        slots = new Object[slots.length];
+    }
+
+    private static String key(String owner, String member, String descriptor) {
+        return owner + '#' + member + descriptor;
+    }
+}
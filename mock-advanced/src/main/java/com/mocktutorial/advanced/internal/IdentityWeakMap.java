@@ -0,0 +1,156 @@
+package com.mocktutorial.advanced.internal;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Concurrent map that compares keys by identity and holds them weakly.
+ * <p>
+ * Mock instances are often domain objects whose {@code hashCode} and
+ * {@code equals} are overridden, may be expensive, may change as fields
+ * change, or may even be stubbed themselves. Keys are therefore hashed with
+ * {@link System#identityHashCode(Object)} and compared with {@code ==}, and an
+ * entry disappears once its key is no longer reachable.
+ *
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+public final class IdentityWeakMap<K, V> {
+    private final Map<Object, V> entries = new ConcurrentHashMap<>();
+    private final ReferenceQueue<Object> collected = new ReferenceQueue<>();
+
+    /**
+     * Returns the value mapped to a key.
+     *
+     * @param key the key, compared by identity
+     * @return the value, or null if the key is not mapped
+     */
+    public V get(K key) {
+        return entries.get(new Probe(key));
+    }
+
+    /**
+     * Maps a key to a value.
+     *
+     * @param key the key, compared by identity
+     * @param value the value
+     * @return the previous value, or null
+     */
+    public V put(K key, V value) {
+        expunge();
+        return entries.put(new WeakKey(key, collected), value);
+    }
+
+    /**
+     * Returns the value mapped to a key, computing and storing it if absent.
+     *
+     * @param key the key, compared by identity
+     * @param mapping computes the value for an absent key
+     * @return the current or computed value
+     */
+    public V computeIfAbsent(K key, Function<? super K, ? extends V> mapping) {
+        V value = get(key);
+        if (value != null) {
+            return value;
+        }
+        expunge();
+        return entries.computeIfAbsent(new WeakKey(key, collected), k -> mapping.apply(key));
+    }
+
+    /**
+     * Removes the mapping of a key.
+     *
+     * @param key the key, compared by identity
+     * @return the removed value, or null
+     */
+    public V remove(K key) {
+        expunge();
+        return entries.remove(new Probe(key));
+    }
+
+    /**
+     * Returns whether the map has no live entries.
+     *
+     * @return true if the map is empty
+     */
+    public boolean isEmpty() {
+        expunge();
+        return entries.isEmpty();
+    }
+
+    /**
+     * Removes all entries.
+     */
+    public void clear() {
+        entries.clear();
+        expunge();
+    }
+
+    /**
+     * Drops the entries whose keys have been garbage collected.
+     */
+    private void expunge() {
+        Object reference;
+        while ((reference = collected.poll()) != null) {
+            entries.remove(reference);
+        }
+    }
+
+    /**
+     * Key stored in the map. Once the referent is collected, the key is only
+     * equal to itself, which is enough to remove it.
+     */
+    private static final class WeakKey extends WeakReference<Object> {
+        private final int hash;
+
+        WeakKey(Object referent, ReferenceQueue<Object> queue) {
+            super(referent, queue);
+            this.hash = System.identityHashCode(referent);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) {
+                return true;
+            }
+            Object referent = get();
+            if (referent == null) {
+                return false;
+            }
+            if (other instanceof WeakKey) {
+                return ((WeakKey) other).get() == referent;
+            }
+            return other instanceof Probe && ((Probe) other).referent == referent;
+        }
+    }
+
+    /**
+     * Short-lived key used for lookups, so that no weak reference is created.
+     */
+    private static final class Probe {
+        private final Object referent;
+
+        Probe(Object referent) {
+            this.referent = referent;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(referent);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof WeakKey && ((WeakKey) other).get() == referent
+                    || other instanceof Probe && ((Probe) other).referent == referent;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.mocktutorial.advanced.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Set;
+import java.util.function.BiFunction;
+
+/**
+ * Child-first class loader that defines its own copies of selected classes.
+ * <p>
+ * Classes in the sandboxed set, and their nested classes, are read from the
+ * parent loader's resources, passed through a transformer and defined in this
+ * loader. Every other class, including the mock framework itself, is
+ * delegated to the parent, so the sandboxed copies share the framework's
+ * handler registries with the code that configures them.
+ */
+public class SandboxClassLoader extends ClassLoader {
+    static {
+        registerAsParallelCapable();
+    }
+
+    private final Set<String> sandboxedClasses;
+    private final BiFunction<String, byte[], byte[]> transformer;
+
+    /**
+     * Creates a sandbox class loader.
+     *
+     * @param parent the loader to read class files from and delegate to
+     * @param sandboxedClasses fully qualified names of the classes to define child-first
+     * @param transformer transforms the original class file of a sandboxed class, given its name
+     */
+    public SandboxClassLoader(ClassLoader parent, Set<String> sandboxedClasses,
+                              BiFunction<String, byte[], byte[]> transformer) {
+        super(parent);
+        this.sandboxedClasses = sandboxedClasses;
+        this.transformer = transformer;
+    }
+
+    @Override
+    protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+        if (!isSandboxed(name)) {
+            return super.loadClass(name, resolve);
+        }
+        synchronized (getClassLoadingLock(name)) {
+            Class<?> loaded = findLoadedClass(name);
+            if (loaded == null) {
+                byte[] bytecode = transformer.apply(name, readClassFile(name));
+                loaded = defineClass(name, bytecode, 0, bytecode.length);
+            }
+            if (resolve) {
+                resolveClass(loaded);
+            }
+            return loaded;
+        }
+    }
+
+    /**
+     * Checks whether a class is defined by this loader rather than its parent.
+     *
+     * @param name fully qualified class name
+     * @return true if the class or its enclosing class is sandboxed
+     */
+    public boolean isSandboxed(String name) {
+        if (sandboxedClasses.contains(name)) {
+            return true;
+        }
+        for (int nested = name.indexOf('$'); nested > 0; nested = name.indexOf('$', nested + 1)) {
+            if (sandboxedClasses.contains(name.substring(0, nested))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private byte[] readClassFile(String name) throws ClassNotFoundException {
+        try (InputStream in = getParent().getResourceAsStream(name.replace('.', '/') + ".class")) {
+            if (in == null) {
+                throw new ClassNotFoundException(name);
+            }
+            return in.readAllBytes();
+        } catch (IOException e) {
+            throw new ClassNotFoundException(name, e);
+        }
+    }
+}
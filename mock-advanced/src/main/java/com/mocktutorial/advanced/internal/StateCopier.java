@@ -0,0 +1,176 @@
+package com.mocktutorial.advanced.internal;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.VarHandle;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Copies the instance fields of one object into another object of the same class.
+ * <p>
+ * Used by constructor mocking, which copies the state of the configured
+ * instance into every object whose constructor is mocked. Instead of
+ * reflective {@code Field.get}/{@code Field.set} per field and call, the copier
+ * is compiled once per class:
+ * <ul>
+ *   <li>For each class in the hierarchy, a hidden class is defined as a nestmate
+ *       of that class, with a single static method that copies the non-final
+ *       fields using plain {@code getfield}/{@code putfield}.</li>
+ *   <li>If a hidden class cannot be defined, e.g. because the class is in a
+ *       module that is not open to the framework, its non-final fields are
+ *       copied through {@link VarHandle}s.</li>
+ *   <li>Final fields, which bytecode may only write in constructors, are copied
+ *       through unreflected getter and setter {@link MethodHandle}s.</li>
+ * </ul>
+ */
+public final class StateCopier {
+    private static final MethodType COPY_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
+    private static final String COPY_DESCRIPTOR = COPY_TYPE.toMethodDescriptorString();
+
+    private final Class<?> type;
+    private final MethodHandle[] generated;
+    private final VarHandle[] varHandles;
+    private final MethodHandle[] finalGetters;
+    private final MethodHandle[] finalSetters;
+
+    private StateCopier(Class<?> type, List<MethodHandle> generated, List<VarHandle> varHandles,
+                        List<MethodHandle> finalGetters, List<MethodHandle> finalSetters) {
+        this.type = type;
+        this.generated = generated.toArray(new MethodHandle[0]);
+        this.varHandles = varHandles.toArray(new VarHandle[0]);
+        this.finalGetters = finalGetters.toArray(new MethodHandle[0]);
+        this.finalSetters = finalSetters.toArray(new MethodHandle[0]);
+    }
+
+    /**
+     * Compiles a copier for the instance fields declared by a class and its superclasses.
+     *
+     * @param type the class whose instances are copied
+     * @return the copier
+     * @throws ReflectiveOperationException if some field cannot be accessed
+     */
+    static StateCopier compile(Class<?> type) throws ReflectiveOperationException {
+        List<MethodHandle> generated = new ArrayList<>();
+        List<VarHandle> varHandles = new ArrayList<>();
+        List<MethodHandle> finalGetters = new ArrayList<>();
+        List<MethodHandle> finalSetters = new ArrayList<>();
+        for (Class<?> current = type; current != null && current != Object.class; current = current.getSuperclass()) {
+            List<Field> mutable = new ArrayList<>();
+            for (Field field : current.getDeclaredFields()) {
+                if (Modifier.isStatic(field.getModifiers())) {
+                    continue;
+                }
+                if (Modifier.isFinal(field.getModifiers())) {
+                    field.setAccessible(true);
+                    finalGetters.add(MethodHandles.lookup().unreflectGetter(field)
+                                                  .asType(MethodType.methodType(Object.class, Object.class)));
+                    finalSetters.add(MethodHandles.lookup().unreflectSetter(field)
+                                                  .asType(MethodType.methodType(void.class, Object.class, Object.class)));
+                } else {
+                    mutable.add(field);
+                }
+            }
+            if (mutable.isEmpty()) {
+                continue;
+            }
+            MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(current, MethodHandles.lookup());
+            MethodHandle copier = defineCopier(lookup, current, mutable);
+            if (copier != null) {
+                generated.add(copier);
+            } else {
+                for (Field field : mutable) {
+                    varHandles.add(lookup.unreflectVarHandle(field));
+                }
+            }
+        }
+        return new StateCopier(type, generated, varHandles, finalGetters, finalSetters);
+    }
+
+    /**
+     * Defines a hidden nestmate of a class that copies the given fields.
+     *
+     * @return a {@code (Object, Object)void} handle of the copy method, or null
+     *         if the lookup cannot define hidden classes
+     */
+    private static MethodHandle defineCopier(MethodHandles.Lookup lookup, Class<?> owner, List<Field> fields)
+            throws ReflectiveOperationException {
+        if ((lookup.lookupModes() & MethodHandles.Lookup.MODULE) == 0) {
+            // Hidden classes need full privilege access, which is lost across modules
+            return null;
+        }
+        String ownerName = Type.getInternalName(owner);
+        ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        writer.visit(Opcodes.V17, Opcodes.ACC_FINAL | Opcodes.ACC_SUPER | Opcodes.ACC_SYNTHETIC,
+                     ownerName + "$$StateCopier", null, "java/lang/Object", null);
+        MethodVisitor copy = writer.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "copy", COPY_DESCRIPTOR,
+                                                null, null);
+        copy.visitCode();
+        for (Field field : fields) {
+            String descriptor = Type.getDescriptor(field.getType());
+            copy.visitVarInsn(Opcodes.ALOAD, 1);
+            copy.visitTypeInsn(Opcodes.CHECKCAST, ownerName);
+            copy.visitVarInsn(Opcodes.ALOAD, 0);
+            copy.visitTypeInsn(Opcodes.CHECKCAST, ownerName);
+            copy.visitFieldInsn(Opcodes.GETFIELD, ownerName, field.getName(), descriptor);
+            copy.visitFieldInsn(Opcodes.PUTFIELD, ownerName, field.getName(), descriptor);
+        }
+        copy.visitInsn(Opcodes.RETURN);
+        copy.visitMaxs(0, 0);
+        copy.visitEnd();
+        writer.visitEnd();
+        MethodHandles.Lookup hidden = lookup.defineHiddenClass(writer.toByteArray(), true,
+                                                               MethodHandles.Lookup.ClassOption.NESTMATE);
+        return hidden.findStatic(hidden.lookupClass(), "copy", COPY_TYPE);
+    }
+
+    /**
+     * Returns the class this copier was compiled for.
+     *
+     * @return the class
+     */
+    public Class<?> type() {
+        return type;
+    }
+
+    /**
+     * Returns whether every non-final field is copied by generated code.
+     *
+     * @return true if no field falls back to a VarHandle
+     */
+    public boolean isFullyGenerated() {
+        return varHandles.length == 0;
+    }
+
+    /**
+     * Copies all instance fields from one object to another.
+     *
+     * @param source the object to copy from, an instance of {@link #type()}
+     * @param target the object to copy to, an instance of {@link #type()}
+     */
+    public void copy(Object source, Object target) {
+        try {
+            for (MethodHandle copier : generated) {
+                copier.invokeExact(source, target);
+            }
+            for (VarHandle field : varHandles) {
+                field.set(target, field.get(source));
+            }
+            for (int i = 0; i < finalSetters.length; i++) {
+                finalSetters[i].invokeExact(target, (Object) finalGetters[i].invokeExact(source));
+            }
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException("Failed to copy state of " + type.getName(), e);
+        }
+    }
+}
@@ -1,30 +1,52 @@
 package com.mocktutorial.advanced.internal;
 
+import com.mocktutorial.advanced.StaticMockBatch;
+import com.mocktutorial.advanced.agent.InstrumentationPath;
+import com.mocktutorial.advanced.agent.LoadTimeTransformer;
+import com.mocktutorial.advanced.agent.MockAgent;
+import com.mocktutorial.core.internal.ClassPoolManager;
 import javassist.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayInputStream;
 import java.lang.instrument.ClassDefinition;
 import java.lang.instrument.Instrumentation;
-import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Enhanced bytecode manipulator specifically designed for modifying static methods.
- * This class uses Javassist to alter the bytecode of classes to enable static method mocking.
+ * A prologue dispatching to the StaticMockHandler is injected into the stubbed
+ * methods in place, see {@link StaticMethodAdvice}.
+ * <p>
+ * Methods are instrumented lazily, when they are first stubbed. New methods are
+ * merged into the set instrumented so far and the class is rebuilt from its
+ * original bytecode, so untouched methods keep their original form.
+ * <p>
+ * Redefinitions requested while a {@link StaticMockBatch} is open on the
+ * calling thread are collected and applied when the batch is closed.
  */
 public class StaticBytecodeEnhancer {
     private static final Logger logger = LoggerFactory.getLogger(StaticBytecodeEnhancer.class);
     private static Instrumentation instrumentation;
+    
+    // Names of the static methods currently instrumented, per class
+    private static final Map<String, Set<String>> instrumentedMethods = new ConcurrentHashMap<>();
     private final ClassPool classPool;
     
     /**
      * Creates a new StaticBytecodeEnhancer.
      */
     public StaticBytecodeEnhancer() {
-        this.classPool = ClassPool.getDefault();
-        // Add the class loader path to ensure all required classes can be found
-        this.classPool.appendClassPath(new LoaderClassPath(getClass().getClassLoader()));
+        // One shared, bounded pool per loader instead of appending to the default pool
+        this.classPool = ClassPoolManager.forLoader(getClass().getClassLoader());
     }
     
     /**
@@ -36,6 +58,53 @@ public class StaticBytecodeEnhancer {
         instrumentation = inst;
     }
     
+    /**
+     * Returns whether an agent has provided an Instrumentation instance.
+     * 
+     * @return true if classes can be redefined
+     */
+    public static boolean isInstrumentationAvailable() {
+        return instrumentation != null;
+    }
+    
+    /**
+     * Finds a class that has already been loaded, without triggering loading.
+     * 
+     * @param className fully qualified class name
+     * @param loader the initiating class loader
+     * @return the loaded class, or null if it is not loaded or no agent is available
+     */
+    public static Class<?> findLoadedClass(String className, ClassLoader loader) {
+        if (instrumentation == null) {
+            return null;
+        }
+        for (Class<?> loaded : instrumentation.getInitiatedClasses(loader)) {
+            if (loaded.getName().equals(className)) {
+                return loaded;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Finds loaded classes by name, without triggering loading.
+     * 
+     * @param classNames fully qualified class names
+     * @return the loaded classes with one of the names, in any class loader
+     */
+    public static Collection<Class<?>> findLoadedClasses(Collection<String> classNames) {
+        Collection<Class<?>> found = new ArrayList<>();
+        if (instrumentation == null || classNames.isEmpty()) {
+            return found;
+        }
+        for (Class<?> loaded : instrumentation.getAllLoadedClasses()) {
+            if (classNames.contains(loaded.getName())) {
+                found.add(loaded);
+            }
+        }
+        return found;
+    }
+    
     /**
      * Modifies all static methods in a class to delegate to the StaticMockHandler.
      * 
@@ -44,115 +113,131 @@ public class StaticBytecodeEnhancer {
      * @throws Exception if modification fails
      */
     public byte[] modifyAllStaticMethods(String className) throws Exception {
-        CtClass ctClass = classPool.get(className);
-        
-        // Store original bytecode if not already stored
-        byte[] originalBytes = ctClass.toBytecode();
-        StaticMockHandler.storeOriginalBytecode(className, originalBytes);
-        
-        // Get all methods from the class
-        CtMethod[] methods = ctClass.getDeclaredMethods();
-        
-        for (CtMethod method : methods) {
-            if (Modifier.isStatic(method.getModifiers()) && !Modifier.isNative(method.getModifiers())) {
-                modifyStaticMethod(ctClass, method);
-            }
-        }
-        
-        byte[] modifiedBytes = ctClass.toBytecode();
-        ctClass.detach(); // Release resources
-        return modifiedBytes;
+        return modifyStaticMethods(className, null);
     }
     
     /**
-     * Modifies a specific static method to delegate to the StaticMockHandler.
+     * Modifies the named static methods in a class to delegate to the StaticMockHandler.
+     * The bytecode is always derived from the original class file, so repeated
+     * calls with a growing set of names never instrument a method twice.
      * 
-     * @param ctClass the class containing the method
-     * @param method the method to modify
+     * @param className fully qualified class name
+     * @param methodNames the names of the methods to modify, or null for all static methods
+     * @return the modified class bytecode
      * @throws Exception if modification fails
      */
-    private void modifyStaticMethod(CtClass ctClass, CtMethod method) throws Exception {
-        String methodName = method.getName();
-        CtClass returnType = method.getReturnType();
-        
-        // Create a new method that will hold the original implementation
-        String originalMethodName = methodName + "$original";
-        CtMethod originalMethod = CtNewMethod.copy(method, originalMethodName, ctClass, null);
-        
-        // Make the original method private
-        originalMethod.setModifiers(Modifier.PRIVATE | Modifier.STATIC);
-        ctClass.addMethod(originalMethod);
-        
-        // Modify the original method to delegate to StaticMockHandler
-        StringBuilder body = new StringBuilder();
-        body.append("{\n");
-        
-        // Prepare method parameters for delegation
-        body.append("    Object[] args = new Object[" + method.getParameterTypes().length + "];\n");
-        for (int i = 0; i < method.getParameterTypes().length; i++) {
-            body.append("    args[" + i + "] = ($w)$" + (i + 1) + ";\n");
-        }
-        
-        // Call the handler
-        body.append("    Object result = com.mocktutorial.advanced.internal.StaticMockHandler.handleStaticMethodCall(\"")
-            .append(ctClass.getName())
-            .append("\", \"")
-            .append(methodName)
-            .append("\", args);\n");
-        
-        // Check if we should call the original method
-        body.append("    if (result == null) {\n");
-        body.append("        // No mock behavior defined, call original method\n");
-        
-        // Call the original method
-        if (!returnType.equals(CtClass.voidType)) {
-            body.append("        return ");
-        } else {
-            body.append("        ");
-        }
-        
-        body.append(originalMethodName).append("(");
-        for (int i = 0; i < method.getParameterTypes().length; i++) {
-            if (i > 0) body.append(", ");
-            body.append("$").append(i + 1);
+    public byte[] modifyStaticMethods(String className, Collection<String> methodNames) throws Exception {
+        // Store original bytecode if not already stored
+        byte[] originalBytes = StaticMockHandler.getOriginalBytecode(className);
+        if (originalBytes == null) {
+            CtClass loaded = classPool.get(className);
+            originalBytes = loaded.toBytecode();
+            loaded.detach();
+            StaticMockHandler.storeOriginalBytecode(className, originalBytes);
         }
-        body.append(");\n");
         
-        if (returnType.equals(CtClass.voidType)) {
-            body.append("        return;\n");
+        return StaticMethodAdvice.instrument(originalBytes, StaticMethodAdvice.Registry.STATIC_MOCK_HANDLER, 
+                                            className, methodNames);
+    }
+    
+    /**
+     * Instruments the given static methods of a class, adding them to the
+     * methods instrumented earlier, and redefines the class once.
+     * 
+     * @param clazz the class to modify
+     * @param methodNames the names of the methods to instrument
+     * @return true if the class was redefined, false if all methods were already instrumented
+     * @throws Exception if modification or redefinition fails
+     */
+    public boolean instrumentMethods(Class<?> clazz, Collection<String> methodNames) throws Exception {
+        return instrumentMethods(Collections.singletonMap(clazz, methodNames)) > 0;
+    }
+    
+    /**
+     * Instruments the given static methods of a class identified by name.
+     * A class that is not loaded yet is transformed when it is loaded;
+     * a loaded class is redefined.
+     * 
+     * @param className fully qualified class name
+     * @param loader the class loader of the class
+     * @param methodNames the names of the methods to instrument
+     * @return the path used to install the instrumented class
+     */
+    public InstrumentationPath instrumentMethods(String className, ClassLoader loader, Collection<String> methodNames) {
+        synchronized (instrumentedMethods) {
+            discardFailedTransformation(className);
+            Set<String> instrumented = instrumentedMethods.getOrDefault(className, Collections.emptySet());
+            if (instrumented.containsAll(methodNames)) {
+                return InstrumentationPath.UNCHANGED;
+            }
+            Set<String> requested = new TreeSet<>(instrumented);
+            requested.addAll(methodNames);
+            try {
+                InstrumentationPath path = MockAgent.apply(className, loader, classfile -> {
+                    StaticMockHandler.storeOriginalBytecode(className, classfile);
+                    return StaticMethodAdvice.instrument(classfile, StaticMethodAdvice.Registry.STATIC_MOCK_HANDLER,
+                                                         className, requested);
+                });
+                if (path == InstrumentationPath.REDEFINITION) {
+                    rememberForRollback(className);
+                }
+                instrumentedMethods.put(className, requested);
+                logger.info("Instrumented static methods {} of class {} via {}", requested, className, path);
+                return path;
+            } catch (Exception e) {
+                logger.error("Failed to instrument static methods of class " + className, e);
+                return InstrumentationPath.FAILED;
+            }
         }
-        
-        body.append("    }\n");
-        
-        // Return the result from the handler
-        if (!returnType.equals(CtClass.voidType)) {
-            if (returnType.isPrimitive()) {
-                if (returnType.equals(CtClass.booleanType)) {
-                    body.append("    return ((Boolean)result).booleanValue();\n");
-                } else if (returnType.equals(CtClass.byteType)) {
-                    body.append("    return ((Byte)result).byteValue();\n");
-                } else if (returnType.equals(CtClass.charType)) {
-                    body.append("    return ((Character)result).charValue();\n");
-                } else if (returnType.equals(CtClass.shortType)) {
-                    body.append("    return ((Short)result).shortValue();\n");
-                } else if (returnType.equals(CtClass.intType)) {
-                    body.append("    return ((Integer)result).intValue();\n");
-                } else if (returnType.equals(CtClass.longType)) {
-                    body.append("    return ((Long)result).longValue();\n");
-                } else if (returnType.equals(CtClass.floatType)) {
-                    body.append("    return ((Float)result).floatValue();\n");
-                } else if (returnType.equals(CtClass.doubleType)) {
-                    body.append("    return ((Double)result).doubleValue();\n");
+    }
+    
+    /**
+     * Instruments the given static methods of several classes in one batch.
+     * Classes whose requested methods are all instrumented already are skipped;
+     * the others are redefined together in a single redefinition.
+     * 
+     * @param methodsByClass the names of the methods to instrument, per class
+     * @return the number of redefined classes
+     * @throws Exception if modification or redefinition fails
+     */
+    public int instrumentMethods(Map<Class<?>, ? extends Collection<String>> methodsByClass) throws Exception {
+        synchronized (instrumentedMethods) {
+            Map<Class<?>, byte[]> definitions = new LinkedHashMap<>();
+            Map<String, Set<String>> updated = new HashMap<>();
+            for (Map.Entry<Class<?>, ? extends Collection<String>> entry : methodsByClass.entrySet()) {
+                String className = entry.getKey().getName();
+                discardFailedTransformation(className);
+                Set<String> instrumented = instrumentedMethods.getOrDefault(className, Collections.emptySet());
+                if (instrumented.containsAll(entry.getValue())) {
+                    continue;
                 }
-            } else {
-                body.append("    return (").append(returnType.getName()).append(")result;\n");
+                Set<String> requested = new TreeSet<>(instrumented);
+                requested.addAll(entry.getValue());
+                definitions.put(entry.getKey(), modifyStaticMethods(className, requested));
+                updated.put(className, requested);
+            }
+            if (definitions.isEmpty()) {
+                return 0;
+            }
+            redefineClasses(definitions);
+            for (String className : updated.keySet()) {
+                rememberForRollback(className);
             }
+            instrumentedMethods.putAll(updated);
+            logger.info("Instrumented static methods {}", updated);
+            return definitions.size();
+        }
+    }
+    
+    /**
+     * Forgets the instrumented methods of a class whose load-time transformation
+     * failed, so that the next request instruments the loaded class by redefinition.
+     * Must be called while holding the lock on {@code instrumentedMethods}.
+     */
+    private static void discardFailedTransformation(String className) {
+        if (LoadTimeTransformer.getInstance().clearFailure(className)) {
+            instrumentedMethods.remove(className);
         }
-        
-        body.append("}");
-        
-        method.setBody(body.toString());
-        logger.debug("Modified static method: {}.{}", ctClass.getName(), methodName);
     }
     
     /**
@@ -163,13 +248,33 @@ public class StaticBytecodeEnhancer {
      * @throws Exception if redefinition fails
      */
     public void redefineClass(Class<?> clazz, byte[] newBytecode) throws Exception {
+        redefineClasses(Collections.singletonMap(clazz, newBytecode));
+    }
+    
+    /**
+     * Redefines several classes in a single redefinition. While a
+     * {@link StaticMockBatch} is open on the calling thread, the classes are
+     * added to the batch instead.
+     * 
+     * @param definitions the new bytecode per class
+     * @throws Exception if redefinition fails
+     */
+    public static void redefineClasses(Map<Class<?>, byte[]> definitions) throws Exception {
         if (instrumentation == null) {
             throw new IllegalStateException("Instrumentation not available. Java agent not loaded.");
         }
+        if (StaticMockBatch.defer(definitions)) {
+            logger.debug("Deferred redefinition of classes to the open batch: {}", definitions.keySet());
+            return;
+        }
         
-        ClassDefinition definition = new ClassDefinition(clazz, newBytecode);
-        instrumentation.redefineClasses(definition);
-        logger.info("Redefined class: {}", clazz.getName());
+        ClassDefinition[] classDefinitions = new ClassDefinition[definitions.size()];
+        int i = 0;
+        for (Map.Entry<Class<?>, byte[]> entry : definitions.entrySet()) {
+            classDefinitions[i++] = new ClassDefinition(entry.getKey(), entry.getValue());
+        }
+        instrumentation.redefineClasses(classDefinitions);
+        logger.info("Redefined classes: {}", definitions.keySet());
     }
     
     /**
@@ -186,6 +291,69 @@ public class StaticBytecodeEnhancer {
         
         Class<?> clazz = Class.forName(className);
         redefineClass(clazz, originalBytes);
+        rememberForRollback(className);
+        releaseOriginal(className, originalBytes);
+        instrumentedMethods.remove(className);
         logger.info("Restored class to original bytecode: {}", className);
     }
+    
+    /**
+     * Restores every instrumented class to its original bytecode in a single
+     * redefinition. Intended to run once at the end of a test suite.
+     * 
+     * @return the number of restored classes
+     * @throws Exception if restoration fails
+     */
+    public int restoreAll() throws Exception {
+        synchronized (instrumentedMethods) {
+            Map<Class<?>, byte[]> definitions = new LinkedHashMap<>();
+            for (Class<?> clazz : findLoadedClasses(instrumentedMethods.keySet())) {
+                byte[] originalBytes = StaticMockHandler.getOriginalBytecode(clazz.getName());
+                if (originalBytes != null) {
+                    definitions.put(clazz, originalBytes);
+                }
+            }
+            if (!definitions.isEmpty()) {
+                redefineClasses(definitions);
+            }
+            for (Map.Entry<Class<?>, byte[]> entry : definitions.entrySet()) {
+                releaseOriginal(entry.getKey().getName(), entry.getValue());
+            }
+            for (String className : new ArrayList<>(instrumentedMethods.keySet())) {
+                rememberForRollback(className);
+                instrumentedMethods.remove(className);
+            }
+            logger.info("Restored {} classes to original bytecode", definitions.size());
+            return definitions.size();
+        }
+    }
+    
+    /**
+     * Releases the stored original bytecode of a restored class. If the open
+     * batch fails to apply, the bytecode is stored again.
+     * 
+     * @param className fully qualified class name
+     * @param originalBytes the original bytecode
+     */
+    private static void releaseOriginal(String className, byte[] originalBytes) {
+        StaticMockHandler.releaseOriginalBytecode(className);
+        StaticMockBatch.onRollback(() -> StaticMockHandler.storeOriginalBytecode(className, originalBytes));
+    }
+    
+    /**
+     * Restores the instrumented methods recorded for a class if the open
+     * batch fails to apply.
+     * 
+     * @param className fully qualified class name
+     */
+    private static void rememberForRollback(String className) {
+        Set<String> previous = instrumentedMethods.get(className);
+        StaticMockBatch.onRollback(() -> {
+            if (previous == null) {
+                instrumentedMethods.remove(className);
+            } else {
+                instrumentedMethods.put(className, previous);
+            }
+        });
+    }
 }
\ No newline at end of file
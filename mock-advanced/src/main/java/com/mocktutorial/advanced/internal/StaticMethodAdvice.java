@@ -0,0 +1,256 @@
+package com.mocktutorial.advanced.internal;
+
+import com.mocktutorial.advanced.PrivateMethodMocker;
+import com.mocktutorial.advanced.StaticMocker;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.AdviceAdapter;
+
+import java.util.Collection;
+
+/**
+ * ASM transformer that injects a mock prologue into static methods in place.
+ * <p>
+ * The original method body is kept as it is; only a compact prologue is
+ * inserted in front of it. No {@code $original} copy or delegating wrapper is
+ * generated, so an instrumented class has the same members as the original
+ * and the unmocked path stays close to the uninstrumented code in size. The
+ * prologue is equivalent to:
+ * <pre>
+ * Object behavior = Registry.behaviorFor(ID);
+ * if (behavior != null) {
+ *     if (behavior instanceof TypedReturn.OfInt) return ((TypedReturn.OfInt) behavior).value;
+ *     Object result = Registry.applyBehavior(behavior, args);
+ *     if (result != PROCEED) return (ReturnType) result;
+ * }
+ * // original body
+ * </pre>
+ * The typed branch is only emitted for {@code int}, {@code long}, {@code double}
+ * and {@code boolean} methods. Exceptions registered as behaviors are thrown
+ * as they are.
+ * <p>
+ * For the {@link Registry#PRIVATE_METHOD_MOCKER} registry the same prologue is
+ * injected into private instance methods instead, and the receiver is passed
+ * to {@code behaviorFor(ID, this)} so that stubs can be looked up per instance.
+ */
+public final class StaticMethodAdvice {
+
+    /**
+     * The registry the generated prologue dispatches to.
+     */
+    public enum Registry {
+        /** Dispatches to {@link StaticMocker}; {@link StaticMocker#PROCEED} runs the original body. */
+        STATIC_MOCKER(Type.getInternalName(StaticMocker.class), true, false) {
+            @Override
+            int methodId(String owner, String methodName, String descriptor) {
+                return StaticMocker.methodId(owner, methodName, descriptor);
+            }
+        },
+        /** Dispatches to {@link StaticMockHandler}; a null result runs the original body. */
+        STATIC_MOCK_HANDLER(Type.getInternalName(StaticMockHandler.class), false, false) {
+            @Override
+            int methodId(String owner, String methodName, String descriptor) {
+                return StaticMockHandler.methodId(owner, methodName, descriptor);
+            }
+        },
+        /**
+         * Dispatches private instance methods to {@link PrivateMethodMocker};
+         * {@link PrivateMethodMocker#PROCEED} runs the original body.
+         */
+        PRIVATE_METHOD_MOCKER(Type.getInternalName(PrivateMethodMocker.class), true, true) {
+            @Override
+            int methodId(String owner, String methodName, String descriptor) {
+                return PrivateMethodMocker.methodId(owner, methodName, descriptor);
+            }
+        };
+
+        private final String internalName;
+        private final boolean proceedSentinel;
+        private final boolean instanceMethods;
+
+        Registry(String internalName, boolean proceedSentinel, boolean instanceMethods) {
+            this.internalName = internalName;
+            this.proceedSentinel = proceedSentinel;
+            this.instanceMethods = instanceMethods;
+        }
+
+        boolean accepts(int access, String name) {
+            if ((access & (Opcodes.ACC_NATIVE | Opcodes.ACC_ABSTRACT)) != 0) {
+                return false;
+            }
+            if (instanceMethods) {
+                return (access & (Opcodes.ACC_STATIC | Opcodes.ACC_PRIVATE)) == Opcodes.ACC_PRIVATE
+                        && !"<init>".equals(name);
+            }
+            return (access & Opcodes.ACC_STATIC) != 0 && !"<clinit>".equals(name);
+        }
+
+        abstract int methodId(String owner, String methodName, String descriptor);
+    }
+
+    private static final String OBJECT = "java/lang/Object";
+    private static final String BEHAVIOR_FOR_DESCRIPTOR = "(I)Ljava/lang/Object;";
+    private static final String INSTANCE_BEHAVIOR_FOR_DESCRIPTOR = "(ILjava/lang/Object;)Ljava/lang/Object;";
+    private static final String APPLY_BEHAVIOR_DESCRIPTOR = "(Ljava/lang/Object;[Ljava/lang/Object;)Ljava/lang/Object;";
+
+    private StaticMethodAdvice() {
+    }
+
+    /**
+     * Injects the mock prologue into the named methods of a class file: static
+     * methods, or private instance methods for an instance registry.
+     *
+     * @param classfile the original class file
+     * @param registry the registry the prologue dispatches to
+     * @param owner the owner key the method ids are interned under
+     * @param methodNames the names of the methods to instrument, or null for all eligible methods
+     * @return the instrumented class file
+     */
+    public static byte[] instrument(byte[] classfile, Registry registry, String owner, Collection<String> methodNames) {
+        ClassReader reader = new ClassReader(classfile);
+        // Frames of the original code are kept; the prologue emits its own
+        ClassWriter writer = new ClassWriter(reader, ClassWriter.COMPUTE_MAXS);
+        reader.accept(new ClassVisitor(Opcodes.ASM9, writer) {
+            private boolean framesRequired;
+            private String className;
+
+            @Override
+            public void visit(int version, int access, String name, String signature, String superName,
+                              String[] interfaces) {
+                framesRequired = (version & 0xFFFF) >= Opcodes.V1_6;
+                className = name;
+                super.visit(version, access, name, signature, superName, interfaces);
+            }
+
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String descriptor, String signature,
+                                             String[] exceptions) {
+                MethodVisitor visitor = super.visitMethod(access, name, descriptor, signature, exceptions);
+                if (!registry.accepts(access, name) || (methodNames != null && !methodNames.contains(name))) {
+                    return visitor;
+                }
+                int methodId = registry.methodId(owner, name, descriptor);
+                return new Prologue(visitor, access, name, descriptor, className, registry, methodId, framesRequired);
+            }
+        }, ClassReader.EXPAND_FRAMES);
+        return writer.toByteArray();
+    }
+
+    /**
+     * Emits the prologue at method entry. The behavior and the result are kept
+     * on the operand stack, so no local variables are added to the method.
+     */
+    private static final class Prologue extends AdviceAdapter {
+        private final Registry registry;
+        private final int methodId;
+        private final boolean framesRequired;
+        private final Type returnType;
+        private final Object[] entryLocals;
+
+        Prologue(MethodVisitor visitor, int access, String name, String descriptor, String className,
+                 Registry registry, int methodId, boolean framesRequired) {
+            super(Opcodes.ASM9, visitor, access, name, descriptor);
+            this.registry = registry;
+            this.methodId = methodId;
+            this.framesRequired = framesRequired;
+            this.returnType = Type.getReturnType(descriptor);
+            this.entryLocals = frameLocals(registry.instanceMethods ? className : null, Type.getArgumentTypes(descriptor));
+        }
+
+        @Override
+        protected void onMethodEnter() {
+            Label proceed = new Label();
+            push(methodId);
+            if (registry.instanceMethods) {
+                loadThis();
+                visitMethodInsn(INVOKESTATIC, registry.internalName, "behaviorFor", INSTANCE_BEHAVIOR_FOR_DESCRIPTOR,
+                                false);
+            } else {
+                visitMethodInsn(INVOKESTATIC, registry.internalName, "behaviorFor", BEHAVIOR_FOR_DESCRIPTOR, false);
+            }
+            visitInsn(DUP);
+            visitJumpInsn(IFNULL, proceed);
+
+            // Private stubs are stored as registered, so only static registries get the typed branch
+            String typedClass = registry.instanceMethods ? null : TypedReturn.typedClassName(returnType.getClassName());
+            if (typedClass != null) {
+                String typedInternalName = typedClass.replace('.', '/');
+                Label generic = new Label();
+                visitInsn(DUP);
+                visitTypeInsn(INSTANCEOF, typedInternalName);
+                visitJumpInsn(IFEQ, generic);
+                visitTypeInsn(CHECKCAST, typedInternalName);
+                visitFieldInsn(GETFIELD, typedInternalName, "value", returnType.getDescriptor());
+                returnValue();
+                visitLabel(generic);
+                stackFrame();
+            }
+
+            loadArgArray();
+            visitMethodInsn(INVOKESTATIC, registry.internalName, "applyBehavior", APPLY_BEHAVIOR_DESCRIPTOR, false);
+            visitInsn(DUP);
+            if (registry.proceedSentinel) {
+                visitFieldInsn(GETSTATIC, registry.internalName, "PROCEED", "Ljava/lang/Object;");
+                visitJumpInsn(IF_ACMPEQ, proceed);
+            } else {
+                visitJumpInsn(IFNULL, proceed);
+            }
+            if (returnType.getSort() == Type.VOID) {
+                visitInsn(POP);
+            } else {
+                unbox(returnType);
+            }
+            returnValue();
+
+            visitLabel(proceed);
+            stackFrame();
+            visitInsn(POP);
+        }
+
+        /**
+         * Declares the frame at a prologue branch target: the receiver, if any,
+         * and the method arguments as locals and one object on the operand stack.
+         */
+        private void stackFrame() {
+            if (framesRequired) {
+                visitFrame(F_NEW, entryLocals.length, entryLocals, 1, new Object[]{OBJECT});
+            }
+        }
+
+        private static Object[] frameLocals(String receiver, Type[] argumentTypes) {
+            int offset = receiver != null ? 1 : 0;
+            Object[] locals = new Object[argumentTypes.length + offset];
+            if (receiver != null) {
+                locals[0] = receiver;
+            }
+            for (int i = 0; i < argumentTypes.length; i++) {
+                locals[i + offset] = frameType(argumentTypes[i]);
+            }
+            return locals;
+        }
+
+        private static Object frameType(Type type) {
+            switch (type.getSort()) {
+                case Type.BOOLEAN:
+                case Type.BYTE:
+                case Type.CHAR:
+                case Type.SHORT:
+                case Type.INT:
+                    return INTEGER;
+                case Type.FLOAT:
+                    return FLOAT;
+                case Type.LONG:
+                    return LONG;
+                case Type.DOUBLE:
+                    return DOUBLE;
+                default:
+                    return type.getInternalName();
+            }
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package com.mocktutorial.advanced.internal;
 
+import com.mocktutorial.advanced.StaticMockScope;
+
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
@@ -10,6 +12,9 @@ import org.slf4j.LoggerFactory;
  * Handles interception and processing of static method calls for mocking.
  * This class is used internally by the framework to route static method calls
  * to their appropriate mock implementations.
+ * <p>
+ * Instrumented methods first read their behavior slot by a baked-in method id,
+ * so methods without an active stub never box arguments or enter the handler.
  */
 public class StaticMockHandler {
     private static final Logger logger = LoggerFactory.getLogger(StaticMockHandler.class);
@@ -17,8 +22,11 @@ public class StaticMockHandler {
     // Map of class name -> method name -> mock behavior
     private static final Map<String, Map<String, Object>> staticMockBehaviors = new ConcurrentHashMap<>();
     
-    // Map to store original method byte code for restoration
-    private static final Map<String, byte[]> originalClassBytes = new ConcurrentHashMap<>();
+    // Per-method guard slots indexed by the id baked into the instrumented method
+    private static final DispatchTable methodGuards = new DispatchTable();
+    
+    // Compressed off-heap copies of the original class files, kept for restoration
+    private static final ClassBytesStore originalClassBytes = new ClassBytesStore();
 
     /**
      * Registers a behavior for a static method.
@@ -28,11 +36,106 @@ public class StaticMockHandler {
      * @param behavior the behavior to apply (return value, exception, or function)
      */
     public static void registerBehavior(String className, String methodName, Object behavior) {
-        Map<String, Object> methodMap = staticMockBehaviors.computeIfAbsent(className, k -> new ConcurrentHashMap<>());
-        methodMap.put(methodName, behavior);
+        StaticMockScope scope = StaticMockScope.current();
+        if (scope != null) {
+            scope.setMember(methodGuards, className, methodName, descriptor -> TypedReturn.specialize(behavior, descriptor));
+            logger.debug("Registered scoped behavior for static method {}.{}", className, methodName);
+            return;
+        }
+        synchronized (methodGuards) {
+            Map<String, Object> methodMap = staticMockBehaviors.computeIfAbsent(className, k -> new ConcurrentHashMap<>());
+            methodMap.put(methodName, behavior);
+            methodGuards.setMember(className, methodName, descriptor -> TypedReturn.specialize(behavior, descriptor));
+        }
         logger.debug("Registered behavior for static method {}.{}", className, methodName);
     }
     
+    /**
+     * Registers a behavior for a single overload of a static method.
+     * 
+     * @param className fully qualified class name
+     * @param methodName method name
+     * @param descriptor JVM descriptor identifying the overload
+     * @param behavior the behavior to apply (return value, exception, or function)
+     */
+    public static void registerBehavior(String className, String methodName, String descriptor, Object behavior) {
+        StaticMockScope scope = StaticMockScope.current();
+        if (scope != null) {
+            scope.set(methodGuards, methodGuards.intern(className, methodName, descriptor), 
+                     TypedReturn.specialize(behavior, descriptor));
+            logger.debug("Registered scoped behavior for static method {}.{}{}", className, methodName, descriptor);
+            return;
+        }
+        synchronized (methodGuards) {
+            Map<String, Object> methodMap = staticMockBehaviors.computeIfAbsent(className, k -> new ConcurrentHashMap<>());
+            methodMap.put(methodName + descriptor, behavior);
+            methodGuards.set(methodGuards.intern(className, methodName, descriptor), TypedReturn.specialize(behavior, descriptor));
+        }
+        logger.debug("Registered behavior for static method {}.{}{}", className, methodName, descriptor);
+    }
+    
+    /**
+     * Returns the id of a static method, interning it on first use.
+     * Called by the bytecode enhancer to obtain the constant baked into the method.
+     * <p>
+     * A behavior registered by name before the method was instrumented could not
+     * be stored in a slot yet, so it is copied into the slot of the new id here.
+     * 
+     * @param className fully qualified class name
+     * @param methodName method name
+     * @param descriptor JVM descriptor of the method
+     * @return the method id
+     */
+    public static int methodId(String className, String methodName, String descriptor) {
+        synchronized (methodGuards) {
+            int id = methodGuards.intern(className, methodName, descriptor);
+            Map<String, Object> methodMap = staticMockBehaviors.get(className);
+            if (methodMap != null && methodGuards.get(id) == null) {
+                Object pending = methodMap.get(methodName + descriptor);
+                if (pending == null) {
+                    pending = methodMap.get(methodName);
+                }
+                if (pending != null) {
+                    methodGuards.set(id, TypedReturn.specialize(pending, descriptor));
+                }
+            }
+            return id;
+        }
+    }
+    
+    /**
+     * Returns the behavior registered for a method id, or null if the method
+     * has no active stub. This is the only call made by an unstubbed method.
+     * 
+     * @param methodId the id baked into the instrumented method
+     * @return the registered behavior or null
+     */
+    public static Object behaviorFor(int methodId) {
+        Object scoped = StaticMockScope.lookup(methodGuards, methodId);
+        return scoped != null ? scoped : methodGuards.get(methodId);
+    }
+    
+    /**
+     * Applies a behavior returned by {@link #behaviorFor(int)}.
+     * 
+     * @param behavior the registered return value, exception or function
+     * @param args method arguments
+     * @return the mock result
+     * @throws Throwable if the registered behavior is an exception
+     */
+    @SuppressWarnings("unchecked")
+    public static Object applyBehavior(Object behavior, Object[] args) throws Throwable {
+        if (behavior instanceof TypedReturn) {
+            return ((TypedReturn) behavior).boxed();
+        } else if (behavior instanceof Throwable) {
+            throw (Throwable) behavior;
+        } else if (behavior instanceof Function) {
+            return ((Function<Object[], Object>) behavior).apply(args);
+        } else {
+            return behavior;
+        }
+    }
+    
     /**
      * Handles an intercepted static method call.
      * 
@@ -42,25 +145,16 @@ public class StaticMockHandler {
      * @return the mock result or null if no behavior was registered
      * @throws Throwable if the registered behavior is an exception
      */
-    @SuppressWarnings("unchecked")
     public static Object handleStaticMethodCall(String className, String methodName, Object[] args) throws Throwable {
-        Map<String, Object> methodMap = staticMockBehaviors.get(className);
-        
-        if (methodMap != null && methodMap.containsKey(methodName)) {
-            Object behavior = methodMap.get(methodName);
-            logger.debug("Handling static method call {}.{}", className, methodName);
-            
-            if (behavior instanceof Throwable) {
-                throw (Throwable) behavior;
-            } else if (behavior instanceof Function) {
-                return ((Function<Object[], Object>) behavior).apply(args);
-            } else {
-                return behavior;
-            }
+        Object behavior = StaticMockScope.lookupMember(methodGuards, className, methodName);
+        if (behavior == null) {
+            Map<String, Object> methodMap = staticMockBehaviors.get(className);
+            behavior = methodMap == null ? null : methodMap.get(methodName);
         }
-        
-        logger.debug("No mock behavior found for static method {}.{}", className, methodName);
-        return null;  // Default return value if no behavior is defined
+        if (behavior == null) {
+            return null;  // Default return value if no behavior is defined
+        }
+        return applyBehavior(behavior, args);
     }
     
     /**
@@ -77,17 +171,30 @@ public class StaticMockHandler {
      * Retrieves the original bytecode for a class.
      * 
      * @param className fully qualified class name
-     * @return the original bytecode or null if not stored
+     * @return a copy of the original bytecode or null if not stored
      */
     public static byte[] getOriginalBytecode(String className) {
         return originalClassBytes.get(className);
     }
     
+    /**
+     * Releases the original bytecode of a class that has been restored
+     * and no longer needs it.
+     * 
+     * @param className fully qualified class name
+     */
+    public static void releaseOriginalBytecode(String className) {
+        originalClassBytes.release(className);
+    }
+    
     /**
      * Clears all registered mock behaviors.
      */
     public static void resetAll() {
-        staticMockBehaviors.clear();
+        synchronized (methodGuards) {
+            staticMockBehaviors.clear();
+            methodGuards.clearAll();
+        }
         logger.info("Reset all static method mocks");
     }
     
@@ -97,7 +204,10 @@ public class StaticMockHandler {
      * @param className fully qualified class name
      */
     public static void reset(String className) {
-        staticMockBehaviors.remove(className);
+        synchronized (methodGuards) {
+            staticMockBehaviors.remove(className);
+            methodGuards.clearOwner(className);
+        }
         logger.info("Reset static method mocks for class: {}", className);
     }
     
@@ -0,0 +1,130 @@
+package com.mocktutorial.advanced.internal;
+
+/**
+ * Constant stub for a method with a primitive return type.
+ * <p>
+ * When a constant is registered for a method returning {@code int},
+ * {@code long}, {@code double} or {@code boolean}, it is stored as one of the
+ * subclasses below instead of a boxed value. The instrumented method reads the
+ * primitive field directly, so neither the stub nor the return path boxes or
+ * unboxes on each call.
+ */
+public abstract class TypedReturn {
+    
+    /**
+     * Returns the stub value boxed, for generic dispatch paths.
+     * 
+     * @return the boxed constant
+     */
+    public abstract Object boxed();
+    
+    /**
+     * Specializes a behavior for the return type encoded in a method descriptor.
+     * Behaviors that are not a matching boxed constant are returned unchanged.
+     * 
+     * @param behavior the registered behavior
+     * @param descriptor the JVM descriptor of the stubbed method
+     * @return a typed stub, or the behavior itself
+     */
+    public static Object specialize(Object behavior, String descriptor) {
+        char returnType = descriptor.charAt(descriptor.indexOf(')') + 1);
+        switch (returnType) {
+            case 'I':
+                return behavior instanceof Integer ? new OfInt((Integer) behavior) : behavior;
+            case 'J':
+                return behavior instanceof Long ? new OfLong((Long) behavior) : behavior;
+            case 'D':
+                return behavior instanceof Double ? new OfDouble((Double) behavior) : behavior;
+            case 'Z':
+                return behavior instanceof Boolean ? new OfBoolean((Boolean) behavior) : behavior;
+            default:
+                return behavior;
+        }
+    }
+    
+    /**
+     * Returns the name of the typed stub class matching a return type, used by
+     * the bytecode generators to emit the unboxed fast path.
+     * 
+     * @param primitiveName the primitive return type name, e.g. {@code int}
+     * @return the binary name of the matching subclass, or null if there is none
+     */
+    public static String typedClassName(String primitiveName) {
+        switch (primitiveName) {
+            case "int":
+                return OfInt.class.getName();
+            case "long":
+                return OfLong.class.getName();
+            case "double":
+                return OfDouble.class.getName();
+            case "boolean":
+                return OfBoolean.class.getName();
+            default:
+                return null;
+        }
+    }
+    
+    /**
+     * Constant {@code int} return.
+     */
+    public static final class OfInt extends TypedReturn {
+        public final int value;
+        
+        public OfInt(int value) {
+            this.value = value;
+        }
+        
+        @Override
+        public Object boxed() {
+            return value;
+        }
+    }
+    
+    /**
+     * Constant {@code long} return.
+     */
+    public static final class OfLong extends TypedReturn {
+        public final long value;
+        
+        public OfLong(long value) {
+            this.value = value;
+        }
+        
+        @Override
+        public Object boxed() {
+            return value;
+        }
+    }
+    
+    /**
+     * Constant {@code double} return.
+     */
+    public static final class OfDouble extends TypedReturn {
+        public final double value;
+        
+        public OfDouble(double value) {
+            this.value = value;
+        }
+        
+        @Override
+        public Object boxed() {
+            return value;
+        }
+    }
+    
+    /**
+     * Constant {@code boolean} return.
+     */
+    public static final class OfBoolean extends TypedReturn {
+        public final boolean value;
+        
+        public OfBoolean(boolean value) {
+            this.value = value;
+        }
+        
+        @Override
+        public Object boxed() {
+            return value;
+        }
+    }
+}
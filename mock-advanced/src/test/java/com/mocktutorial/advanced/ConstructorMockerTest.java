@@ -1,8 +1,25 @@
 package com.mocktutorial.advanced;
 
+import com.mocktutorial.advanced.agent.ConstructorAgent;
+import com.mocktutorial.advanced.agent.LoadTimeTransformer;
+import com.mocktutorial.advanced.agent.MockAgent;
+import com.mocktutorial.advanced.internal.StaticBytecodeEnhancer;
+import com.mocktutorial.advanced.internal.Jdk21Optimizer;
+import com.mocktutorial.advanced.internal.StateCopier;
+import com.mocktutorial.basics.controllers.UserController;
+import com.mocktutorial.basics.mocks.ManualMockUserService;
+import com.mocktutorial.basics.models.User;
+import com.mocktutorial.basics.services.UserService;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Test;
 
+import java.lang.instrument.ClassDefinition;
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import static org.junit.jupiter.api.Assertions.*;
 
 /**
@@ -88,6 +105,84 @@ public class ConstructorMockerTest {
         // 注：new出来的对象字段值无法保证被mock，详见doc-v3/v2remark.md
     }
     
+    @Test
+    public void testConstructorIdDispatch() {
+        System.out.println("[步骤1] 构造器mock：按描述符分配构造函数id");
+        String className = ConstructorTestClass.class.getName();
+        int noArgId = ConstructorMocker.constructorId(className, "()V");
+        int stringId = ConstructorMocker.constructorId(className, "(Ljava/lang/String;)V");
+        assertNotEquals(noArgId, stringId, "不同构造函数应分配不同id");
+        assertEquals(stringId, ConstructorMocker.constructorId(className, "(Ljava/lang/String;)V"), "同一构造函数id应稳定");
+        System.out.println("[步骤2] 未配置mock时handlerFor应返回null");
+        assertNull(ConstructorMocker.handlerFor(stringId), "未配置mock时不应有handler");
+        System.out.println("[步骤3] 配置有参构造后按id命中handler");
+        ConstructorTestClass mockInstance = new ConstructorTestClass();
+        ConstructorMocker.whenConstructor(ConstructorTestClass.class, mockInstance, String.class);
+        assertSame(mockInstance, ConstructorMocker.handlerFor(stringId), "按id应命中配置的实例");
+        assertNull(ConstructorMocker.handlerFor(noArgId), "无参构造未配置，不应命中");
+        System.out.println("[步骤4] reset后handler应被清除");
+        ConstructorMocker.reset(ConstructorTestClass.class);
+        assertNull(ConstructorMocker.handlerFor(stringId), "reset后不应有handler");
+        System.out.println("[通过] 构造函数id分发正确");
+    }
+
+    @Test
+    public void testCallSiteConstructorMocking() throws Exception {
+        System.out.println("[步骤1] 无agent时已加载的调用方类无法改写，应返回false");
+        assertFalse(ConstructorMocker.prepareCallSites(UserController.class, User.class), "无agent时应返回false");
+
+        System.out.println("[步骤2] 安装模拟的Instrumentation，记录重定义后的调用方字节码");
+        List<ClassDefinition> redefinitions = new ArrayList<>();
+        Instrumentation instrumentation = (Instrumentation) Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class<?>[]{Instrumentation.class}, (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "redefineClasses":
+                        redefinitions.addAll(Arrays.asList((ClassDefinition[]) args[0]));
+                        return null;
+                    case "getInitiatedClasses":
+                    case "getAllLoadedClasses":
+                        return new Class<?>[]{UserController.class};
+                    default:
+                        return null;
+                }
+            });
+        MockAgent.agentmain(null, instrumentation);
+        try {
+            assertTrue(ConstructorMocker.prepareCallSites(UserController.class, User.class),
+                "已加载的调用方类应通过重定义改写调用点");
+            assertEquals(1, redefinitions.size(), "应重定义一次调用方类");
+            assertSame(UserController.class, redefinitions.get(0).getDefinitionClass(), "应重定义已加载的调用方类");
+            assertTrue(ConstructorMocker.prepareCallSites(UserController.class, User.class), "重复准备应直接成功");
+            assertEquals(1, redefinitions.size(), "重复准备不应再次重定义");
+            assertFalse(ConstructorMocker.prepareCallSites(UserController.class, ConstructorTestClass.class),
+                "调用方中没有该类的调用点时应返回false，不沿用其他类的结果");
+            assertEquals(1, redefinitions.size(), "没有调用点时不应重定义");
+
+            System.out.println("[步骤3] 以重定义的字节码运行调用方，未配置mock时应创建真实User");
+            Class<?> controllerClass = new DefiningClassLoader().define(UserController.class.getName(),
+                redefinitions.get(0).getDefinitionClassFile());
+            ManualMockUserService service = new ManualMockUserService();
+            Object controller = controllerClass.getConstructor(UserService.class).newInstance(service);
+            controllerClass.getMethod("createUser", long.class, String.class, String.class)
+                .invoke(controller, 1L, "真实用户", "real@example.com");
+            assertEquals("真实用户", service.findById(1L).get().getName(), "未配置mock时应走原始构造函数");
+
+            System.out.println("[步骤4] 配置构造函数mock后调用点应直接返回mock实例");
+            User mockUser = new User(2L, "模拟用户", "mock@example.com");
+            ConstructorMocker.whenConstructor(User.class, mockUser, long.class, String.class, String.class);
+            controllerClass.getMethod("createUser", long.class, String.class, String.class)
+                .invoke(controller, 3L, "被替换", "ignored@example.com");
+            System.out.println("实际: " + service.findById(2L).orElse(null));
+            assertSame(mockUser, service.findById(2L).orElse(null), "调用点应原样返回mock实例");
+            assertFalse(service.findById(3L).isPresent(), "原始构造函数不应被执行");
+        } finally {
+            StaticBytecodeEnhancer.setInstrumentation(null);
+            LoadTimeTransformer.getInstance().reset();
+            ConstructorAgent.reset();
+        }
+        System.out.println("[通过] 调用点构造函数mock返回同一实例");
+    }
+    
     @Test
     public void testCreateInstanceWithoutConstructor() throws Exception {
         System.out.println("[步骤1] 测试createInstanceWithoutConstructor严格不调用构造函数");
@@ -97,6 +192,24 @@ public class ConstructorMockerTest {
         System.out.println("[通过] createInstanceWithoutConstructor未调用构造函数，值为null");
     }
     
+    @Test
+    public void testCompiledStateCopy() {
+        System.out.println("[ConstructorMock] 编译StatefulTestClass的状态复制器");
+        assertTrue(Jdk21Optimizer.applyJdk21Optimizations(StatefulTestClass.class), "JDK21下应成功编译复制器");
+        StateCopier copier = Jdk21Optimizer.stateCopier(StatefulTestClass.class);
+        assertNotNull(copier, "应返回编译好的复制器");
+        assertTrue(copier.isFullyGenerated(), "同模块的类应全部由隐藏类复制");
+
+        StatefulTestClass source = new StatefulTestClass("预配置值", 7, 42L);
+        StatefulTestClass target = new StatefulTestClass("传入值", 0, 0L);
+        ConstructorMocker.copyState(source, target);
+        assertEquals("预配置值", target.getValue(), "应复制父类的private字段");
+        assertEquals(7, target.count, "应复制本类字段");
+        assertEquals(42L, target.id, "应复制final字段");
+
+        System.out.println("[通过] 编译状态复制器正确");
+    }
+
     /**
      * 用于测试的带构造函数的类
      */
@@ -119,4 +232,18 @@ public class ConstructorMockerTest {
             this.value = value;
         }
     }
-} 
\ No newline at end of file
+    
+    /**
+     * 含本类字段与final字段的子类，用于状态复制测试
+     */
+    public static class StatefulTestClass extends ConstructorTestClass {
+        private int count;
+        private final long id;
+
+        public StatefulTestClass(String value, int count, long id) {
+            super(value);
+            this.count = count;
+            this.id = id;
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package com.mocktutorial.advanced;
+
+/**
+ * 测试用类加载器：直接定义插桩或改写后的字节码，父加载器为测试类路径
+ */
+final class DefiningClassLoader extends ClassLoader {
+
+    DefiningClassLoader() {
+        super(DefiningClassLoader.class.getClassLoader());
+    }
+
+    Class<?> define(String name, byte[] classfile) {
+        return defineClass(name, classfile, 0, classfile.length);
+    }
+}
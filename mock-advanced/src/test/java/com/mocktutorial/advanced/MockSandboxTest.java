@@ -0,0 +1,126 @@
+package com.mocktutorial.advanced;
+
+import com.mocktutorial.advanced.internal.DispatchTable;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 类加载器隔离沙箱测试类
+ */
+public class MockSandboxTest {
+
+    @AfterEach
+    public void tearDown() {
+        MockSandbox.clearPool();
+    }
+
+    @Test
+    public void testSandboxesIsolateStaticStubs() throws Exception {
+        System.out.println("[Sandbox] 获取两个相同配置的沙箱");
+        MockSandbox first = MockSandbox.builder()
+            .staticMocks(StaticMockerTest.StaticTestClass.class)
+            .include(Caller.class)
+            .acquire();
+        MockSandbox second = MockSandbox.builder()
+            .staticMocks(StaticMockerTest.StaticTestClass.class)
+            .include(Caller.class)
+            .acquire();
+        assertNotEquals(first.getName(), second.getName(), "同时持有的沙箱应相互独立");
+        System.out.println("[Sandbox] 在两个沙箱中为同一静态方法配置不同存根");
+        first.when(StaticMockerTest.StaticTestClass.class, "staticMethod", "沙箱一");
+        second.when(StaticMockerTest.StaticTestClass.class, "staticMethod", "沙箱二");
+        assertEquals("沙箱一", first.loadClass(Caller.class).getMethod("call").invoke(null), "沙箱一应看到自己的存根");
+        assertEquals("沙箱二", second.loadClass(Caller.class).getMethod("call").invoke(null), "沙箱二应看到自己的存根");
+        assertEquals("实际静态方法", Caller.call(), "沙箱外的原始类不应受影响");
+        System.out.println("[Sandbox] 释放沙箱后再次获取应复用同一沙箱且存根已清除");
+        Class<?> sandboxedCaller = first.loadClass(Caller.class);
+        first.close();
+        first.close();
+        MockSandbox reused = MockSandbox.builder()
+            .staticMocks(StaticMockerTest.StaticTestClass.class)
+            .include(Caller.class)
+            .acquire();
+        assertSame(first, reused, "相同配置应复用池中的沙箱");
+        assertSame(sandboxedCaller, reused.loadClass(Caller.class), "复用的沙箱不应重新定义类");
+        assertEquals("实际静态方法", sandboxedCaller.getMethod("call").invoke(null), "释放后存根应被清除");
+        MockSandbox third = MockSandbox.builder()
+            .staticMocks(StaticMockerTest.StaticTestClass.class)
+            .include(Caller.class)
+            .acquire();
+        assertNotSame(first, third, "重复close不应把同一沙箱多次放回池中");
+        third.close();
+        reused.close();
+        second.close();
+        System.out.println("[通过] 沙箱隔离静态存根并可复用");
+    }
+
+    @Test
+    public void testSandboxConstructorMocking() throws Exception {
+        System.out.println("[Sandbox] 在沙箱中准备构造函数mock");
+        try (MockSandbox sandbox = MockSandbox.builder()
+                .constructorMocks(ConstructorMockerTest.ConstructorTestClass.class)
+                .acquire()) {
+            Class<?> sandboxed = sandbox.loadClass(ConstructorMockerTest.ConstructorTestClass.class);
+            assertNotSame(ConstructorMockerTest.ConstructorTestClass.class, sandboxed, "应加载沙箱内的副本");
+            Object preset = sandboxed.getConstructor(String.class).newInstance("预配置值");
+            sandbox.whenConstructor(ConstructorMockerTest.ConstructorTestClass.class, preset, String.class);
+            System.out.println("[Sandbox] 沙箱内new对象应复制预配置实例的字段");
+            Object created = sandboxed.getConstructor(String.class).newInstance("传入值");
+            assertEquals("预配置值", sandboxed.getMethod("getValue").invoke(created), "沙箱内构造函数应被mock");
+            assertEquals("传入值", new ConstructorMockerTest.ConstructorTestClass("传入值").getValue(),
+                "沙箱外的构造函数不应受影响");
+        }
+        System.out.println("[通过] 沙箱构造函数mock正确");
+    }
+
+    @Test
+    public void testPoolIsBoundedAndDiscardedIdsAreReleased() throws Exception {
+        System.out.println("[Sandbox] 同时持有超过池容量的沙箱后全部释放");
+        int count = MockSandbox.MAX_POOLED_PER_CONFIGURATION + 2;
+        List<MockSandbox> sandboxes = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            MockSandbox sandbox = MockSandbox.builder()
+                .staticMocks(StaticMockerTest.StaticTestClass.class)
+                .include(Caller.class)
+                .acquire();
+            sandbox.loadClass(Caller.class).getMethod("call").invoke(null);
+            sandboxes.add(sandbox);
+        }
+        for (MockSandbox sandbox : sandboxes) {
+            sandbox.close();
+        }
+        assertEquals(MockSandbox.MAX_POOLED_PER_CONFIGURATION, MockSandbox.pooledCount(), "池中保留的沙箱数不应超过上限");
+        MockSandbox.clearPool();
+        assertEquals(0, MockSandbox.pooledCount(), "清空后池应为空");
+
+        System.out.println("[Sandbox] 丢弃的沙箱释放的id应被复用");
+        DispatchTable table = new DispatchTable();
+        int first = table.intern("sandbox-x/A", "m", "()V");
+        int second = table.intern("sandbox-x/A", "m", "(I)V");
+        int kept = table.intern("B", "m", "()V");
+        table.set(first, "stub");
+        assertEquals(2, table.releaseOwner("sandbox-x/A"), "应释放该owner的所有id");
+        assertEquals(1, table.size());
+        assertEquals(-1, table.lookup("sandbox-x/A", "m", "()V"), "释放后不应再能查到");
+        assertEquals(0, table.lookupAll("sandbox-x/A", "m").length);
+        int reused = table.intern("sandbox-y/A", "m", "()V");
+        assertTrue(reused == first || reused == second, "新成员应复用释放的id");
+        assertNull(table.get(reused), "复用的id不应带有旧存根");
+        assertEquals(kept, table.lookup("B", "m", "()V"), "其他owner不受影响");
+        System.out.println("[通过] 沙箱池有界且丢弃的id被释放");
+    }
+
+    /**
+     * 在沙箱中加载的调用方
+     */
+    public static class Caller {
+        public static String call() {
+            return StaticMockerTest.StaticTestClass.staticMethod();
+        }
+    }
+}
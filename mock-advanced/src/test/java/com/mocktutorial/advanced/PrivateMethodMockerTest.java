@@ -1,10 +1,15 @@
 package com.mocktutorial.advanced;
 
+import com.mocktutorial.advanced.agent.MockAgent;
 import com.mocktutorial.basics.models.User;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Collections;
+
 import static org.junit.jupiter.api.Assertions.*;
 
 /**
@@ -74,4 +79,155 @@ class PrivateMethodMockerTest {
         assertEquals(200, result, "自定义实现应返回200");
         System.out.println("[通过] private方法自定义实现mock配置生效");
     }
-} 
\ No newline at end of file
+    
+    @Test
+    void testTypedPrivateMethodInvoker() throws Throwable {
+        System.out.println("[PrivateMock] 获取calculateScore的类型化调用器并重复调用");
+        PrivateMethodInvoker<User, Integer> score = PrivateMethodMocker.invoker(User.class, "calculateScore", int.class);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(18, score.invoke(user), "调用器应返回18");
+        }
+        assertSame(score, PrivateMethodMocker.invoker(User.class, "calculateScore", int.class), "调用器应被缓存");
+        assertThrows(IllegalArgumentException.class,
+            () -> PrivateMethodMocker.invoker(User.class, "calculateScore", String.class), "返回类型不符应拒绝");
+
+        System.out.println("[PrivateMock] 反射调用应在父类中查找private方法");
+        int bonus = PrivateMethodMocker.invokePrivateMethod(new BonusCard(), "bonus", new Class<?>[0]);
+        assertEquals(1, bonus, "应调用父类声明的private方法");
+        System.out.println("[通过] private方法调用器正确");
+    }
+    
+    @Test
+    void testInvokerCacheDistinguishesClassLoaders() throws Exception {
+        System.out.println("[PrivateMock] 在独立加载器中定义同名的Token与SubLedger");
+        ClassLoader parent = getClass().getClassLoader();
+        DefiningClassLoader loader = new DefiningClassLoader();
+        Class<?> token = loader.define(Token.class.getName(), MockAgent.readClassFile(Token.class.getName(), parent));
+        Class<?> subLedger = loader.define(SubLedger.class.getName(),
+            MockAgent.readClassFile(SubLedger.class.getName(), parent));
+        Object ledger = subLedger.getConstructor().newInstance();
+
+        System.out.println("[PrivateMock] 参数类型同名但加载器不同，应解析到不同的方法");
+        String own = PrivateMethodMocker.invokePrivateMethod(ledger, "entry", new Class<?>[]{token},
+            token.getConstructor().newInstance());
+        String inherited = PrivateMethodMocker.invokePrivateMethod(ledger, "entry", new Class<?>[]{Token.class},
+            new Token());
+        assertEquals("sub", own, "应调用子类声明的entry");
+        assertEquals("ledger", inherited, "应调用父类声明的entry，而非缓存中的同名方法");
+        System.out.println("[通过] 调用器缓存按参数类区分");
+    }
+    
+    @Test
+    void testInstrumentedPrivateMethodPerInstance() throws Exception {
+        System.out.println("[PrivateMock] 插桩ScoreCard的private bonus方法");
+        byte[] original = MockAgent.readClassFile(ScoreCard.class.getName(), getClass().getClassLoader());
+        byte[] instrumented = PrivateMethodMocker.instrumentPrivateMethods(original, ScoreCard.class.getName(),
+            Collections.singleton("bonus"));
+        Class<?> scoreCard = new DefiningClassLoader().define(ScoreCard.class.getName(), instrumented);
+        Method total = scoreCard.getMethod("total");
+        Object stubbed = scoreCard.getConstructor().newInstance();
+        Object other = scoreCard.getConstructor().newInstance();
+        assertEquals(11, total.invoke(stubbed), "未配置存根时应执行原始方法");
+
+        System.out.println("[PrivateMock] 只为一个实例配置bonus返回5，实例的hashCode/equals不应被使用");
+        PrivateMethodMocker.when(stubbed, "bonus", 5);
+        assertEquals(15, total.invoke(stubbed), "被存根的实例应返回mock值");
+        assertEquals(11, total.invoke(other), "其他实例应执行原始方法");
+
+        System.out.println("[PrivateMock] 自定义实现返回PROCEED时执行原始方法");
+        PrivateMethodMocker.whenImplement(other, "bonus", args -> PrivateMethodMocker.PROCEED);
+        assertEquals(11, total.invoke(other), "PROCEED应执行原始方法");
+
+        System.out.println("[PrivateMock] 重置实例后恢复原始行为");
+        PrivateMethodMocker.reset(stubbed);
+        assertEquals(11, total.invoke(stubbed), "重置后应执行原始方法");
+        System.out.println("[通过] private方法按实例插桩拦截正确");
+    }
+    
+    @Test
+    void testNullStubForPrimitivePrivateMethod() throws Exception {
+        System.out.println("[PrivateMock] 插桩ScoreCard的private bonus与label方法");
+        byte[] original = MockAgent.readClassFile(ScoreCard.class.getName(), getClass().getClassLoader());
+        byte[] instrumented = PrivateMethodMocker.instrumentPrivateMethods(original, ScoreCard.class.getName(),
+            Arrays.asList("bonus", "label"));
+        Class<?> scoreCard = new DefiningClassLoader().define(ScoreCard.class.getName(), instrumented);
+        Object card = scoreCard.getConstructor().newInstance();
+
+        System.out.println("[PrivateMock] 返回int的bonus不能存根为null");
+        assertThrows(IllegalArgumentException.class, () -> PrivateMethodMocker.when(card, "bonus", null),
+            "基本类型返回值的方法存根为null应被拒绝");
+        assertNull(PrivateMethodMocker.getConfiguredBehavior(card, "bonus"), "被拒绝的存根不应被记录");
+        assertEquals(11, scoreCard.getMethod("total").invoke(card), "bonus应执行原始方法");
+
+        System.out.println("[PrivateMock] 返回String的label可以存根为null");
+        PrivateMethodMocker.when(card, "label", null);
+        assertEquals("card:null", scoreCard.getMethod("describe").invoke(card), "label应返回null");
+        System.out.println("[通过] 基本类型private方法的null存根被拒绝");
+    }
+    
+    /**
+     * hashCode/equals不可用的测试类，用于验证按实例标识查找存根
+     */
+    public static class ScoreCard {
+        private int bonus() {
+            return 1;
+        }
+
+        public int total() {
+            return 10 + bonus();
+        }
+
+        private String label() {
+            return "score";
+        }
+
+        public String describe() {
+            return "card:" + label();
+        }
+
+        @Override
+        public int hashCode() {
+            throw new UnsupportedOperationException("hashCode不应被调用");
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return "ScoreCard";
+        }
+    }
+    
+    /**
+     * 继承ScoreCard的子类，自身不声明bonus方法
+     */
+    public static class BonusCard extends ScoreCard {
+    }
+    
+    /**
+     * 作为private方法参数类型的测试类
+     */
+    public static class Token {
+    }
+    
+    /**
+     * 声明以Token为参数的private方法
+     */
+    public static class Ledger {
+        private String entry(Token token) {
+            return "ledger";
+        }
+    }
+    
+    /**
+     * 在独立加载器中定义时，entry的参数为该加载器中的Token
+     */
+    public static class SubLedger extends Ledger {
+        private String entry(Token token) {
+            return "sub";
+        }
+    }
+}
@@ -1,8 +1,31 @@
 package com.mocktutorial.advanced;
 
+import com.mocktutorial.advanced.agent.InstrumentationPath;
+import com.mocktutorial.advanced.agent.LoadTimeTransformer;
+import com.mocktutorial.advanced.agent.MockAgent;
+import com.mocktutorial.advanced.internal.ClassBytesStore;
+import com.mocktutorial.advanced.internal.StaticBytecodeEnhancer;
+import com.mocktutorial.advanced.internal.StaticMockHandler;
+import com.mocktutorial.advanced.internal.TypedReturn;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Test;
 
+import java.lang.instrument.ClassDefinition;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.lang.instrument.UnmodifiableClassException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
 import static org.junit.jupiter.api.Assertions.*;
 
 /**
@@ -13,6 +36,7 @@ public class StaticMockerTest {
     @AfterEach
     public void tearDown() {
         StaticMocker.resetAll();
+        StaticMockHandler.resetAll();
     }
     
     @Test
@@ -61,6 +85,311 @@ public class StaticMockerTest {
         System.out.println("[通过] 静态方法自定义实现mock配置生效");
     }
     
+    @Test
+    public void testGuardedStaticMethodDispatch() throws Exception {
+        System.out.println("[StaticMock] 增强静态方法字节码并在独立类加载器中定义");
+        byte[] enhanced = new StaticBytecodeEnhancer().modifyAllStaticMethods(StaticTestClass.class.getName());
+        Class<?> enhancedClass = new DefiningClassLoader().define(StaticTestClass.class.getName(), enhanced);
+        System.out.println("[StaticMock] 未配置存根时，守卫为空，应直接走原始方法");
+        int methodId = StaticMockHandler.methodId(StaticTestClass.class.getName(), "staticMethod", "()Ljava/lang/String;");
+        assertNull(StaticMockHandler.behaviorFor(methodId), "未配置存根时守卫应为空");
+        assertEquals("实际静态方法", enhancedClass.getMethod("staticMethod").invoke(null), "未配置存根时应返回原始值");
+        System.out.println("[StaticMock] 配置存根后，守卫命中，应返回模拟值");
+        StaticMockHandler.registerBehavior(StaticTestClass.class.getName(), "staticMethod", "模拟返回值");
+        assertEquals("模拟返回值", StaticMockHandler.behaviorFor(methodId), "配置存根后守卫应指向行为");
+        assertEquals("模拟返回值", enhancedClass.getMethod("staticMethod").invoke(null), "增强后的静态方法应返回模拟值");
+        assertEquals("实际参数方法：x", enhancedClass.getMethod("staticMethodWithParams", String.class).invoke(null, "x"),
+            "未配置存根的方法应不受影响");
+        System.out.println("[StaticMock] reset后守卫清空，应恢复原始行为");
+        StaticMockHandler.reset(StaticTestClass.class.getName());
+        assertEquals("实际静态方法", enhancedClass.getMethod("staticMethod").invoke(null), "reset后应返回原始值");
+        System.out.println("[通过] 静态方法守卫分发正确");
+    }
+    
+    @Test
+    public void testOverloadSpecificStaticStub() throws Exception {
+        System.out.println("[StaticMock] 增强含重载方法的类");
+        byte[] enhanced = new StaticBytecodeEnhancer().modifyAllStaticMethods(StaticTestClass.class.getName());
+        Class<?> enhancedClass = new DefiningClassLoader().define(StaticTestClass.class.getName(), enhanced);
+        System.out.println("[StaticMock] 只为count(int)配置存根，count()应不受影响");
+        StaticMockHandler.registerBehavior(StaticTestClass.class.getName(), "count", "(I)I", 42);
+        int withParamId = StaticMockHandler.methodId(StaticTestClass.class.getName(), "count", "(I)I");
+        int noParamId = StaticMockHandler.methodId(StaticTestClass.class.getName(), "count", "()I");
+        assertTrue(StaticMockHandler.behaviorFor(withParamId) instanceof TypedReturn.OfInt, "int常量存根应以未装箱形式保存");
+        assertNull(StaticMockHandler.behaviorFor(noParamId), "未配置的重载不应有存根");
+        assertEquals(42, enhancedClass.getMethod("count", int.class).invoke(null, 1), "count(int)应返回模拟值");
+        assertEquals(7, enhancedClass.getMethod("count").invoke(null), "count()应返回原始值");
+        System.out.println("[StaticMock] 按名称配置存根应覆盖所有重载");
+        StaticMockHandler.registerBehavior(StaticTestClass.class.getName(), "count", 5);
+        assertEquals(5, enhancedClass.getMethod("count").invoke(null), "按名称配置后count()应返回模拟值");
+        assertEquals(5, enhancedClass.getMethod("count", int.class).invoke(null, 1), "按名称配置后count(int)应返回模拟值");
+        System.out.println("[通过] 重载方法按描述符独立存根");
+    }
+    
+    @Test
+    public void testBehaviorRegisteredBeforeInstrumentation() throws Exception {
+        System.out.println("[StaticMock] 先注册存根，再增强从未插桩过的类");
+        String className = PendingStubTestClass.class.getName();
+        StaticMockHandler.registerBehavior(className, "name", "先注册的模拟值");
+        StaticMockHandler.registerBehavior(className, "size", "(I)I", 42);
+        byte[] enhanced = new StaticBytecodeEnhancer().modifyAllStaticMethods(className);
+        Class<?> enhancedClass = new DefiningClassLoader().define(className, enhanced);
+        System.out.println("[StaticMock] 插桩时应把已注册的行为写入新分配的守卫");
+        assertEquals("先注册的模拟值", enhancedClass.getMethod("name").invoke(null), "插桩前按名称注册的存根应生效");
+        assertEquals(42, enhancedClass.getMethod("size", int.class).invoke(null, 1), "插桩前按描述符注册的存根应生效");
+        assertEquals(3, enhancedClass.getMethod("size").invoke(null), "未注册的重载应返回原始值");
+        System.out.println("[StaticMock] reset后不应再回放已清除的行为");
+        StaticMockHandler.reset(className);
+        assertEquals("原始名称", enhancedClass.getMethod("name").invoke(null), "reset后应返回原始值");
+        System.out.println("[通过] 插桩前注册的存根不会丢失");
+    }
+    
+    @Test
+    public void testOnlyStubbedMethodsInstrumented() throws Exception {
+        System.out.println("[StaticMock] 只增强被存根的count方法");
+        byte[] enhanced = new StaticBytecodeEnhancer().modifyStaticMethods(StaticTestClass.class.getName(),
+            Collections.singleton("count"));
+        Class<?> enhancedClass = new DefiningClassLoader().define(StaticTestClass.class.getName(), enhanced);
+        Set<String> methodNames = new HashSet<>();
+        for (Method method : enhancedClass.getDeclaredMethods()) {
+            methodNames.add(method.getName());
+        }
+        System.out.println("实际方法: " + methodNames);
+        assertEquals(StaticTestClass.class.getDeclaredMethods().length, enhancedClass.getDeclaredMethods().length,
+            "原地插桩不应增加方法");
+        assertFalse(methodNames.contains("count$original"), "不应生成$original副本");
+        StaticMockHandler.registerBehavior(StaticTestClass.class.getName(), "count", 3);
+        assertEquals(3, enhancedClass.getMethod("count").invoke(null), "增强后的count应返回模拟值");
+        assertEquals("实际静态方法", enhancedClass.getMethod("staticMethod").invoke(null), "未增强的方法应返回原始值");
+        System.out.println("[通过] 仅增强被存根的静态方法");
+    }
+    
+    @Test
+    public void testBatchedRedefinition() throws Exception {
+        System.out.println("[StaticMock] 安装模拟的Instrumentation，记录每次重定义的类数量");
+        List<Integer> redefinitions = new ArrayList<>();
+        boolean[] failNext = new boolean[1];
+        Class<?>[] loaded = {StaticTestClass.class, BatchTestClass.class};
+        Instrumentation instrumentation = (Instrumentation) Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class<?>[]{Instrumentation.class}, (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "redefineClasses":
+                        if (failNext[0]) {
+                            failNext[0] = false;
+                            throw new UnmodifiableClassException("模拟重定义失败");
+                        }
+                        redefinitions.add(((ClassDefinition[]) args[0]).length);
+                        return null;
+                    case "getInitiatedClasses":
+                    case "getAllLoadedClasses":
+                        return loaded;
+                    default:
+                        return null;
+                }
+            });
+        MockAgent.agentmain(null, instrumentation);
+        ClassLoader loader = getClass().getClassLoader();
+        try {
+            System.out.println("[步骤1] 在批处理中准备两个类，关闭时应只重定义一次");
+            try (StaticMockBatch batch = StaticMocker.batch()) {
+                StaticMocker.prepareMethods(StaticTestClass.class.getName(), loader, "staticMethod");
+                StaticMocker.prepareMethods(BatchTestClass.class.getName(), loader, "first");
+                StaticMocker.prepareMethods(BatchTestClass.class.getName(), loader, "second");
+                assertTrue(redefinitions.isEmpty(), "批处理关闭前不应重定义");
+                assertEquals(2, batch.size(), "同一个类多次准备只应记录一次");
+            }
+            assertEquals(Arrays.asList(2), redefinitions, "两个类应在一次重定义中完成");
+
+            System.out.println("[步骤2] 批量重定义失败时应回滚插桩记录");
+            redefinitions.clear();
+            failNext[0] = true;
+            assertThrows(RuntimeException.class, () -> StaticMocker.batch(() ->
+                StaticMocker.prepareMethods(BatchTestClass.class.getName(), loader, "third")), "重定义失败应抛出异常");
+            assertEquals(InstrumentationPath.REDEFINITION,
+                StaticMocker.prepareMethods(BatchTestClass.class.getName(), loader, "third"), "回滚后应重新插桩");
+            assertEquals(Arrays.asList(1), redefinitions, "未在批处理中的准备应立即重定义");
+
+            System.out.println("[步骤3] 测试结束时恢复所有类，同样只重定义一次");
+            redefinitions.clear();
+            StaticMocker.restoreAll();
+            assertEquals(Arrays.asList(2), redefinitions, "恢复应在一次重定义中完成");
+        } finally {
+            StaticBytecodeEnhancer.setInstrumentation(null);
+            LoadTimeTransformer.getInstance().reset();
+        }
+        System.out.println("[通过] 批处理合并重定义正确");
+    }
+    
+    @Test
+    public void testCompressedOriginalBytecodeStore() throws Exception {
+        System.out.println("[StaticMock] 压缩存储原始字节码，读取时应得到相同内容");
+        ClassBytesStore store = new ClassBytesStore();
+        byte[] first = MockAgent.readClassFile(StaticTestClass.class.getName(), getClass().getClassLoader());
+        byte[] second = MockAgent.readClassFile(BatchTestClass.class.getName(), getClass().getClassLoader());
+        assertTrue(store.putIfAbsent(StaticTestClass.class.getName(), first), "首次存储应成功");
+        assertTrue(store.putIfAbsent(BatchTestClass.class.getName(), second), "首次存储应成功");
+        assertFalse(store.putIfAbsent(BatchTestClass.class.getName(), first), "已存储的类不应被覆盖");
+        assertArrayEquals(first, store.get(StaticTestClass.class.getName()), "解压后的字节码应与原始一致");
+        assertArrayEquals(second, store.get(BatchTestClass.class.getName()), "解压后的字节码应与原始一致");
+        assertEquals(1, store.chunkCount(), "小类文件应共享同一个堆外块");
+
+        System.out.println("[StaticMock] 恢复后释放条目，全部释放后堆外块应被回收");
+        assertTrue(store.release(StaticTestClass.class.getName()), "应释放已存储的条目");
+        assertNull(store.get(StaticTestClass.class.getName()), "释放后不应再能读取");
+        assertEquals(1, store.chunkCount(), "块中仍有存活条目时不应回收");
+        assertTrue(store.release(BatchTestClass.class.getName()), "应释放已存储的条目");
+        assertEquals(0, store.chunkCount(), "全部释放后块应被回收");
+        assertEquals(0, store.size(), "索引应为空");
+        System.out.println("[通过] 原始字节码压缩存储正确");
+    }
+    
+    @Test
+    public void testClassBytesStoreCompaction() {
+        System.out.println("[StaticMock] 存入20个64KB的不可压缩类文件，占用两个堆外块");
+        ClassBytesStore store = new ClassBytesStore();
+        Random random = new Random(42);
+        List<byte[]> classfiles = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            byte[] classfile = new byte[64 * 1024];
+            random.nextBytes(classfile);
+            classfiles.add(classfile);
+            store.putIfAbsent("Class" + i, classfile);
+        }
+        assertEquals(2, store.chunkCount(), "应占用两个堆外块");
+
+        System.out.println("[StaticMock] 释放第一个块中的多数条目");
+        for (int i = 0; i < 6; i++) {
+            store.release("Class" + i);
+        }
+        assertEquals(2, store.chunkCount(), "存活比例较高时不应压缩");
+        for (int i = 6; i < 13; i++) {
+            store.release("Class" + i);
+        }
+        assertEquals(1, store.chunkCount(), "存活比例过低的块应被压缩回收");
+        for (int i = 13; i < 20; i++) {
+            assertArrayEquals(classfiles.get(i), store.get("Class" + i), "压缩移动后的条目应保持原内容");
+        }
+        assertEquals(7, store.size(), "应保留未释放的条目");
+        System.out.println("[通过] 堆外块压缩正确");
+    }
+    
+    @Test
+    public void testLoadTimeTransformation() throws Exception {
+        System.out.println("[StaticMock] 安装模拟的Instrumentation，注册加载期转换器");
+        ClassFileTransformer[] registered = new ClassFileTransformer[1];
+        Instrumentation instrumentation = (Instrumentation) Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class<?>[]{Instrumentation.class}, (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "addTransformer":
+                        registered[0] = (ClassFileTransformer) args[0];
+                        return null;
+                    case "getInitiatedClasses":
+                        return new Class<?>[0];
+                    default:
+                        return null;
+                }
+            });
+        MockAgent.agentmain(null, instrumentation);
+        try {
+            assertSame(LoadTimeTransformer.getInstance(), registered[0], "agent应注册加载期转换器");
+            String className = StaticMockerTest.class.getName() + "$LoadTimeTestClass";
+            DefiningClassLoader loader = new DefiningClassLoader();
+            System.out.println("[StaticMock] 类尚未加载，准备时应走加载期转换");
+            assertEquals(InstrumentationPath.LOAD_TIME, StaticMocker.prepareMethods(className, loader, "value"),
+                "未加载的类应标记为加载期转换");
+            assertEquals(InstrumentationPath.UNCHANGED, StaticMocker.prepareMethods(className, loader, "value"),
+                "重复准备不应再次转换");
+            System.out.println("[StaticMock] 模拟类加载，转换器应返回插桩后的字节码");
+            byte[] original = MockAgent.readClassFile(className, loader);
+            byte[] transformed = registered[0].transform(loader, className.replace('.', '/'), null, null, original);
+            assertNotNull(transformed, "加载时应进行转换");
+            assertNull(registered[0].transform(loader, className.replace('.', '/'), null, null, original), "转换只应进行一次");
+            Class<?> loaded = loader.define(className, transformed);
+            assertEquals("原始值", loaded.getMethod("value").invoke(null), "未配置存根时应返回原始值");
+            StaticMocker.when(loaded, "value", "模拟值");
+            assertEquals("模拟值", loaded.getMethod("value").invoke(null), "加载期插桩的方法应返回模拟值");
+        } finally {
+            StaticBytecodeEnhancer.setInstrumentation(null);
+            LoadTimeTransformer.getInstance().reset();
+        }
+        System.out.println("[通过] 加载期转换路径正确");
+    }
+    
+    @Test
+    public void testFailedLoadTimeTransformationIsRedefined() throws Exception {
+        System.out.println("[StaticMock] 安装模拟的Instrumentation，记录重定义的类");
+        ClassFileTransformer[] registered = new ClassFileTransformer[1];
+        List<Class<?>> loadedClasses = new ArrayList<>();
+        List<Class<?>> redefined = new ArrayList<>();
+        Instrumentation instrumentation = (Instrumentation) Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class<?>[]{Instrumentation.class}, (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "addTransformer":
+                        registered[0] = (ClassFileTransformer) args[0];
+                        return null;
+                    case "getInitiatedClasses":
+                        return loadedClasses.toArray(new Class<?>[0]);
+                    case "redefineClasses":
+                        for (ClassDefinition definition : (ClassDefinition[]) args[0]) {
+                            redefined.add(definition.getDefinitionClass());
+                        }
+                        return null;
+                    default:
+                        return null;
+                }
+            });
+        MockAgent.agentmain(null, instrumentation);
+        try {
+            String className = StaticMockerTest.class.getName() + "$LoadTimeTestClass";
+            DefiningClassLoader loader = new DefiningClassLoader();
+            assertEquals(InstrumentationPath.LOAD_TIME, StaticMocker.prepareMethods(className, loader, "value"),
+                "未加载的类应标记为加载期转换");
+            System.out.println("[StaticMock] 模拟类加载时转换失败，类以原始字节码加载");
+            byte[] original = MockAgent.readClassFile(className, loader);
+            assertNull(registered[0].transform(loader, className.replace('.', '/'), null, null, new byte[]{1, 2, 3}),
+                "转换失败时应返回null");
+            Class<?> loaded = loader.define(className, original);
+            loadedClasses.add(loaded);
+            System.out.println("[StaticMock] 再次准备时应丢弃插桩记录并通过重定义插桩");
+            assertEquals(InstrumentationPath.REDEFINITION, StaticMocker.prepareMethods(className, loader, "value"),
+                "加载期转换失败后应改用重定义");
+            assertEquals(Collections.singletonList(loaded), redefined, "应重定义已加载的类");
+            assertEquals(InstrumentationPath.UNCHANGED, StaticMocker.prepareMethods(className, loader, "value"),
+                "重定义后重复准备不应再次转换");
+        } finally {
+            StaticBytecodeEnhancer.setInstrumentation(null);
+            LoadTimeTransformer.getInstance().reset();
+        }
+        System.out.println("[通过] 加载期转换失败后改用重定义");
+    }
+    
+    @Test
+    public void testScopedStaticStub() throws Exception {
+        System.out.println("[StaticMock] 增强静态方法并准备作用域外的线程池");
+        byte[] enhanced = new StaticBytecodeEnhancer().modifyAllStaticMethods(StaticTestClass.class.getName());
+        Class<?> enhancedClass = new DefiningClassLoader().define(StaticTestClass.class.getName(), enhanced);
+        Method staticMethod = enhancedClass.getMethod("staticMethod");
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            executor.submit(() -> { }).get();
+            try (StaticMockScope scope = StaticMocker.openScope()) {
+                System.out.println("[StaticMock] 作用域内注册存根，只对当前线程及包装的任务可见");
+                StaticMockHandler.registerBehavior(StaticTestClass.class.getName(), "staticMethod", "作用域模拟值");
+                assertEquals("作用域模拟值", staticMethod.invoke(null), "当前线程应看到作用域存根");
+                assertEquals("实际静态方法", executor.submit(() -> staticMethod.invoke(null)).get(),
+                    "未包装的线程池任务不应看到作用域存根");
+                assertEquals("作用域模拟值", executor.submit(scope.wrap(() -> staticMethod.invoke(null))).get(),
+                    "包装后的任务应看到作用域存根");
+                assertFalse(StaticMockHandler.hasMockBehaviors(StaticTestClass.class.getName()), "作用域存根不应写入全局注册表");
+            }
+            System.out.println("[StaticMock] 关闭作用域后应恢复原始行为");
+            assertEquals("实际静态方法", staticMethod.invoke(null), "关闭作用域后应返回原始值");
+        } finally {
+            executor.shutdownNow();
+        }
+        System.out.println("[通过] 作用域静态存根隔离正确");
+    }
+    
     /**
      * 用于测试的静态方法类
      */
@@ -72,5 +401,56 @@ public class StaticMockerTest {
         public static String staticMethodWithParams(String param) {
             return "实际参数方法：" + param;
         }
+        
+        public static int count() {
+            return 7;
+        }
+        
+        public static int count(int base) {
+            return base + 7;
+        }
+    }
+    
+    /**
+     * 只在插桩前注册存根、不被其他用例插桩的类
+     */
+    public static class PendingStubTestClass {
+        public static String name() {
+            return "原始名称";
+        }
+
+        public static int size() {
+            return 3;
+        }
+
+        public static int size(int base) {
+            return base + 3;
+        }
+    }
+    
+    /**
+     * 用于批处理测试的类
+     */
+    public static class BatchTestClass {
+        public static String first() {
+            return "first";
+        }
+
+        public static String second() {
+            return "second";
+        }
+
+        public static String third() {
+            return "third";
+        }
+    }
+    
+    /**
+     * 只通过类名引用、用于加载期转换测试的类
+     */
+    public static class LoadTimeTestClass {
+        public static String value() {
+            return "原始值";
+        }
     }
 } 
\ No newline at end of file
@@ -0,0 +1,69 @@
+package com.mocktutorial.advanced.bench;
+
+import com.mocktutorial.advanced.ConstructorMocker;
+import com.mocktutorial.advanced.ConstructorMockerTest.StatefulTestClass;
+import com.mocktutorial.advanced.internal.Jdk21Optimizer;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+
+/**
+ * 构造函数mock状态复制的基准：编译的状态复制器与未优化前的逐字段反射复制。
+ * <p>
+ * 不属于测试套件（surefire只运行*Test类），需要时手动运行：
+ * <pre>
+ *   mvn -pl mock-advanced -am test-compile
+ *   java -cp "mock-advanced/target/test-classes:mock-advanced/target/classes:..." \
+ *       com.mocktutorial.advanced.bench.StateCopyBenchmark [每轮次数] [轮数]
+ * </pre>
+ * 前两轮为预热，结果按ns/次输出；数值随机器与JIT状态变化，只用于相对比较。
+ */
+public final class StateCopyBenchmark {
+
+    private StateCopyBenchmark() {
+    }
+
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 7;
+        if (!Jdk21Optimizer.applyJdk21Optimizations(StatefulTestClass.class)) {
+            System.out.println("[基准] 当前JDK无法编译状态复制器，copyState将退回反射复制");
+        }
+        StatefulTestClass source = new StatefulTestClass("预配置值", 7, 42L);
+        StatefulTestClass target = new StatefulTestClass("传入值", 0, 0L);
+        for (int round = 1; round <= rounds; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                ConstructorMocker.copyState(source, target);
+            }
+            long compiled = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                copyReflectively(source, target);
+            }
+            long reflective = System.nanoTime() - start;
+            System.out.printf("[基准] 第%d轮%s 编译复制器: %.1f ns/次, 反射复制: %.1f ns/次%n",
+                round, round <= 2 ? "(预热)" : "", (double) compiled / iterations, (double) reflective / iterations);
+        }
+        System.out.println("[基准] 校验: " + target.getValue());
+    }
+
+    /**
+     * 未优化前copyState使用的逐字段反射复制，作为对照
+     */
+    private static void copyReflectively(Object source, Object target) {
+        for (Class<?> type = source.getClass(); type != Object.class; type = type.getSuperclass()) {
+            for (Field field : type.getDeclaredFields()) {
+                if (Modifier.isStatic(field.getModifiers())) {
+                    continue;
+                }
+                try {
+                    field.setAccessible(true);
+                    field.set(target, field.get(source));
+                } catch (IllegalAccessException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+    }
+}
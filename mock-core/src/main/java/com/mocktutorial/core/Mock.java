@@ -1,9 +1,11 @@
 package com.mocktutorial.core;
 
+import com.mocktutorial.core.internal.BulkStubber;
 import com.mocktutorial.core.internal.MockitoAdapter;
 import com.mocktutorial.core.internal.MethodInterceptor;
 import com.mocktutorial.core.internal.MockCreator;
 import com.mocktutorial.core.internal.MockSettings;
+import com.mocktutorial.core.internal.MockState;
 
 /**
  * 【已更新V2】
@@ -75,6 +77,20 @@ public class Mock {
         return new MethodInterceptor<>(mock, methodName, args);
     }
     
+    /**
+     * 批量配置单个整型参数方法的行为，存根按long键存放，适合为大量id预置返回值。
+     * <p>
+     * 例：Mock.whenEach(mock, "findById", ids).thenReturn(id -&gt; Optional.of(new User(id, "u" + id)));
+     * @param <T> mock类型
+     * @param mock mock对象
+     * @param methodName 方法名
+     * @param keys 参数值
+     * @return BulkStubber，可继续thenReturn/thenThrow
+     */
+    public static <T> BulkStubber<T> whenEach(T mock, String methodName, long... keys) {
+        return new BulkStubber<>(mock, methodName, keys);
+    }
+
     /**
      * 【已更新V2】
      * 验证mock对象的某个方法是否被调用过。支持once/never/times(n)等链式调用。
@@ -93,26 +109,15 @@ public class Mock {
      * 重置mock对象的所有行为存根和调用记录。仅影响本mock实例，不影响其他mock。
      * @param <T> mock类型
      * @param mock 要重置的mock对象
+     * @throws IllegalArgumentException mock不是本框架创建的mock时抛出
      */
     public static <T> void reset(T mock) {
-        if (mock == null) return;
-        if (java.lang.reflect.Proxy.isProxyClass(mock.getClass())) {
-            java.lang.reflect.InvocationHandler handler = java.lang.reflect.Proxy.getInvocationHandler(mock);
-            if (handler instanceof MockitoAdapter.MockInvocationHandler) {
-                MockitoAdapter.MockInvocationHandler h = (MockitoAdapter.MockInvocationHandler) handler;
-                h.methodCalls.clear();
-                h.stubs.clear();
-            }
-        } else {
-            // enhanced mock: 反射清空 _methodCalls/_methodStubs
-            try {
-                java.lang.reflect.Field callsField = mock.getClass().getDeclaredField("_methodCalls");
-                callsField.setAccessible(true);
-                ((java.util.Map) callsField.get(mock)).clear();
-                java.lang.reflect.Field stubsField = mock.getClass().getDeclaredField("_methodStubs");
-                stubsField.setAccessible(true);
-                ((java.util.Map) stubsField.get(mock)).clear();
-            } catch (Exception e) { /* ignore */ }
+        // 尚未实例化的延迟句柄没有存根与调用记录，无需为重置而创建mock
+        MockState state = MockState.peek(mock);
+        if (state != null) {
+            state.reset();
+        } else if (!MockState.isMock(mock)) {
+            throw new IllegalArgumentException("不是mock对象: " + (mock == null ? "null" : mock.getClass().getName()));
         }
         // 清理全局 ThreadLocal 状态 (已移除)
         // lastCallContext.remove();
@@ -181,22 +186,16 @@ public class Mock {
                     this.methodName = method.getName();
                     this.expectedArgs = args;
                     // 查找调用记录
-                    java.lang.reflect.InvocationHandler handler = java.lang.reflect.Proxy.getInvocationHandler(mock);
-                    if (handler instanceof MockitoAdapter.MockInvocationHandler) {
-                        MockitoAdapter.MockInvocationHandler h =
-                            (MockitoAdapter.MockInvocationHandler) handler;
-                        // 构造 key
-                        Object key = new MockitoAdapter.MockInvocationHandler.MethodCallKey(method.getName(), args);
-                        java.util.List<Object[]> callList = h.methodCalls.get(key);
-                        int actual = callList == null ? 0 : callList.size();
-                        if (expectedTimes >= 0 && actual != expectedTimes) {
-                            throw new AssertionError("方法 " + method.getName() + "(" + java.util.Arrays.toString(args) + ") 期望被调用 " + expectedTimes + " 次，实际 " + actual + " 次");
-                        }
-                        // 返回默认值
-                        return h.getDefaultReturnValue(method.getReturnType());
-                    } else {
-                        throw new UnsupportedOperationException("只支持 JDK Proxy mock 的 verify");
+                    MockState state = MockState.peek(mock);
+                    if (state == null && !MockState.isMock(mock)) {
+                        throw new UnsupportedOperationException("只支持本框架创建的mock的 verify");
+                    }
+                    int actual = state == null ? 0 : state.countInvocations(method.getName(), args);
+                    if (expectedTimes >= 0 && actual != expectedTimes) {
+                        throw new AssertionError("方法 " + method.getName() + "(" + java.util.Arrays.toString(args) + ") 期望被调用 " + expectedTimes + " 次，实际 " + actual + " 次");
                     }
+                    // 返回默认值
+                    return MockitoAdapter.MockInvocationHandler.getDefaultReturnValue(method.getReturnType());
                 }
             );
         }
@@ -0,0 +1,61 @@
+package com.mocktutorial.core.internal;
+
+import java.util.function.LongFunction;
+
+/**
+ * 单个整型参数方法的批量存根配置器，适合为大量id预置返回值的测试夹具。
+ * <ul>
+ *   <li>存根写入MockState的long键开放寻址表，不为每个条目创建参数数组、键对象与存根对象。</li>
+ *   <li>适用于参数为long/int/short/byte的方法，如findById(long)、deleteUser(long)。</li>
+ *   <li>与Mock.when配置的同参数存根互相覆盖，后配置者生效。</li>
+ * </ul>
+ * <p>
+ * 典型用法：
+ * <pre>
+ *   Mock.whenEach(mock, "findById", ids).thenReturn(id -&gt; Optional.of(new User(id, "user" + id)));
+ *   Mock.whenEach(mock, "deleteUser", ids).thenReturn(true);
+ * </pre>
+ * @param <T> mock类型
+ */
+public class BulkStubber<T> {
+    private final MockState state;
+    private final String methodName;
+    private final long[] keys;
+
+    /**
+     * 创建批量存根配置器
+     * @param mock mock对象
+     * @param methodName 方法名
+     * @param keys 参数值
+     * @throws IllegalArgumentException mock不是本框架创建的mock时抛出
+     */
+    public BulkStubber(T mock, String methodName, long[] keys) {
+        this.state = MockState.require(mock);
+        this.methodName = methodName;
+        this.keys = keys.clone();
+    }
+
+    /**
+     * 按参数值计算每个条目的返回值
+     * @param values 由参数值得到返回值
+     */
+    public void thenReturn(LongFunction<?> values) {
+        state.stubEach(methodName, keys, values);
+    }
+
+    /**
+     * 所有参数值返回同一个值
+     * @param value 返回值
+     */
+    public void thenReturn(Object value) {
+        state.stubEachAnswer(methodName, keys, MockState.returning(value));
+    }
+
+    /**
+     * 所有参数值抛出同一个异常
+     * @param throwable 要抛出的异常
+     */
+    public void thenThrow(Throwable throwable) {
+        state.stubEachAnswer(methodName, keys, MockState.throwing(throwable));
+    }
+}
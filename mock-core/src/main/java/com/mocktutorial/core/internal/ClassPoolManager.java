@@ -0,0 +1,206 @@
+package com.mocktutorial.core.internal;
+
+import javassist.ClassPath;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.LoaderClassPath;
+import javassist.NotFoundException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * 按类加载器管理Javassist ClassPool。
+ * <ul>
+ *   <li>每个类加载器对应一个ClassPool，且只包含该加载器这一条类路径，不会随调用次数增长。</li>
+ *   <li>从类路径读取的CtClass按LRU缓存，超出容量时淘汰最久未使用的未修改条目；
+ *       已修改的CtClass与makeClass创建的类在detach前始终保留，不计入可淘汰的部分。</li>
+ *   <li>类文件字节按总大小做LRU缓存，被淘汰的CtClass可直接从缓存重新解析。</li>
+ *   <li>以弱引用持有类加载器，加载器被回收后对应的ClassPool随之释放。</li>
+ * </ul>
+ * 使用方在修改完CtClass后仍应调用detach()，以便立即释放。
+ * <p>
+ * 典型用法：
+ * <pre>
+ *   ClassPool pool = ClassPoolManager.forLoader(type.getClassLoader());
+ *   CtClass ctClass = pool.get(type.getName());
+ *   try { ... } finally { ctClass.detach(); }
+ * </pre>
+ */
+public final class ClassPoolManager {
+    static final int MAX_CACHED_CLASSES = 512;
+    private static final int MAX_CACHED_BYTES = 4 << 20;
+
+    private static final Map<ClassLoader, ClassPool> pools = new WeakHashMap<>();
+
+    private ClassPoolManager() {
+    }
+
+    /**
+     * 返回指定类加载器对应的ClassPool，不存在时创建。
+     * @param loader 类加载器，null表示系统类加载器
+     * @return 该加载器的ClassPool
+     */
+    public static ClassPool forLoader(ClassLoader loader) {
+        ClassLoader key = loader != null ? loader : ClassLoader.getSystemClassLoader();
+        synchronized (pools) {
+            return pools.computeIfAbsent(key, ManagedClassPool::new);
+        }
+    }
+
+    /**
+     * 释放指定类加载器对应的ClassPool及其缓存。
+     * @param loader 类加载器，null表示系统类加载器
+     */
+    public static void release(ClassLoader loader) {
+        synchronized (pools) {
+            pools.remove(loader != null ? loader : ClassLoader.getSystemClassLoader());
+        }
+    }
+
+    /**
+     * 释放所有ClassPool。
+     */
+    public static void clear() {
+        synchronized (pools) {
+            pools.clear();
+        }
+    }
+
+    /**
+     * 返回当前管理的ClassPool数量。
+     * @return ClassPool数量
+     */
+    public static int poolCount() {
+        synchronized (pools) {
+            return pools.size();
+        }
+    }
+
+    /**
+     * 返回ClassPool中缓存的CtClass数量，不含基本类型。
+     * @param pool 由本类创建的ClassPool
+     * @return 缓存的CtClass数量，非托管的ClassPool返回-1
+     */
+    public static int cachedClassCount(ClassPool pool) {
+        return pool instanceof ManagedClassPool ? ((ManagedClassPool) pool).cachedClassCount() : -1;
+    }
+
+    /**
+     * 只包含单个类加载器类路径、CtClass缓存有上限的ClassPool。
+     */
+    private static final class ManagedClassPool extends ClassPool {
+        // 从类路径读取的类，按访问顺序淘汰
+        private final Map<String, CtClass> loaded = new LinkedHashMap<String, CtClass>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CtClass> eldest) {
+                // 最久未使用的条目可能正被修改，跳过已修改的条目，淘汰其后最久未使用的未修改条目
+                Iterator<CtClass> it = values().iterator();
+                while (size() > MAX_CACHED_CLASSES && it.hasNext()) {
+                    if (!it.next().isModified()) {
+                        it.remove();
+                    }
+                }
+                return false;
+            }
+        };
+        // makeClass创建的类，没有类文件可以重新读取，只在detach时移除
+        private final Map<String, CtClass> dynamic = new HashMap<>();
+
+        ManagedClassPool(ClassLoader loader) {
+            super(false);
+            appendClassPath(new CachingClassPath(new LoaderClassPath(loader)));
+        }
+
+        @Override
+        protected synchronized CtClass getCached(String classname) {
+            CtClass cached = dynamic.get(classname);
+            if (cached == null) {
+                cached = loaded.get(classname);
+            }
+            // 基本类型由ClassPool构造函数直接放入父类的表
+            return cached != null ? cached : super.getCached(classname);
+        }
+
+        @Override
+        protected synchronized void cacheCtClass(String classname, CtClass c, boolean dynamic) {
+            if (dynamic) {
+                loaded.remove(classname);
+                this.dynamic.put(classname, c);
+            } else {
+                loaded.put(classname, c);
+            }
+        }
+
+        @Override
+        protected synchronized CtClass removeCached(String classname) {
+            CtClass removed = dynamic.remove(classname);
+            if (removed == null) {
+                removed = loaded.remove(classname);
+            }
+            return removed != null ? removed : super.removeCached(classname);
+        }
+
+        synchronized int cachedClassCount() {
+            return loaded.size() + dynamic.size();
+        }
+    }
+
+    /**
+     * 缓存类文件字节的类路径，按总大小淘汰最久未使用的条目。
+     */
+    private static final class CachingClassPath implements ClassPath {
+        private final ClassPath delegate;
+        private int cachedBytes;
+        private final Map<String, byte[]> classfiles = new LinkedHashMap<String, byte[]>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+                if (cachedBytes <= MAX_CACHED_BYTES) {
+                    return false;
+                }
+                cachedBytes -= eldest.getValue().length;
+                return true;
+            }
+        };
+
+        CachingClassPath(ClassPath delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public synchronized InputStream openClassfile(String classname) throws NotFoundException {
+            byte[] classfile = classfiles.get(classname);
+            if (classfile == null) {
+                InputStream in = delegate.openClassfile(classname);
+                if (in == null) {
+                    return null;
+                }
+                try (InputStream input = in) {
+                    classfile = input.readAllBytes();
+                } catch (IOException e) {
+                    throw new NotFoundException("Failed to read class file: " + classname, e);
+                }
+                cachedBytes += classfile.length;
+                classfiles.put(classname, classfile);
+            }
+            return new ByteArrayInputStream(classfile);
+        }
+
+        @Override
+        public URL find(String classname) {
+            return delegate.find(classname);
+        }
+
+        @Override
+        public String toString() {
+            return delegate.toString();
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package com.mocktutorial.core.internal;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.function.Consumer;
+import java.util.function.LongFunction;
+
+/**
+ * 以long为键的开放寻址哈希表，供MockState保存单个整型参数方法的存根与调用计数。
+ * <ul>
+ *   <li>键直接存放在long[]中，不装箱，不创建参数数组与键对象；每个条目约占一个long与一个引用。</li>
+ *   <li>线性探测，容量为2的幂，负载因子不超过1/2，以值槽为null表示空位，不支持删除。</li>
+ *   <li>写入加锁；读取无锁：值以release写入、acquire读取，读到非null值即可见对应的键。</li>
+ *   <li>扩容时在新数组中重建后整体发布，读者看到的总是完整的表。</li>
+ * </ul>
+ *
+ * @param <V> 值类型
+ */
+final class LongKeyTable<V> {
+    private static final VarHandle VALUES = MethodHandles.arrayElementVarHandle(Object[].class);
+    private static final int MIN_CAPACITY = 16;
+
+    private volatile Buckets buckets;
+    private int size;
+
+    LongKeyTable() {
+        this(0);
+    }
+
+    /**
+     * @param expectedSize 预计条目数，批量写入时用于一次分配到位
+     */
+    LongKeyTable(int expectedSize) {
+        this.buckets = new Buckets(capacityFor(expectedSize));
+    }
+
+    /**
+     * @return 键对应的值，不存在时返回null
+     */
+    @SuppressWarnings("unchecked")
+    V get(long key) {
+        Buckets b = buckets;
+        int mask = b.keys.length - 1;
+        for (int i = index(key, mask); ; i = (i + 1) & mask) {
+            Object value = VALUES.getAcquire(b.values, i);
+            if (value == null) {
+                return null;
+            }
+            if (b.keys[i] == key) {
+                return (V) value;
+            }
+        }
+    }
+
+    /**
+     * 写入键值，已存在的键被覆盖
+     */
+    synchronized void put(long key, V value) {
+        if (value == null) {
+            throw new IllegalArgumentException("value不能为null");
+        }
+        ensureCapacity(size + 1);
+        if (insert(buckets, key, value)) {
+            size++;
+        }
+    }
+
+    /**
+     * 预留空间，批量写入前调用以避免多次扩容
+     *
+     * @param additional 即将新增的条目数上限
+     */
+    synchronized void reserve(int additional) {
+        ensureCapacity(size + additional);
+    }
+
+    /**
+     * 键不存在时用mapping创建值并写入
+     *
+     * @return 已有的值或新建的值
+     */
+    V computeIfAbsent(long key, LongFunction<? extends V> mapping) {
+        V value = get(key);
+        if (value != null) {
+            return value;
+        }
+        synchronized (this) {
+            value = get(key);
+            if (value == null) {
+                value = mapping.apply(key);
+                put(key, value);
+            }
+            return value;
+        }
+    }
+
+    /**
+     * 遍历当前所有值，不加锁；遍历期间新写入的条目可能遍历不到
+     */
+    void forEachValue(Consumer<? super V> action) {
+        Buckets b = buckets;
+        for (int i = 0; i < b.values.length; i++) {
+            @SuppressWarnings("unchecked")
+            V value = (V) VALUES.getAcquire(b.values, i);
+            if (value != null) {
+                action.accept(value);
+            }
+        }
+    }
+
+    /**
+     * @return 条目数
+     */
+    synchronized int size() {
+        return size;
+    }
+
+    private void ensureCapacity(int required) {
+        Buckets current = buckets;
+        if (required * 2 <= current.keys.length) {
+            return;
+        }
+        Buckets resized = new Buckets(capacityFor(required));
+        for (int i = 0; i < current.keys.length; i++) {
+            Object value = current.values[i];
+            if (value != null) {
+                insert(resized, current.keys[i], value);
+            }
+        }
+        buckets = resized;
+    }
+
+    /**
+     * @return 是否新增了条目（false表示覆盖）
+     */
+    private static boolean insert(Buckets b, long key, Object value) {
+        int mask = b.keys.length - 1;
+        for (int i = index(key, mask); ; i = (i + 1) & mask) {
+            Object existing = b.values[i];
+            if (existing == null) {
+                b.keys[i] = key;
+                VALUES.setRelease(b.values, i, value);
+                return true;
+            }
+            if (b.keys[i] == key) {
+                VALUES.setRelease(b.values, i, value);
+                return false;
+            }
+        }
+    }
+
+    private static int index(long key, int mask) {
+        // 混合高低位，避免连续id聚集在相邻槽位形成长探测链
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    private static int capacityFor(int entries) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < entries * 2 && capacity < (1 << 30)) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    private static final class Buckets {
+        final long[] keys;
+        final Object[] values;
+
+        Buckets(int capacity) {
+            this.keys = new long[capacity];
+            this.values = new Object[capacity];
+        }
+    }
+}
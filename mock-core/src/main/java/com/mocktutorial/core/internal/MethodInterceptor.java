@@ -1,15 +1,19 @@
 package com.mocktutorial.core.internal;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.function.BooleanSupplier;
+import java.util.function.DoubleSupplier;
 import java.util.function.Function;
-import com.mocktutorial.core.Mock;
+import java.util.function.IntSupplier;
+import java.util.function.LongFunction;
+import java.util.function.LongSupplier;
 
 /**
  * 【已更新V2】
  * mock方法行为存根和自定义实现的链式配置器。
  * <ul>
- *   <li>支持thenReturn/thenThrow/thenImplement链式API。</li>
+ *   <li>支持thenReturn/thenThrow/thenImplement链式API，thenReturn(a, b, c)依次返回多个值。</li>
+ *   <li>thenImplementLong与thenReturnInt/Long/Boolean/Double的存根不装箱参数与返回值，
+ *       增强mock上无参或单个整型参数的方法调用全程不分配对象。</li>
  *   <li>所有存根均为本mock实例独立，无全局状态。</li>
  *   <li>支持接口和类的mock，底层自动区分JDK Proxy和字节码增强。</li>
  * </ul>
@@ -47,45 +51,34 @@ public class MethodInterceptor<T> {
      * @param returnValue 返回值
      * @return ResultBuilder，可继续链式配置
      */
-    @SuppressWarnings("unchecked")
     public <R> ResultBuilder<R> thenReturn(R returnValue) {
-        if (mock != null) {
-            if (java.lang.reflect.Proxy.isProxyClass(mock.getClass())) {
-                com.mocktutorial.core.internal.MockitoAdapter.MockInvocationHandler.stubReturn(mock, methodName, args, returnValue);
-            } else {
-                try {
-                    java.lang.reflect.Field stubsField = mock.getClass().getDeclaredField("_methodStubs");
-                    stubsField.setAccessible(true);
-                    java.util.Map stubs = (java.util.Map) stubsField.get(mock);
-                    String callKey = methodName + java.util.Arrays.deepToString(args);
-                    stubs.put(callKey, returnValue);
-                } catch (Exception e) { throw new RuntimeException(e); }
-            }
-        }
+        stub(MockState.returning(returnValue));
         return new ResultBuilder<>(null);
     }
     
+    /**
+     * 配置方法依次返回多个值，用尽后重复最后一个值；并发调用各自取得不同的值。
+     * <p>
+     * 例：Mock.when(mock, "nextId").thenReturn(1L, 2L, 3L);
+     * @param <R> 返回类型
+     * @param first 第一次调用的返回值
+     * @param second 第二次调用的返回值
+     * @param rest 之后依次返回的值
+     * @return ResultBuilder，可继续链式配置
+     */
+    public <R> ResultBuilder<R> thenReturn(Object first, Object second, Object... rest) {
+        stub(MockState.consecutive(first, second, rest));
+        return new ResultBuilder<>(null);
+    }
+
     /**
      * 【已更新V2】
      * 配置方法抛出指定异常。
      * @param throwable 要抛出的异常
      * @return ResultBuilder，可继续链式配置
      */
-    @SuppressWarnings("unchecked")
     public <R> ResultBuilder<R> thenThrow(Throwable throwable) {
-        if (mock != null) {
-            if (java.lang.reflect.Proxy.isProxyClass(mock.getClass())) {
-                com.mocktutorial.core.internal.MockitoAdapter.MockInvocationHandler.stubThrow(mock, methodName, args, throwable);
-            } else {
-                try {
-                    java.lang.reflect.Field stubsField = mock.getClass().getDeclaredField("_methodStubs");
-                    stubsField.setAccessible(true);
-                    java.util.Map stubs = (java.util.Map) stubsField.get(mock);
-                    String callKey = methodName + java.util.Arrays.deepToString(args);
-                    stubs.put(callKey, throwable);
-                } catch (Exception e) { throw new RuntimeException(e); }
-            }
-        }
+        stub(MockState.throwing(throwable));
         return new ResultBuilder<>(null);
     }
     
@@ -96,23 +89,68 @@ public class MethodInterceptor<T> {
      * @param implementation 实现函数，参数为方法参数数组
      * @return ResultBuilder，可继续链式配置
      */
-    @SuppressWarnings("unchecked")
     public <R> ResultBuilder<R> thenImplement(Function<Object[], R> implementation) {
-        if (mock != null) {
-            if (java.lang.reflect.Proxy.isProxyClass(mock.getClass())) {
-                com.mocktutorial.core.internal.MockitoAdapter.MockInvocationHandler.stubImpl(mock, methodName, args, (Function<Object[], Object>) implementation);
-            } else {
-                try {
-                    java.lang.reflect.Field stubsField = mock.getClass().getDeclaredField("_methodStubs");
-                    stubsField.setAccessible(true);
-                    java.util.Map stubs = (java.util.Map) stubsField.get(mock);
-                    String callKey = methodName + java.util.Arrays.deepToString(args);
-                    stubs.put(callKey, implementation);
-                } catch (Exception e) { throw new RuntimeException(e); }
-            }
-        }
+        stub(MockState.implementing(implementation));
+        return new ResultBuilder<>(null);
+    }
+    
+    /**
+     * 按单个整型参数计算返回值，参数不装箱，适用于findById(long)等方法。
+     * @param <R> 返回类型
+     * @param implementation 由参数值得到返回值
+     * @return ResultBuilder，可继续链式配置
+     */
+    public <R> ResultBuilder<R> thenImplementLong(LongFunction<R> implementation) {
+        stub(MockState.implementingLong(implementation));
+        return new ResultBuilder<>(null);
+    }
+
+    /**
+     * 配置返回int的方法，每次调用从supplier取值，返回值不装箱。
+     * @param supplier 返回值来源
+     * @return ResultBuilder，可继续链式配置
+     */
+    public ResultBuilder<Integer> thenReturnInt(IntSupplier supplier) {
+        stub(MockState.supplyingInt(supplier));
         return new ResultBuilder<>(null);
     }
+
+    /**
+     * 配置返回long的方法，每次调用从supplier取值，返回值不装箱。
+     * @param supplier 返回值来源
+     * @return ResultBuilder，可继续链式配置
+     */
+    public ResultBuilder<Long> thenReturnLong(LongSupplier supplier) {
+        stub(MockState.supplyingLong(supplier));
+        return new ResultBuilder<>(null);
+    }
+
+    /**
+     * 配置返回boolean的方法，每次调用从supplier取值，返回值不装箱。
+     * @param supplier 返回值来源
+     * @return ResultBuilder，可继续链式配置
+     */
+    public ResultBuilder<Boolean> thenReturnBoolean(BooleanSupplier supplier) {
+        stub(MockState.supplyingBoolean(supplier));
+        return new ResultBuilder<>(null);
+    }
+
+    /**
+     * 配置返回double的方法，每次调用从supplier取值，返回值不装箱。
+     * @param supplier 返回值来源
+     * @return ResultBuilder，可继续链式配置
+     */
+    public ResultBuilder<Double> thenReturnDouble(DoubleSupplier supplier) {
+        stub(MockState.supplyingDouble(supplier));
+        return new ResultBuilder<>(null);
+    }
+
+    /**
+     * 将存根写入mock的共享状态，所有引擎创建的mock统一处理；mock为null或不是mock时抛出IllegalArgumentException
+     */
+    private void stub(MockState.Answer answer) {
+        MockState.require(mock).stub(methodName, args, answer);
+    }
     
     /**
      * 【已更新V2】
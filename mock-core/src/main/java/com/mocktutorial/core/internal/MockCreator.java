@@ -67,10 +67,8 @@ public class MockCreator {
             return (T) createInstance(enhancedClass);
         }
         // 创建增强类
-        ClassPool classPool = ClassPool.getDefault();
-        if (settings.getClassLoader() != null) {
-            classPool.appendClassPath(new LoaderClassPath(settings.getClassLoader()));
-        }
+        ClassPool classPool = ClassPoolManager.forLoader(
+            settings.getClassLoader() != null ? settings.getClassLoader() : classToMock.getClassLoader());
         CtClass originalClass = classPool.get(classToMock.getName());
         String enhancedClassName = classToMock.getName() + "$EnhancedMock$" + mockCounter.getAndIncrement();
         CtClass enhancedClass = classPool.makeClass(enhancedClassName);
@@ -79,14 +77,22 @@ public class MockCreator {
         } else {
             enhancedClass.setSuperclass(originalClass);
         }
-        // 添加mock跟踪字段
-        enhancedClass.addField(CtField.make("private static final java.util.Map _methodCalls = new java.util.HashMap();", enhancedClass));
-        enhancedClass.addField(CtField.make("private static final java.util.Map _methodReturns = new java.util.HashMap();", enhancedClass));
-        enhancedClass.addField(CtField.make("public static final java.util.Map _methodStubs = new java.util.HashMap();", enhancedClass));
+        // 添加mock状态字段：存根与调用记录由共享的MockState按实例保存
+        enhancedClass.addField(CtField.make("public final " + MockState.class.getName() + " " + MockState.FIELD_NAME
+                + " = new " + MockState.class.getName() + "();", enhancedClass));
+        // 实现MockState.Holder，存根与重置直接通过接口调用取得状态，无需反射读取字段
+        enhancedClass.addInterface(classPool.get(MockState.Holder.class.getName()));
+        enhancedClass.addMethod(CtNewMethod.make("public " + MockState.class.getName()
+                + " mockState() { return " + MockState.FIELD_NAME + "; }", enhancedClass));
         // 重写方法，支持存根和调用记录
         overrideMethods(enhancedClass, originalClass, settings);
         // 创建增强类
-        Class<?> resultClass = enhancedClass.toClass();
+        Class<?> resultClass;
+        try {
+            resultClass = enhancedClass.toClass();
+        } finally {
+            enhancedClass.detach();
+        }
         enhancedClasses.put(classToMock, resultClass);
         return (T) createInstance(resultClass);
     }
@@ -130,23 +136,12 @@ public class MockCreator {
             CtMethod newMethod = CtNewMethod.copy(method, enhancedClass, null);
             StringBuilder body = new StringBuilder();
             body.append("{\n");
-            // 记录调用
-            body.append("String methodKey = \"").append(method.getName()).append("\";\n");
-            body.append("Object[] args = $args;\n");
-            body.append("String callKey = methodKey + java.util.Arrays.deepToString(args);\n");
-            body.append("java.util.List callList = (java.util.List) _methodCalls.get(callKey);\n");
-            body.append("if (callList == null) { callList = new java.util.ArrayList(); _methodCalls.put(callKey, callList); }\n");
-            body.append("callList.add(args);\n");
-            // 存根优先
-            body.append("if (_methodStubs.containsKey(callKey)) {\n");
-            body.append("    Object stub = _methodStubs.get(callKey);\n");
-            body.append("    if (stub instanceof java.lang.Throwable) throw (java.lang.Throwable) stub;\n");
-            if (!method.getReturnType().equals(CtClass.voidType)) {
-                body.append("    return (" + method.getReturnType().getName() + ") stub;\n");
+            String primitiveArg = primitiveArgument(method);
+            if (primitiveArg != null) {
+                appendPrimitiveDispatch(body, method, primitiveArg);
             } else {
-                body.append("    return;\n");
+                appendGenericDispatch(body, method);
             }
-            body.append("}\n");
             // 默认返回值
             if (!method.getReturnType().equals(CtClass.voidType)) {
                 body.append("return ");
@@ -157,9 +152,10 @@ public class MockCreator {
                         body.append("(char) 0");
                     } else if (method.getReturnType().equals(CtClass.byteType) 
                             || method.getReturnType().equals(CtClass.shortType) 
-                            || method.getReturnType().equals(CtClass.intType) 
-                            || method.getReturnType().equals(CtClass.longType)) {
+                            || method.getReturnType().equals(CtClass.intType)) {
                         body.append("0");
+                    } else if (method.getReturnType().equals(CtClass.longType)) {
+                        body.append("0L");
                     } else if (method.getReturnType().equals(CtClass.floatType)) {
                         body.append("0.0f");
                     } else if (method.getReturnType().equals(CtClass.doubleType)) {
@@ -176,6 +172,84 @@ public class MockCreator {
         }
     }
     
+    /**
+     * 无参或单个整型参数的方法可走不装箱的分派，返回传给存根的long参数表达式；其他方法返回null
+     */
+    private static String primitiveArgument(CtMethod method) throws NotFoundException {
+        CtClass[] params = method.getParameterTypes();
+        if (params.length == 0) {
+            return "0L";
+        }
+        if (params.length == 1 && (params[0] == CtClass.longType || params[0] == CtClass.intType
+                || params[0] == CtClass.shortType || params[0] == CtClass.byteType)) {
+            return "(long) $1";
+        }
+        return null;
+    }
+
+    /**
+     * 通用分派：参数装箱为数组，由MockState按参数列表查找存根
+     */
+    private static void appendGenericDispatch(StringBuilder body, CtMethod method) throws NotFoundException {
+        // 记录调用并查找存根；超类构造函数中调用被重写方法时状态字段尚未初始化
+        body.append("Object[] args = $args;\n");
+        body.append(MockState.Answer.class.getName()).append(" stub = null;\n");
+        body.append("if (").append(MockState.FIELD_NAME).append(" != null) stub = ").append(MockState.FIELD_NAME)
+            .append(".invoked(\"").append(method.getName()).append("\", args);\n");
+        // 存根优先
+        body.append("if (stub != null) {\n");
+        if (!method.getReturnType().equals(CtClass.voidType)) {
+            body.append("    return ($r) stub.answer(args);\n");
+        } else {
+            body.append("    stub.answer(args);\n");
+            body.append("    return;\n");
+        }
+        body.append("}\n");
+    }
+
+    /**
+     * 不装箱的分派：参数以long传给MockState，PrimitiveAnswer直接给出基本类型返回值，
+     * 批量存根中直接保存的返回值按返回类型转换；只有普通Answer才构造参数数组
+     */
+    private static void appendPrimitiveDispatch(StringBuilder body, CtMethod method, String arg) throws NotFoundException {
+        String answer = MockState.Answer.class.getName();
+        String primitive = MockState.PrimitiveAnswer.class.getName();
+        CtClass returnType = method.getReturnType();
+        boolean isVoid = returnType.equals(CtClass.voidType);
+        body.append("Object stub = null;\n");
+        body.append("if (").append(MockState.FIELD_NAME).append(" != null) stub = ").append(MockState.FIELD_NAME);
+        if (method.getParameterTypes().length == 0) {
+            body.append(".invoked(\"").append(method.getName()).append("\", null);\n");
+        } else {
+            body.append(".invokedWithLong(\"").append(method.getName()).append("\", ").append(arg).append(");\n");
+        }
+        body.append("if (stub != null) {\n");
+        String call = "((" + primitive + ") stub)";
+        body.append("    if (stub instanceof ").append(primitive).append(") ");
+        if (isVoid) {
+            body.append("{ ").append(call).append(".answer(").append(arg).append("); return; }\n");
+        } else if (returnType == CtClass.booleanType) {
+            body.append("return ").append(call).append(".answerBoolean(").append(arg).append(");\n");
+        } else if (returnType == CtClass.doubleType || returnType == CtClass.floatType) {
+            body.append("return (").append(returnType.getName()).append(") ")
+                .append(call).append(".answerDouble(").append(arg).append(");\n");
+        } else if (returnType.isPrimitive()) {
+            body.append("return (").append(returnType.getName()).append(") ")
+                .append(call).append(".answerLong(").append(arg).append(");\n");
+        } else {
+            body.append("return ($r) ").append(call).append(".answer(").append(arg).append(");\n");
+        }
+        body.append("    if (stub instanceof ").append(answer).append(") ");
+        if (isVoid) {
+            body.append("{ ((").append(answer).append(") stub).answer($args); return; }\n");
+            body.append("    return;\n");
+        } else {
+            body.append("return ($r) ((").append(answer).append(") stub).answer($args);\n");
+            body.append("    return ($r) stub;\n");
+        }
+        body.append("}\n");
+    }
+
     /**
      * 【已更新V2】
      * 通过反射创建类实例，仅支持无参构造。
@@ -0,0 +1,676 @@
+package com.mocktutorial.core.internal;
+
+import net.sf.cglib.proxy.Callback;
+import net.sf.cglib.proxy.Factory;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+import java.util.function.DoubleSupplier;
+import java.util.function.Function;
+import java.util.function.IntSupplier;
+import java.util.function.LongFunction;
+import java.util.function.LongSupplier;
+
+/**
+ * 所有mock引擎共享的行为存根与调用记录。
+ * <ul>
+ *   <li>按方法名划分槽位，每个槽位持有该方法的存根表与调用计数。</li>
+ *   <li>读路径无锁：槽位与存根均存放在ConcurrentHashMap中，调用时只做get。</li>
+ *   <li>调用计数使用LongAdder，不保存参数列表。</li>
+ *   <li>参数匹配统一为Arrays.deepEquals语义，null参数与空参数等价。</li>
+ *   <li>只有一个整型参数（long/int/short/byte）的调用按long值存放在{@link LongKeyTable}中，
+ *       不创建参数数组与键对象；同名方法的整型参数按数值匹配，不区分装箱类型。</li>
+ *   <li>{@link PrimitiveAnswer}存根按long参数与基本类型返回值直接调用，Javassist增强mock
+ *       在无参或单个整型参数的方法上经{@link #invokedWithLong}分派，调用过程不分配对象。</li>
+ * </ul>
+ * 每个mock实例持有一个MockState：JDK Proxy/cglib mock由其处理器持有（实现{@link Holder}），
+ * Javassist增强mock由实例字段{@value #FIELD_NAME}持有，生成的类本身实现{@link Holder}。
+ * 各引擎与Mock.when/verify/reset统一通过{@link #of(Object)}查找，全程为接口调用，不使用反射。
+ */
+public final class MockState {
+    /** Javassist增强mock中保存MockState的实例字段名 */
+    public static final String FIELD_NAME = "_mockState";
+
+    private final ConcurrentHashMap<String, MethodSlot> slots = new ConcurrentHashMap<>();
+
+    /**
+     * 存根行为：根据调用参数给出返回值或抛出异常
+     */
+    @FunctionalInterface
+    public interface Answer {
+        /**
+         * @param args 调用参数，无参时为空数组或null
+         * @return 返回值，基本类型返回装箱值
+         * @throws Throwable 配置的异常
+         */
+        Object answer(Object[] args) throws Throwable;
+    }
+
+    /**
+     * 持有MockState的对象：mock的InvocationHandler/cglib回调，或Javassist增强mock本身
+     */
+    public interface Holder {
+        /**
+         * @return 所属mock的状态
+         */
+        MockState mockState();
+
+        /**
+         * 只读查询使用：延迟mock句柄不因此实例化，尚未实例化时返回null
+         *
+         * @return 所属mock的状态，尚未创建时返回null
+         */
+        default MockState peekMockState() {
+            return mockState();
+        }
+    }
+
+    /**
+     * 不装箱的存根，供无参或单个整型参数的方法使用：参数以long传入（无参方法为0），
+     * 基本类型返回值由answerLong/answerDouble/answerBoolean直接给出，int/short/byte/char按long收窄，float按double收窄。
+     * 默认实现由{@link #answer(long)}的返回值拆箱，子类按需覆盖以避免装箱。
+     */
+    public abstract static class PrimitiveAnswer implements Answer {
+        /**
+         * @param arg 单个整型参数的值，无参方法为0
+         * @return 返回值，基本类型返回装箱值
+         * @throws Throwable 配置的异常
+         */
+        public abstract Object answer(long arg) throws Throwable;
+
+        @Override
+        public Object answer(Object[] args) throws Throwable {
+            return answer(longArg(args));
+        }
+
+        public long answerLong(long arg) throws Throwable {
+            Object value = answer(arg);
+            return value instanceof Character ? (Character) value : ((Number) value).longValue();
+        }
+
+        public double answerDouble(long arg) throws Throwable {
+            return ((Number) answer(arg)).doubleValue();
+        }
+
+        public boolean answerBoolean(long arg) throws Throwable {
+            return (Boolean) answer(arg);
+        }
+
+        private static long longArg(Object[] args) {
+            if (args == null || args.length == 0) {
+                return 0;
+            }
+            if (args.length == 1 && isLongKey(args)) {
+                return longKey(args);
+            }
+            throw new IllegalArgumentException("该存根只适用于无参或单个整型参数的方法: " + Arrays.toString(args));
+        }
+    }
+
+    /**
+     * 返回固定值的存根；基本类型返回值在调用时从保存的包装值拆箱，不分配对象
+     */
+    public static PrimitiveAnswer returning(Object value) {
+        return new PrimitiveAnswer() {
+            @Override
+            public Object answer(Object[] args) {
+                return value;
+            }
+
+            @Override
+            public Object answer(long arg) {
+                return value;
+            }
+        };
+    }
+
+    /**
+     * 抛出异常的存根
+     */
+    public static PrimitiveAnswer throwing(Throwable throwable) {
+        return new PrimitiveAnswer() {
+            @Override
+            public Object answer(Object[] args) throws Throwable {
+                throw throwable;
+            }
+
+            @Override
+            public Object answer(long arg) throws Throwable {
+                throw throwable;
+            }
+        };
+    }
+
+    /**
+     * 依次返回first、second与rest中各值的存根，用尽后重复最后一个值
+     *
+     * @param <T> 返回值类型
+     * @param first 第一次调用的返回值
+     * @param second 第二次调用的返回值
+     * @param rest 之后依次返回的值
+     * @return 存根
+     */
+    @SafeVarargs
+    public static <T> PrimitiveAnswer consecutive(T first, T second, T... rest) {
+        Object[] values = new Object[rest.length + 2];
+        values[0] = first;
+        values[1] = second;
+        for (int i = 0; i < rest.length; i++) {
+            values[i + 2] = rest[i];
+        }
+        return consecutive(values);
+    }
+
+    /**
+     * 依次返回给定值的存根，用尽后重复最后一个值。
+     * 值预先复制到数组中，由AtomicLong游标分配下标：并发调用各自取得不同的元素，不加锁；
+     * 游标到达末尾后只读不写，之后的调用不再竞争同一个计数器。
+     *
+     * @param values 依次返回的值，至少一个
+     */
+    public static PrimitiveAnswer consecutive(Object... values) {
+        if (values == null || values.length == 0) {
+            throw new IllegalArgumentException("连续返回值至少需要一个");
+        }
+        Object[] sequence = values.clone();
+        int last = sequence.length - 1;
+        AtomicLong cursor = new AtomicLong();
+        return new PrimitiveAnswer() {
+            private Object next() {
+                if (cursor.get() >= last) {
+                    return sequence[last];
+                }
+                return sequence[(int) Math.min(cursor.getAndIncrement(), last)];
+            }
+
+            @Override
+            public Object answer(Object[] args) {
+                return next();
+            }
+
+            @Override
+            public Object answer(long arg) {
+                return next();
+            }
+        };
+    }
+
+    /**
+     * 自定义实现的存根
+     */
+    public static Answer implementing(Function<Object[], ?> implementation) {
+        return implementation::apply;
+    }
+
+    /**
+     * 按单个整型参数计算返回值的存根，参数不装箱
+     */
+    public static PrimitiveAnswer implementingLong(LongFunction<?> implementation) {
+        return new PrimitiveAnswer() {
+            @Override
+            public Object answer(long arg) {
+                return implementation.apply(arg);
+            }
+        };
+    }
+
+    /**
+     * 返回int的存根，返回值不装箱
+     */
+    public static PrimitiveAnswer supplyingInt(IntSupplier supplier) {
+        return new PrimitiveAnswer() {
+            @Override
+            public Object answer(Object[] args) {
+                return supplier.getAsInt();
+            }
+
+            @Override
+            public Object answer(long arg) {
+                return supplier.getAsInt();
+            }
+
+            @Override
+            public long answerLong(long arg) {
+                return supplier.getAsInt();
+            }
+
+            @Override
+            public double answerDouble(long arg) {
+                return supplier.getAsInt();
+            }
+        };
+    }
+
+    /**
+     * 返回long的存根，返回值不装箱
+     */
+    public static PrimitiveAnswer supplyingLong(LongSupplier supplier) {
+        return new PrimitiveAnswer() {
+            @Override
+            public Object answer(Object[] args) {
+                return supplier.getAsLong();
+            }
+
+            @Override
+            public Object answer(long arg) {
+                return supplier.getAsLong();
+            }
+
+            @Override
+            public long answerLong(long arg) {
+                return supplier.getAsLong();
+            }
+
+            @Override
+            public double answerDouble(long arg) {
+                return supplier.getAsLong();
+            }
+        };
+    }
+
+    /**
+     * 返回boolean的存根，返回值不装箱
+     */
+    public static PrimitiveAnswer supplyingBoolean(BooleanSupplier supplier) {
+        return new PrimitiveAnswer() {
+            @Override
+            public Object answer(Object[] args) {
+                return supplier.getAsBoolean();
+            }
+
+            @Override
+            public Object answer(long arg) {
+                return supplier.getAsBoolean();
+            }
+
+            @Override
+            public boolean answerBoolean(long arg) {
+                return supplier.getAsBoolean();
+            }
+        };
+    }
+
+    /**
+     * 返回double的存根，返回值不装箱
+     */
+    public static PrimitiveAnswer supplyingDouble(DoubleSupplier supplier) {
+        return new PrimitiveAnswer() {
+            @Override
+            public Object answer(Object[] args) {
+                return supplier.getAsDouble();
+            }
+
+            @Override
+            public Object answer(long arg) {
+                return supplier.getAsDouble();
+            }
+
+            @Override
+            public double answerDouble(long arg) {
+                return supplier.getAsDouble();
+            }
+        };
+    }
+
+    /**
+     * 查找mock对象的状态，延迟mock句柄会被实例化
+     *
+     * @param mock mock对象
+     * @return 状态，不是由本框架引擎创建的mock时返回null
+     */
+    public static MockState of(Object mock) {
+        Holder holder = holderOf(mock);
+        return holder == null ? null : holder.mockState();
+    }
+
+    /**
+     * 查找mock对象的状态，不实例化延迟mock句柄，供验证、重置等只读路径使用
+     *
+     * @param mock mock对象
+     * @return 状态，不是mock或延迟句柄尚未实例化时返回null
+     */
+    public static MockState peek(Object mock) {
+        Holder holder = holderOf(mock);
+        return holder == null ? null : holder.peekMockState();
+    }
+
+    /**
+     * @param mock 任意对象
+     * @return 是否为本框架创建的mock（含尚未实例化的延迟句柄）
+     */
+    public static boolean isMock(Object mock) {
+        return holderOf(mock) != null;
+    }
+
+    private static Holder holderOf(Object mock) {
+        if (mock == null) {
+            return null;
+        }
+        if (mock instanceof Holder) {
+            return (Holder) mock;
+        }
+        Class<?> type = mock.getClass();
+        if (Proxy.isProxyClass(type)) {
+            InvocationHandler handler = Proxy.getInvocationHandler(mock);
+            return handler instanceof Holder ? (Holder) handler : null;
+        }
+        if (mock instanceof Factory) {
+            for (Callback callback : ((Factory) mock).getCallbacks()) {
+                if (callback instanceof Holder) {
+                    return (Holder) callback;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 查找mock对象的状态，不是mock时抛出异常
+     *
+     * @param mock mock对象
+     * @return 状态
+     * @throws IllegalArgumentException mock为null或不是由本框架引擎创建的mock
+     */
+    public static MockState require(Object mock) {
+        MockState state = of(mock);
+        if (state == null) {
+            throw new IllegalArgumentException("不是mock对象: " + (mock == null ? "null" : mock.getClass().getName()));
+        }
+        return state;
+    }
+
+    /**
+     * 注册存根，相同方法名与参数的存根会被覆盖
+     */
+    public void stub(String methodName, Object[] args, Answer answer) {
+        MethodSlot slot = slot(methodName);
+        if (isLongKey(args)) {
+            slot.longStubs(0).put(longKey(args), answer);
+        } else {
+            slot.stubs.put(ArgsKey.copyOf(args), answer);
+        }
+    }
+
+    /**
+     * 批量注册单个整型参数方法的返回值，如findById(long)；每个条目只占一个long键与一个值引用
+     *
+     * @param methodName 方法名
+     * @param keys 参数值
+     * @param values 由参数值得到返回值
+     */
+    public void stubEach(String methodName, long[] keys, LongFunction<?> values) {
+        LongKeyTable<Object> table = slot(methodName).longStubs(keys.length);
+        for (long key : keys) {
+            table.put(key, storedValue(values.apply(key)));
+        }
+    }
+
+    /**
+     * 为单个整型参数方法的一批参数值注册同一个存根
+     */
+    public void stubEachAnswer(String methodName, long[] keys, Answer answer) {
+        LongKeyTable<Object> table = slot(methodName).longStubs(keys.length);
+        for (long key : keys) {
+            table.put(key, answer);
+        }
+    }
+
+    /**
+     * 查找存根，不记录调用
+     *
+     * @return 存根，未配置时返回null
+     */
+    public Answer findAnswer(String methodName, Object[] args) {
+        MethodSlot slot = slots.get(methodName);
+        if (slot == null) {
+            return null;
+        }
+        if (isLongKey(args)) {
+            return slot.findLongAnswer(longKey(args));
+        }
+        return slot.stubs.isEmpty() ? null : slot.stubs.get(ArgsKey.probe(args));
+    }
+
+    /**
+     * 记录一次调用并返回匹配的存根，供各引擎的拦截逻辑在一次槽位查找内完成两件事
+     *
+     * @return 存根，未配置时返回null
+     */
+    public Answer invoked(String methodName, Object[] args) {
+        MethodSlot slot = slot(methodName);
+        if (isLongKey(args)) {
+            long key = longKey(args);
+            slot.recordLong(key);
+            return slot.findLongAnswer(key);
+        }
+        ArgsKey key = ArgsKey.probe(args);
+        slot.record(key);
+        return slot.stubs.isEmpty() ? null : slot.stubs.get(key);
+    }
+
+    /**
+     * 单个整型参数调用的分派入口：记录调用并返回匹配的存根或批量存根中直接保存的返回值，参数不装箱。
+     * 返回值是{@link Answer}时按存根执行，否则即为返回值本身；供Javassist增强mock生成的方法调用。
+     *
+     * @return 存根或返回值，未配置时返回null
+     */
+    public Object invokedWithLong(String methodName, long arg) {
+        MethodSlot slot = slot(methodName);
+        slot.recordLong(arg);
+        LongKeyTable<Object> table = slot.longStubs;
+        return table == null ? null : table.get(arg);
+    }
+
+    /**
+     * 记录一次调用
+     */
+    public void recordInvocation(String methodName, Object[] args) {
+        MethodSlot slot = slot(methodName);
+        if (isLongKey(args)) {
+            slot.recordLong(longKey(args));
+        } else {
+            slot.record(ArgsKey.probe(args));
+        }
+    }
+
+    /**
+     * 返回以指定参数调用某方法的次数
+     */
+    public int countInvocations(String methodName, Object[] args) {
+        MethodSlot slot = slots.get(methodName);
+        if (slot == null) {
+            return 0;
+        }
+        LongAdder calls;
+        if (isLongKey(args)) {
+            LongKeyTable<LongAdder> longCalls = slot.longCalls;
+            calls = longCalls == null ? null : longCalls.get(longKey(args));
+        } else {
+            calls = slot.calls.get(ArgsKey.probe(args));
+        }
+        return calls == null ? 0 : calls.intValue();
+    }
+
+    /**
+     * 返回某方法（不区分参数）的总调用次数
+     */
+    public long invocationCount(String methodName) {
+        MethodSlot slot = slots.get(methodName);
+        if (slot == null) {
+            return 0;
+        }
+        // 由各参数的计数求和，与countInvocations始终一致
+        long[] total = {0};
+        slot.calls.values().forEach(calls -> total[0] += calls.sum());
+        LongKeyTable<LongAdder> longCalls = slot.longCalls;
+        if (longCalls != null) {
+            longCalls.forEachValue(calls -> total[0] += calls.sum());
+        }
+        return total[0];
+    }
+
+    /**
+     * 清除所有存根与调用记录
+     */
+    public void reset() {
+        slots.clear();
+    }
+
+    /**
+     * 只清除调用记录，保留存根。
+     * 计数器原地清零而不替换计数表，并发记录的调用不会写入已丢弃的表
+     */
+    public void clearInvocations() {
+        for (MethodSlot slot : slots.values()) {
+            slot.calls.values().forEach(LongAdder::reset);
+            LongKeyTable<LongAdder> longCalls = slot.longCalls;
+            if (longCalls != null) {
+                longCalls.forEachValue(LongAdder::reset);
+            }
+        }
+    }
+
+    private MethodSlot slot(String methodName) {
+        MethodSlot slot = slots.get(methodName);
+        return slot != null ? slot : slots.computeIfAbsent(methodName, name -> new MethodSlot());
+    }
+
+    /**
+     * 只有一个整型参数的调用按long键存放
+     */
+    private static boolean isLongKey(Object[] args) {
+        if (args == null || args.length != 1) {
+            return false;
+        }
+        Object arg = args[0];
+        return arg instanceof Long || arg instanceof Integer || arg instanceof Short || arg instanceof Byte;
+    }
+
+    private static long longKey(Object[] args) {
+        return ((Number) args[0]).longValue();
+    }
+
+    /**
+     * 整型键表中的值可以是存根或直接的返回值；本身是Answer或为null的返回值包装为存根，以免与存根混淆
+     */
+    private static Object storedValue(Object value) {
+        return value == null || value instanceof Answer ? returning(value) : value;
+    }
+
+    /**
+     * 单个方法的存根表与调用计数
+     */
+    private static final class MethodSlot {
+        final ConcurrentHashMap<ArgsKey, Answer> stubs = new ConcurrentHashMap<>();
+        final ConcurrentHashMap<ArgsKey, LongAdder> calls = new ConcurrentHashMap<>();
+        volatile LongKeyTable<Object> longStubs;
+        volatile LongKeyTable<LongAdder> longCalls;
+
+        /**
+         * 返回整型键存根表，必要时创建
+         *
+         * @param expectedSize 即将写入的条目数，用于预分配
+         */
+        LongKeyTable<Object> longStubs(int expectedSize) {
+            LongKeyTable<Object> table = longStubs;
+            if (table == null) {
+                synchronized (this) {
+                    table = longStubs;
+                    if (table == null) {
+                        table = new LongKeyTable<>(expectedSize);
+                        longStubs = table;
+                        return table;
+                    }
+                }
+            }
+            table.reserve(expectedSize);
+            return table;
+        }
+
+        Answer findLongAnswer(long key) {
+            LongKeyTable<Object> table = longStubs;
+            Object value = table == null ? null : table.get(key);
+            return value == null || value instanceof Answer ? (Answer) value : returning(value);
+        }
+
+        void recordLong(long key) {
+            LongKeyTable<LongAdder> table = longCalls;
+            if (table == null) {
+                synchronized (this) {
+                    table = longCalls;
+                    if (table == null) {
+                        table = new LongKeyTable<>();
+                        longCalls = table;
+                    }
+                }
+            }
+            table.computeIfAbsent(key, k -> new LongAdder()).increment();
+        }
+
+        void record(ArgsKey probe) {
+            LongAdder counter = calls.get(probe);
+            if (counter == null) {
+                counter = calls.computeIfAbsent(probe.copy(), k -> new LongAdder());
+            }
+            counter.increment();
+        }
+    }
+
+    /**
+     * 参数列表键，按Arrays.deepEquals比较
+     */
+    private static final class ArgsKey {
+        private static final Object[] NO_ARGS = new Object[0];
+        private static final ArgsKey EMPTY = new ArgsKey(NO_ARGS);
+
+        private final Object[] args;
+        private final int hash;
+
+        private ArgsKey(Object[] args) {
+            this(args, Arrays.deepHashCode(args));
+        }
+
+        private ArgsKey(Object[] args, int hash) {
+            this.args = args;
+            this.hash = hash;
+        }
+
+        /**
+         * 会被存入表中的键，复制参数数组以免调用方之后修改
+         */
+        static ArgsKey copyOf(Object[] args) {
+            return args == null || args.length == 0 ? EMPTY : new ArgsKey(args.clone());
+        }
+
+        /**
+         * 仅用于查找的键，不复制参数数组
+         */
+        static ArgsKey probe(Object[] args) {
+            return args == null || args.length == 0 ? EMPTY : new ArgsKey(args);
+        }
+
+        /**
+         * 由查找键得到可存入表中的键
+         */
+        ArgsKey copy() {
+            return this == EMPTY ? EMPTY : new ArgsKey(args.clone(), hash);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return this == other
+                    || other instanceof ArgsKey && hash == ((ArgsKey) other).hash
+                    && Arrays.deepEquals(args, ((ArgsKey) other).args);
+        }
+    }
+}
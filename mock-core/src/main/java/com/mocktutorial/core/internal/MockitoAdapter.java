@@ -9,8 +9,6 @@ import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
-import java.util.HashMap;
-import java.util.Map;
 
 /**
  * 【已更新V2】
@@ -71,51 +69,19 @@ public class MockitoAdapter {
      *   <li>所有行为和调用记录均为本mock实例独立。</li>
      * </ul>
      */
-    public static class MockInvocationHandler implements InvocationHandler {
+    public static class MockInvocationHandler implements InvocationHandler, MockState.Holder {
         private final Class<?> mockedInterface;
-        private final Map<String, Object> methodReturns = new HashMap<>();
-        public final Map<MethodCallKey, java.util.List<Object[]>> methodCalls = new HashMap<>();
-        // 新增：记录每个方法调用的存根行为（用于存根）
-        public final Map<MethodCallKey, StubBehavior> stubs = new HashMap<>();
-        /**
-         * 【已更新V2】
-         * 方法调用唯一标识，包含方法名和参数。
-         */
-        public static class MethodCallKey {
-            private final String methodName;
-            private final Object[] args;
-            public MethodCallKey(String methodName, Object[] args) {
-                this.methodName = methodName;
-                this.args = args == null ? new Object[0] : args.clone();
-            }
-            @Override
-            public boolean equals(Object o) {
-                if (this == o) return true;
-                if (o == null || getClass() != o.getClass()) return false;
-                MethodCallKey that = (MethodCallKey) o;
-                return methodName.equals(that.methodName) && java.util.Arrays.deepEquals(args, that.args);
-            }
-            @Override
-            public int hashCode() {
-                int result = methodName.hashCode();
-                result = 31 * result + java.util.Arrays.deepHashCode(args);
-                return result;
-            }
-        }
-        /**
-         * 【已更新V2】
-         * 存根行为封装，支持返回值、异常、实现函数。
-         */
-        public static class StubBehavior {
-            Object returnValue;
-            Throwable throwable;
-            java.util.function.Function<Object[], Object> implementation;
-        }
+        private final MockState state = new MockState();
         
         MockInvocationHandler(Class<?> mockedInterface) {
             this.mockedInterface = mockedInterface;
         }
         
+        @Override
+        public MockState mockState() {
+            return state;
+        }
+        
         /**
          * 【已更新V2】
          * 方法调用拦截逻辑：优先返回存根，其次处理集合方法，最后返回类型默认值。
@@ -130,15 +96,10 @@ public class MockitoAdapter {
             } else if (method.getName().equals("toString")) {
                 return "Mock of " + mockedInterface.getName() + "@" + Integer.toHexString(System.identityHashCode(proxy));
             }
-            // 记录方法调用（用于验证）
-            MethodCallKey callKey = new MethodCallKey(method.getName(), args);
-            methodCalls.computeIfAbsent(callKey, k -> new java.util.ArrayList<>()).add(args);
-            // 1. 优先查找 stub
-            StubBehavior stub = stubs.get(callKey);
+            // 1. 记录方法调用（用于验证），并优先查找 stub
+            MockState.Answer stub = state.invoked(method.getName(), args);
             if (stub != null) {
-                if (stub.throwable != null) throw stub.throwable;
-                if (stub.implementation != null) return stub.implementation.apply(args);
-                return stub.returnValue;
+                return stub.answer(args);
             }
             // 2. 处理 Collection 的常用方法
             String methodName = method.getName();
@@ -164,7 +125,7 @@ public class MockitoAdapter {
          * 【已更新V2】
          * 获取方法返回类型的默认值。对Optional/集合/布尔等类型有合理默认。
          */
-        public Object getDefaultReturnValue(Class<?> returnType) {
+        public static Object getDefaultReturnValue(Class<?> returnType) {
             if (returnType.equals(void.class)) {
                 return null;
             } else if (returnType.equals(boolean.class) || returnType.equals(Boolean.class)) {
@@ -205,41 +166,13 @@ public class MockitoAdapter {
 
         // 存根注册方法（供Mock/MethodInterceptor调用）
         public void setStub(String methodName, Object[] args, Object returnValue) {
-            MethodCallKey key = new MethodCallKey(methodName, args);
-            StubBehavior stub = new StubBehavior();
-            stub.returnValue = returnValue;
-            stubs.put(key, stub);
+            state.stub(methodName, args, MockState.returning(returnValue));
         }
         public void setStubThrow(String methodName, Object[] args, Throwable throwable) {
-            MethodCallKey key = new MethodCallKey(methodName, args);
-            StubBehavior stub = new StubBehavior();
-            stub.throwable = throwable;
-            stubs.put(key, stub);
+            state.stub(methodName, args, MockState.throwing(throwable));
         }
         public void setStubImpl(String methodName, Object[] args, java.util.function.Function<Object[], Object> impl) {
-            MethodCallKey key = new MethodCallKey(methodName, args);
-            StubBehavior stub = new StubBehavior();
-            stub.implementation = impl;
-            stubs.put(key, stub);
-        }
-        // 静态注册入口（便于 Mock/MethodInterceptor 调用）
-        public static void stubReturn(Object mock, String methodName, Object[] args, Object returnValue) {
-            InvocationHandler handler = Proxy.getInvocationHandler(mock);
-            if (handler instanceof MockInvocationHandler) {
-                ((MockInvocationHandler) handler).setStub(methodName, args, returnValue);
-            }
-        }
-        public static void stubThrow(Object mock, String methodName, Object[] args, Throwable throwable) {
-            InvocationHandler handler = Proxy.getInvocationHandler(mock);
-            if (handler instanceof MockInvocationHandler) {
-                ((MockInvocationHandler) handler).setStubThrow(methodName, args, throwable);
-            }
-        }
-        public static void stubImpl(Object mock, String methodName, Object[] args, java.util.function.Function<Object[], Object> impl) {
-            InvocationHandler handler = Proxy.getInvocationHandler(mock);
-            if (handler instanceof MockInvocationHandler) {
-                ((MockInvocationHandler) handler).setStubImpl(methodName, args, impl);
-            }
+            state.stub(methodName, args, MockState.implementing(impl));
         }
     }
 } 
\ No newline at end of file
@@ -0,0 +1,102 @@
+package com.mocktutorial.core.v3;
+
+import com.mocktutorial.core.internal.MockState;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+/**
+ * V3 延迟mock句柄：注入时只创建轻量的JDK Proxy，首次调用业务方法时才通过MockFactory.create创建真正的mock。
+ *
+ * 句柄与真正的mock对用户透明：句柄作为MockState.Holder，行为注册时实例化目标mock并返回其状态，
+ * 调用验证与重置只查看已实例化的目标，V2与V3的API都可直接作用于句柄。
+ * hashCode/equals/toString按句柄自身处理，不会触发实例化。
+ * 句柄必须可赋值给字段类型，因此只用于接口；句柄与真正的mock共用同一个JDK Proxy类，
+ * 实例化时不会再生成新类。
+ */
+final class LazyMock implements InvocationHandler, MockState.Holder {
+    private final Class<?> type;
+    private volatile Object target;
+
+    private LazyMock(Class<?> type) {
+        this.type = type;
+    }
+
+    /**
+     * 为接口类型创建延迟句柄
+     */
+    static <T> T create(Class<T> type) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, new LazyMock(type)));
+    }
+
+    /**
+     * 返回对象是否为尚未实例化的延迟句柄
+     */
+    static boolean isPending(Object mock) {
+        LazyMock lazy = handlerOf(mock);
+        return lazy != null && lazy.target == null;
+    }
+
+    private static LazyMock handlerOf(Object mock) {
+        if (mock == null || !Proxy.isProxyClass(mock.getClass())) {
+            return null;
+        }
+        InvocationHandler handler = Proxy.getInvocationHandler(mock);
+        return handler instanceof LazyMock ? (LazyMock) handler : null;
+    }
+
+    @Override
+    public MockState mockState() {
+        return MockState.of(materialize());
+    }
+
+    @Override
+    public MockState peekMockState() {
+        Object current = target;
+        return current == null ? null : MockState.of(current);
+    }
+
+    private Object materialize() {
+        Object current = target;
+        if (current == null) {
+            synchronized (this) {
+                current = target;
+                if (current == null) {
+                    current = MockFactory.create(type);
+                    if (current == null) {
+                        throw new IllegalStateException("无法创建mock: " + type.getName());
+                    }
+                    target = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        String name = method.getName();
+        if (name.equals("hashCode") && method.getParameterCount() == 0) {
+            return System.identityHashCode(proxy);
+        }
+        if (name.equals("equals") && method.getParameterCount() == 1) {
+            return proxy == args[0];
+        }
+        if (name.equals("toString") && method.getParameterCount() == 0) {
+            return "LazyMock(" + type.getSimpleName() + (target == null ? ", pending" : "") + ")@"
+                    + Integer.toHexString(System.identityHashCode(proxy));
+        }
+        Object mock = materialize();
+        if (Proxy.isProxyClass(mock.getClass())) {
+            // 直接交给目标mock的处理器，无需反射调用，proxy参数为目标mock以便按其查找行为
+            return Proxy.getInvocationHandler(mock).invoke(mock, method, args);
+        }
+        try {
+            return method.invoke(mock, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+}
@@ -42,6 +42,14 @@ public class Mock {
             MockFactory.registerBehavior(mock, new MockFactory.MockBehavior(methodName, args, value, null));
             return this;
         }
+        /**
+         * 配置方法依次返回多个值，用尽后重复最后一个值。
+         */
+        public WhenBuilder<T> thenReturn(Object first, Object second, Object... rest) {
+            this.returnValue = first;
+            MockFactory.registerBehavior(mock, MockFactory.MockBehavior.consecutive(methodName, args, first, second, rest));
+            return this;
+        }
         /**
          * 配置方法抛出异常。
          */
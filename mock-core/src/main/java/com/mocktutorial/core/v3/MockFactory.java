@@ -1,21 +1,28 @@
 package com.mocktutorial.core.v3;
 
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.List;
+import com.mocktutorial.core.internal.MockState;
+
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * V3 MockFactory: 统一mock对象创建、注册、查找、生命周期管理骨架。
+ * 行为配置与调用记录保存在每个mock自己的MockState中，与V2 API共用。
  */
 public class MockFactory {
     private static final Map<Class<?>, Object> registry = new ConcurrentHashMap<>();
-    private static final Map<Object, List<MockBehavior>> configRegistry = new ConcurrentHashMap<>();
     private static final InstrumentationEngine instrumentationEngine =
             MockAgent.isAvailable() ? new InstrumentationEngine(MockAgent.getInstrumentation()) : null;
     private static final ObjenesisEngine objenesisEngine = new ObjenesisEngine();
-    private static final Map<Object, List<InvocationRecord>> invocationRegistry = new ConcurrentHashMap<>();
+    /** 已创建mock的状态，仅用于clearAll/clearInvocations，mock被回收后自动移除 */
+    private static final Set<MockState> states = Collections.synchronizedSet(
+            Collections.newSetFromMap(new WeakHashMap<>()));
 
     public static <T> T create(Class<T> clazz) {
         T mock;
@@ -28,30 +35,47 @@ public class MockFactory {
         }
         if (mock != null) {
             registry.put(clazz, mock);
+            MockState state = MockState.of(mock);
+            if (state != null) {
+                states.add(state);
+            }
         }
         return mock;
     }
 
     /**
-     * 注册mock行为
+     * 创建延迟mock：接口类型返回延迟句柄，首次调用或注册行为时才真正创建mock；
+     * 类类型句柄无法避免生成子类，直接创建mock
+     */
+    public static <T> T createLazy(Class<T> clazz) {
+        return clazz.isInterface() ? LazyMock.create(clazz) : create(clazz);
+    }
+
+    /**
+     * 判断mock是否已真正创建，只有尚未被使用的延迟句柄返回false
+     */
+    public static boolean isMaterialized(Object mock) {
+        return !LazyMock.isPending(mock);
+    }
+
+    /**
+     * 注册mock行为，相同方法名与参数的行为会被覆盖；不是mock的对象忽略
      */
     public static void registerBehavior(Object mock, MockBehavior behavior) {
         if (mock == null || behavior == null) return;
-        configRegistry.computeIfAbsent(mock, k -> new ArrayList<>()).add(behavior);
+        MockState state = MockState.of(mock);
+        if (state == null) return;
+        state.stub(behavior.methodName, behavior.args, behavior);
     }
 
     /**
      * 查找mock行为（根据mock、方法名、参数）
      */
     public static MockBehavior findBehavior(Object mock, String methodName, Object[] args) {
-        List<MockBehavior> behaviors = configRegistry.get(mock);
-        if (behaviors == null) return null;
-        for (MockBehavior b : behaviors) {
-            if (b.matches(methodName, args)) {
-                return b;
-            }
-        }
-        return null;
+        MockState state = MockState.peek(mock);
+        if (state == null) return null;
+        MockState.Answer answer = state.findAnswer(methodName, args);
+        return answer instanceof MockBehavior ? (MockBehavior) answer : null;
     }
 
     @Deprecated
@@ -62,9 +86,19 @@ public class MockFactory {
         }
     }
 
+    /**
+     * 清除单个mock的行为配置与调用记录，mock对象本身仍可继续使用
+     */
+    public static void reset(Object mock) {
+        MockState state = MockState.peek(mock);
+        if (state != null) state.reset();
+    }
+
     public static void clearAll() {
         registry.clear();
-        configRegistry.clear();
+        for (MockState state : snapshotStates()) {
+            state.reset();
+        }
     }
 
     public static boolean isInstrumentationAvailable() {
@@ -78,16 +112,30 @@ public class MockFactory {
     /**
      * mock行为描述
      */
-    public static class MockBehavior {
+    public static class MockBehavior implements MockState.Answer {
         public final String methodName;
         public final Object[] args;
         public final Object returnValue;
         public final Throwable throwable;
+        private final MockState.Answer consecutive;
         public MockBehavior(String methodName, Object[] args, Object returnValue, Throwable throwable) {
+            this(methodName, args, returnValue, throwable, null);
+        }
+        private MockBehavior(String methodName, Object[] args, Object returnValue, Throwable throwable,
+                             MockState.Answer consecutive) {
             this.methodName = methodName;
             this.args = args;
             this.returnValue = returnValue;
             this.throwable = throwable;
+            this.consecutive = consecutive;
+        }
+        /**
+         * 依次返回多个值的行为，用尽后重复最后一个值；returnValue为第一个值
+         */
+        public static MockBehavior consecutive(String methodName, Object[] args, Object first, Object second,
+                                               Object... rest) {
+            MockState.Answer sequence = MockState.consecutive(first, second, rest);
+            return new MockBehavior(methodName, args, first, null, sequence);
         }
         public boolean matches(String methodName, Object[] args) {
             if (!Objects.equals(this.methodName, methodName)) return false;
@@ -100,55 +148,42 @@ public class MockFactory {
             }
             return true;
         }
+        @Override
+        public Object answer(Object[] args) throws Throwable {
+            if (throwable != null) throw throwable;
+            if (consecutive != null) return consecutive.answer(args);
+            return returnValue;
+        }
     }
 
     /**
      * 记录一次mock方法调用
      */
     public static void recordInvocation(Object mock, String methodName, Object[] args) {
-        invocationRegistry.computeIfAbsent(mock, k -> new ArrayList<>())
-                .add(new InvocationRecord(methodName, args));
+        MockState state = MockState.of(mock);
+        if (state != null) state.recordInvocation(methodName, args);
     }
 
     /**
      * 查询mock方法调用次数
      */
     public static int countInvocations(Object mock, String methodName, Object[] args) {
-        List<InvocationRecord> list = invocationRegistry.get(mock);
-        if (list == null) return 0;
-        int count = 0;
-        for (InvocationRecord rec : list) {
-            if (rec.matches(methodName, args)) count++;
-        }
-        return count;
+        MockState state = MockState.peek(mock);
+        return state == null ? 0 : state.countInvocations(methodName, args);
     }
 
     /**
      * 清空所有mock调用记录
      */
     public static void clearInvocations() {
-        invocationRegistry.clear();
+        for (MockState state : snapshotStates()) {
+            state.clearInvocations();
+        }
     }
 
-    /**
-     * mock方法调用记录
-     */
-    public static class InvocationRecord {
-        public final String methodName;
-        public final Object[] args;
-        public InvocationRecord(String methodName, Object[] args) {
-            this.methodName = methodName;
-            this.args = args == null ? null : args.clone();
-        }
-        public boolean matches(String methodName, Object[] args) {
-            if (!Objects.equals(this.methodName, methodName)) return false;
-            int thisLen = this.args == null ? 0 : this.args.length;
-            int thatLen = args == null ? 0 : args.length;
-            if (thisLen != thatLen) return false;
-            for (int i = 0; i < thisLen; i++) {
-                if (!Objects.equals(this.args[i], args[i])) return false;
-            }
-            return true;
+    private static List<MockState> snapshotStates() {
+        synchronized (states) {
+            return new ArrayList<>(states);
         }
     }
-} 
\ No newline at end of file
+}
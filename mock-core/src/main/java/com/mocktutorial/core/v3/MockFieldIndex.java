@@ -0,0 +1,147 @@
+package com.mocktutorial.core.v3;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.CodeSource;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * V3 @MockField编译期索引的运行时视图。
+ *
+ * mock-processor在编译输出中生成META-INF/mocktutorial/mockfield.index，登记声明了
+ * @MockField字段的类。索引按类加载器读取一次并缓存；每个索引只覆盖它所在的
+ * 类路径根（目录或jar），来自未生成索引的位置的类仍需反射扫描。
+ */
+public final class MockFieldIndex {
+    /** 索引资源位置，与mock-processor中的MockFieldIndexProcessor.INDEX_LOCATION一致 */
+    public static final String INDEX_LOCATION = "META-INF/mocktutorial/mockfield.index";
+
+    private static final MockFieldIndex EMPTY = new MockFieldIndex(Collections.emptySet(), Collections.emptySet());
+    private static final Map<ClassLoader, MockFieldIndex> indexes = new WeakHashMap<>();
+
+    private final Set<String> roots;
+    private final Set<String> classNames;
+
+    private MockFieldIndex(Set<String> roots, Set<String> classNames) {
+        this.roots = roots;
+        this.classNames = classNames;
+    }
+
+    /**
+     * 判断某个类或其父类是否可能声明@MockField字段
+     *
+     * @param type 待检查的类
+     * @return 索引确认没有@MockField字段时返回false；被索引登记或不在索引覆盖范围内时返回true
+     */
+    public static boolean mayDeclareMockFields(Class<?> type) {
+        ClassLoader loader = type.getClassLoader();
+        if (loader == null) {
+            // 引导类加载器中的类不可能使用@MockField
+            return false;
+        }
+        return forLoader(loader).mayDeclare(type);
+    }
+
+    /**
+     * 返回类加载器可见的所有索引合并后的视图
+     *
+     * @param loader 类加载器
+     * @return 索引，类路径上没有索引时为空索引
+     */
+    static MockFieldIndex forLoader(ClassLoader loader) {
+        synchronized (indexes) {
+            MockFieldIndex index = indexes.get(loader);
+            if (index == null) {
+                index = load(loader);
+                indexes.put(loader, index);
+            }
+            return index;
+        }
+    }
+
+    /**
+     * 返回索引是否登记了某个类
+     *
+     * @param className 类的二进制名
+     * @return 是否登记
+     */
+    boolean contains(String className) {
+        return classNames.contains(className);
+    }
+
+    private boolean mayDeclare(Class<?> type) {
+        for (Class<?> current = type; current != null && current != Object.class; current = current.getSuperclass()) {
+            if (classNames.contains(current.getName()) || !covers(current)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 判断类是否来自某个生成了索引的类路径根
+     */
+    private boolean covers(Class<?> type) {
+        if (type.getClassLoader() == null) {
+            return true;
+        }
+        if (roots.isEmpty()) {
+            return false;
+        }
+        CodeSource source = type.getProtectionDomain().getCodeSource();
+        if (source == null || source.getLocation() == null) {
+            return false;
+        }
+        return roots.contains(normalize(source.getLocation().toString()));
+    }
+
+    private static MockFieldIndex load(ClassLoader loader) {
+        Set<String> roots = new HashSet<>();
+        Set<String> classNames = new HashSet<>();
+        try {
+            Enumeration<URL> resources = loader.getResources(INDEX_LOCATION);
+            while (resources.hasMoreElements()) {
+                URL resource = resources.nextElement();
+                String location = resource.toString();
+                roots.add(normalize(location.substring(0, location.length() - INDEX_LOCATION.length())));
+                try (BufferedReader reader = new BufferedReader(
+                        new InputStreamReader(resource.openStream(), StandardCharsets.UTF_8))) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        if (!line.isBlank()) {
+                            classNames.add(line.trim());
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // 索引不可读时退回反射扫描
+            return EMPTY;
+        }
+        return roots.isEmpty() ? EMPTY : new MockFieldIndex(roots, classNames);
+    }
+
+    /**
+     * 将索引资源的根与CodeSource位置统一为同一形式：jar:file:/a.jar!/ 与 file:/a.jar 均为 file:/a.jar
+     */
+    private static String normalize(String location) {
+        if (location.startsWith("jar:")) {
+            location = location.substring("jar:".length());
+        }
+        if (location.endsWith("!/")) {
+            location = location.substring(0, location.length() - 2);
+        }
+        if (location.endsWith("/")) {
+            location = location.substring(0, location.length() - 1);
+        }
+        return location;
+    }
+}
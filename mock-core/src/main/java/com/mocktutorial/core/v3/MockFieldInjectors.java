@@ -0,0 +1,126 @@
+package com.mocktutorial.core.v3;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * V3 @MockField字段注入：不依赖Spring，可直接在JUnit的@BeforeEach中使用。
+ *
+ * 每个类只扫描一次继承体系，@MockField字段预先解析为setter句柄并按类缓存；
+ * MockFieldIndex确认没有@MockField字段的类不做反射，直接缓存为空数组。
+ * <pre>
+ * &#64;BeforeEach
+ * void setUp() {
+ *     MockFieldInjectors.injectMocks(this);
+ * }
+ * </pre>
+ */
+public final class MockFieldInjectors {
+    private static final Injector[] NO_INJECTORS = new Injector[0];
+    private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
+    private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+
+    private static final ClassValue<Injector[]> INJECTORS = new ClassValue<>() {
+        @Override
+        protected Injector[] computeValue(Class<?> type) {
+            return MockFieldIndex.mayDeclareMockFields(type) ? scan(type) : NO_INJECTORS;
+        }
+    };
+
+    private MockFieldInjectors() {
+    }
+
+    /**
+     * 为对象的所有@MockField字段注入新建的mock对象
+     *
+     * @param target 目标对象，如测试类实例
+     * @return 注入的字段数
+     */
+    public static int injectMocks(Object target) {
+        Injector[] injectors = INJECTORS.get(target.getClass());
+        for (Injector injector : injectors) {
+            injector.set(target, MockFactory.create(injector.type()), target.getClass().getName());
+        }
+        return injectors.length;
+    }
+
+    /**
+     * 返回某个类（含父类）中@MockField字段的注入器，结果按类缓存
+     *
+     * @param type 类
+     * @return 注入器数组，没有@MockField字段时为空数组
+     */
+    static Injector[] forClass(Class<?> type) {
+        return INJECTORS.get(type);
+    }
+
+    /**
+     * 扫描类的继承体系，为每个@MockField字段构建注入器
+     */
+    private static Injector[] scan(Class<?> type) {
+        List<Injector> injectors = new ArrayList<>();
+        for (Class<?> current = type; current != null && current != Object.class; current = current.getSuperclass()) {
+            for (Field field : current.getDeclaredFields()) {
+                if (field.isAnnotationPresent(MockField.class)) {
+                    injectors.add(new Injector(field));
+                }
+            }
+        }
+        return injectors.isEmpty() ? NO_INJECTORS : injectors.toArray(NO_INJECTORS);
+    }
+
+    /**
+     * 单个@MockField字段的注入器，setter句柄统一适配为(Object, Object)void，getter句柄适配为(Object)Object
+     */
+    static final class Injector {
+        private final Field field;
+        private final MethodHandle setter;
+        private final MethodHandle getter;
+
+        Injector(Field field) {
+            this.field = field;
+            try {
+                field.setAccessible(true);
+                MethodHandle handle = MethodHandles.lookup().unreflectSetter(field);
+                MethodHandle reader = MethodHandles.lookup().unreflectGetter(field);
+                if (Modifier.isStatic(field.getModifiers())) {
+                    handle = MethodHandles.dropArguments(handle, 0, Object.class);
+                    reader = MethodHandles.dropArguments(reader, 0, Object.class);
+                }
+                this.setter = handle.asType(SETTER_TYPE);
+                this.getter = reader.asType(GETTER_TYPE);
+            } catch (IllegalAccessException e) {
+                throw new RuntimeException("无法访问@MockField字段: " + field, e);
+            }
+        }
+
+        Class<?> type() {
+            return field.getType();
+        }
+
+        Object get(Object target, String targetName) {
+            try {
+                return (Object) getter.invokeExact(target);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new RuntimeException("读取'" + targetName + "'的mock字段失败: " + field.getName(), e);
+            }
+        }
+
+        void set(Object target, Object mock, String targetName) {
+            try {
+                setter.invokeExact(target, mock);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new RuntimeException("为'" + targetName + "'注入mock字段失败: " + field.getName(), e);
+            }
+        }
+    }
+}
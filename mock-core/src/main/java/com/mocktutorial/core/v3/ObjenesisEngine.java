@@ -1,5 +1,6 @@
 package com.mocktutorial.core.v3;
 
+import com.mocktutorial.core.internal.MockState;
 import org.objenesis.Objenesis;
 import org.objenesis.ObjenesisStd;
 import java.lang.reflect.Proxy;
@@ -11,6 +12,7 @@ import net.sf.cglib.proxy.MethodProxy;
 
 /**
  * V3 ObjenesisEngine: 无Agent场景下对象分配和mock实现骨架。
+ * 每个mock的处理器持有其MockState，存根与调用记录与其他引擎共用同一套实现。
  */
 public class ObjenesisEngine {
     private final Objenesis objenesis = new ObjenesisStd();
@@ -39,9 +41,16 @@ public class ObjenesisEngine {
     }
 
     /**
-     * JDK Proxy方法拦截器：查找MockFactory行为并执行
+     * JDK Proxy方法拦截器：查找MockState中的存根并执行
      */
-    private static class MockInvocationHandler implements InvocationHandler {
+    private static class MockInvocationHandler implements InvocationHandler, MockState.Holder {
+        private final MockState state = new MockState();
+
+        @Override
+        public MockState mockState() {
+            return state;
+        }
+
         @Override
         public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
             String name = method.getName();
@@ -55,11 +64,9 @@ public class ObjenesisEngine {
             if (name.equals("toString") && method.getParameterCount() == 0) {
                 return "MockProxy(" + proxy.getClass().getInterfaces()[0].getSimpleName() + ")@" + Integer.toHexString(System.identityHashCode(proxy));
             }
-            MockFactory.recordInvocation(proxy, method.getName(), args);
-            MockFactory.MockBehavior behavior = MockFactory.findBehavior(proxy, method.getName(), args);
-            if (behavior != null) {
-                if (behavior.throwable != null) throw behavior.throwable;
-                return behavior.returnValue;
+            MockState.Answer answer = state.invoked(method.getName(), args);
+            if (answer != null) {
+                return answer.answer(args);
             }
             // 默认返回null或基本类型默认值
             Class<?> returnType = method.getReturnType();
@@ -78,9 +85,16 @@ public class ObjenesisEngine {
     }
 
     /**
-     * cglib方法拦截器：查找MockFactory行为并执行
+     * cglib方法拦截器：查找MockState中的存根并执行
      */
-    private static class CglibMockInterceptor implements MethodInterceptor {
+    private static class CglibMockInterceptor implements MethodInterceptor, MockState.Holder {
+        private final MockState state = new MockState();
+
+        @Override
+        public MockState mockState() {
+            return state;
+        }
+
         @Override
         public Object intercept(Object obj, java.lang.reflect.Method method, Object[] args, MethodProxy proxy) throws Throwable {
             String name = method.getName();
@@ -94,11 +108,9 @@ public class ObjenesisEngine {
             if (name.equals("toString") && method.getParameterCount() == 0) {
                 return "MockProxy(" + obj.getClass().getSuperclass().getSimpleName() + ")@" + Integer.toHexString(System.identityHashCode(obj));
             }
-            MockFactory.recordInvocation(obj, method.getName(), args);
-            MockFactory.MockBehavior behavior = MockFactory.findBehavior(obj, method.getName(), args);
-            if (behavior != null) {
-                if (behavior.throwable != null) throw behavior.throwable;
-                return behavior.returnValue;
+            MockState.Answer answer = state.invoked(method.getName(), args);
+            if (answer != null) {
+                return answer.answer(args);
             }
             // 默认返回null或基本类型默认值
             Class<?> returnType = method.getReturnType();
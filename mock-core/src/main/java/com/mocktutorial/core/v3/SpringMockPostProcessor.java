@@ -1,75 +1,73 @@
 package com.mocktutorial.core.v3;
 
 import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.BeanFactory;
+import org.springframework.beans.factory.BeanFactoryAware;
 import org.springframework.beans.factory.config.BeanPostProcessor;
-import org.springframework.lang.Nullable;
-import java.lang.reflect.Field;
-import java.util.HashSet;
-import java.util.Set;
-import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.util.ReflectionUtils;
-import com.mocktutorial.core.v3.MockField;
+import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
+import com.mocktutorial.core.internal.MockState;
 
 /**
  * V3 Spring集成：自动mock依赖Bean的BeanPostProcessor骨架。
  *
  * 支持：
- * 1. 标注@Mock的字段自动注入mock对象（需自定义@Mock注解）。
+ * 1. 标注@MockField的字段自动注入mock对象。
  * 2. 可扩展为根据配置/条件自动mock指定Bean。
+ *
+ * 字段元数据由MockFieldInjectors按类缓存；有@MockField编译期索引时，
+ * 索引确认没有mock字段的Bean类不做反射扫描，后置处理只需一次查表。
+ * 注入的mock由容器内的SpringMockTracker记录，测试之间可按容器重置。
+ * 每个字段只创建一个mock：初始化后回调读取字段当前值，仍是mock的字段保持不变，
+ * 两个回调之间不保存任何状态；为null的字段（如AOP代理子类上未使用的字段）不注入。
  */
-public class SpringMockPostProcessor implements BeanPostProcessor {
-    private static final Set<Class<?>> mockedTypes = new HashSet<>();
+public class SpringMockPostProcessor implements BeanPostProcessor, BeanFactoryAware {
+    private SpringMockTracker tracker;
 
-    public SpringMockPostProcessor() {
-        System.err.println("[SpringMockPostProcessor] Constructor called");
+    @Override
+    public void setBeanFactory(BeanFactory beanFactory) throws BeansException {
+        if (beanFactory instanceof ConfigurableListableBeanFactory) {
+            tracker = SpringMockTracker.of((ConfigurableListableBeanFactory) beanFactory);
+        }
     }
 
     @Override
     public Object postProcessBeforeInitialization(Object bean, String beanName) throws BeansException {
-        // 遍历字段，若有@Mock注解则自动注入mock对象
-        ReflectionUtils.doWithFields(bean.getClass(), field -> {
-            if (field.isAnnotationPresent(MockField.class)) {
-                boolean accessible = field.canAccess(bean);
-                field.setAccessible(true);
-                Object mock = MockFactory.create(field.getType());
-                try {
-                    field.set(bean, mock);
-                    mockedTypes.add(field.getType());
-                } catch (IllegalAccessException e) {
-                    throw new RuntimeException(e);
-                }
-                field.setAccessible(accessible);
-            }
-        });
+        // 若有@MockField字段则自动注入mock对象
+        for (MockFieldInjectors.Injector injector : MockFieldInjectors.forClass(bean.getClass())) {
+            injectMock(injector, bean, beanName);
+        }
         return bean;
     }
 
     @Override
     public Object postProcessAfterInitialization(Object bean, String beanName) throws BeansException {
-        System.err.println("[SpringMockPostProcessor] postProcessAfterInitialization for bean: " + beanName + ", class: " + bean.getClass().getName());
-        // 强制：所有@Mock字段都用mock覆盖
-        ReflectionUtils.doWithFields(bean.getClass(), field -> {
-            if (field.isAnnotationPresent(MockField.class)) {
-                boolean accessible = field.canAccess(bean);
-                field.setAccessible(true);
-                Object mock = MockFactory.create(field.getType());
-                try {
-                    System.err.println("[SpringMockPostProcessor] Injecting mock for field '" + field.getName() + "' of type '" + field.getType().getName() + "' in bean '" + beanName + "' -> mock: " + mock);
-                    field.set(bean, mock);
-                    mockedTypes.add(field.getType());
-                    Object after = field.get(bean);
-                    System.err.println("[SpringMockPostProcessor] After injection, field value: " + after);
-                } catch (IllegalAccessException e) {
-                    throw new RuntimeException(e);
-                }
-                field.setAccessible(accessible);
+        // 强制：初始化回调替换了依赖的@MockField字段重新用mock覆盖，仍是mock的字段不再新建
+        for (MockFieldInjectors.Injector injector : MockFieldInjectors.forClass(bean.getClass())) {
+            Object current = injector.get(bean, beanName);
+            if (current != null && !MockState.isMock(current)) {
+                injectMock(injector, bean, beanName);
             }
-        });
+        }
         return bean;
     }
 
+    /**
+     * 返回某个类（含父类）中@MockField字段的数量
+     *
+     * @param type Bean类
+     * @return 需要注入mock的字段数
+     */
+    static int mockFieldCount(Class<?> type) {
+        return MockFieldInjectors.forClass(type).length;
+    }
+
+    private void injectMock(MockFieldInjectors.Injector injector, Object bean, String beanName) {
+        Object mock = MockFactory.createLazy(injector.type());
+        injector.set(bean, tracker == null ? mock : tracker.track(mock), beanName);
+    }
+
     /**
      * 自定义@Mock注解，标记需要自动注入mock的字段。
      */
     public @interface Mock {}
-} 
\ No newline at end of file
+}
@@ -0,0 +1,145 @@
+package com.mocktutorial.core.v3;
+
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.annotation.AnnotatedBeanDefinition;
+import org.springframework.beans.factory.config.BeanDefinition;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.beans.factory.config.ConfigurableBeanFactory;
+import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
+import org.springframework.beans.factory.support.BeanDefinitionRegistry;
+import org.springframework.beans.factory.support.BeanDefinitionRegistryPostProcessor;
+import org.springframework.beans.factory.support.RootBeanDefinition;
+import org.springframework.core.type.MethodMetadata;
+import org.springframework.util.ClassUtils;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * V3 Spring集成：在Bean实例化之前把被mock类型的Bean定义替换为mock定义。
+ *
+ * 与SpringMockPostProcessor（初始化前后覆盖字段）相比：
+ * 1. 被替换的真实Bean不会被创建，其依赖也不会被构建；
+ * 2. 每个被mock的类型只创建一个mock，作为单例Bean注入所有依赖方；
+ * 3. 标注@MockField的字段在初始化前注入同一个mock，无需@Autowired。
+ *
+ * 被mock的类型来自构造参数，以及所有可解析Bean类中@MockField字段的类型。
+ * 由于本类是BeanDefinitionRegistryPostProcessor，@Bean方法应声明为static；
+ * 两种模式二选一，不要同时注册SpringMockPostProcessor。
+ * 创建的mock由容器内的SpringMockTracker记录，测试之间可按容器重置。
+ */
+public class SpringMockRegistryPostProcessor implements BeanDefinitionRegistryPostProcessor {
+    private final Set<Class<?>> explicitTypes;
+    private final Map<Class<?>, String> mockBeanNames = new LinkedHashMap<>();
+    private final Map<Class<?>, Object> unregisteredMocks = new ConcurrentHashMap<>();
+    private volatile SpringMockTracker tracker;
+
+    /**
+     * @param types 除@MockField字段类型外，额外需要替换为mock的类型
+     */
+    public SpringMockRegistryPostProcessor(Class<?>... types) {
+        this.explicitTypes = new LinkedHashSet<>(Arrays.asList(types));
+    }
+
+    @Override
+    public void postProcessBeanDefinitionRegistry(BeanDefinitionRegistry registry) throws BeansException {
+        ClassLoader loader = registry instanceof ConfigurableBeanFactory
+                ? ((ConfigurableBeanFactory) registry).getBeanClassLoader()
+                : ClassUtils.getDefaultClassLoader();
+        Map<String, Class<?>> beanTypes = new LinkedHashMap<>();
+        for (String name : registry.getBeanDefinitionNames()) {
+            Class<?> type = resolveBeanType(registry.getBeanDefinition(name), loader);
+            if (type != null) {
+                beanTypes.put(name, type);
+            }
+        }
+
+        Set<Class<?>> mockedTypes = new LinkedHashSet<>(explicitTypes);
+        for (Class<?> beanType : beanTypes.values()) {
+            for (MockFieldInjectors.Injector injector : MockFieldInjectors.forClass(beanType)) {
+                mockedTypes.add(injector.type());
+            }
+        }
+
+        for (Class<?> mockedType : mockedTypes) {
+            List<String> replaced = new ArrayList<>();
+            beanTypes.forEach((name, beanType) -> {
+                if (mockedType.isAssignableFrom(beanType)) {
+                    replaced.add(name);
+                }
+            });
+            String mockName = replaced.isEmpty() ? mockedType.getName() + "#mock" : replaced.get(0);
+            for (String name : replaced) {
+                registry.removeBeanDefinition(name);
+                beanTypes.remove(name);
+            }
+            registry.registerBeanDefinition(mockName, mockDefinition(mockedType));
+            for (String alias : replaced.subList(Math.min(1, replaced.size()), replaced.size())) {
+                registry.registerAlias(mockName, alias);
+            }
+            mockBeanNames.put(mockedType, mockName);
+        }
+    }
+
+    @Override
+    public void postProcessBeanFactory(ConfigurableListableBeanFactory beanFactory) throws BeansException {
+        tracker = SpringMockTracker.of(beanFactory);
+        beanFactory.addBeanPostProcessor(new BeanPostProcessor() {
+            @Override
+            public Object postProcessBeforeInitialization(Object bean, String beanName) throws BeansException {
+                for (MockFieldInjectors.Injector injector : MockFieldInjectors.forClass(bean.getClass())) {
+                    injector.set(bean, mockFor(beanFactory, injector.type()), beanName);
+                }
+                return bean;
+            }
+        });
+    }
+
+    /**
+     * 返回类型对应的mock：已注册为Bean的直接取单例，否则（Bean类在注册阶段无法解析）按类型只创建一次
+     */
+    private Object mockFor(ConfigurableListableBeanFactory beanFactory, Class<?> type) {
+        String name = mockBeanNames.get(type);
+        if (name != null) {
+            return beanFactory.getBean(name);
+        }
+        return unregisteredMocks.computeIfAbsent(type, this::createMock);
+    }
+
+    private <T> T createMock(Class<T> type) {
+        T mock = MockFactory.createLazy(type);
+        return tracker == null ? mock : tracker.track(mock);
+    }
+
+    private <T> RootBeanDefinition mockDefinition(Class<T> type) {
+        RootBeanDefinition definition = new RootBeanDefinition(type, () -> createMock(type));
+        definition.setPrimary(true);
+        return definition;
+    }
+
+    /**
+     * 在不实例化Bean的前提下解析其类型：@Bean方法取返回类型，其余取Bean类名
+     */
+    private static Class<?> resolveBeanType(BeanDefinition definition, ClassLoader loader) {
+        String typeName = definition.getBeanClassName();
+        if (definition instanceof AnnotatedBeanDefinition) {
+            MethodMetadata factoryMethod = ((AnnotatedBeanDefinition) definition).getFactoryMethodMetadata();
+            if (factoryMethod != null) {
+                typeName = factoryMethod.getReturnTypeName();
+            }
+        }
+        if (typeName == null) {
+            return null;
+        }
+        try {
+            return ClassUtils.forName(typeName, loader);
+        } catch (ClassNotFoundException | LinkageError e) {
+            return null;
+        }
+    }
+}
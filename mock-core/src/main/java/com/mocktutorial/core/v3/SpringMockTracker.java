@@ -0,0 +1,140 @@
+package com.mocktutorial.core.v3;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.ListableBeanFactory;
+import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
+import org.springframework.beans.factory.support.DefaultSingletonBeanRegistry;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * V3 Spring集成：记录某个容器中由SpringMockPostProcessor/SpringMockRegistryPostProcessor创建的mock。
+ *
+ * 跟踪器以单例Bean的形式注册在容器中，与容器同生命周期。每个测试结束后调用
+ * {@link #resetMocks(ListableBeanFactory)}只清除这些mock的行为配置与调用记录，
+ * 容器本身无需标记为dirty，可在整个测试套件中缓存复用。
+ *
+ * 接口类型的mock以延迟句柄注入，容器关闭时记录有多少mock从未被实例化。
+ */
+public class SpringMockTracker implements DisposableBean {
+    private static final Logger logger = LoggerFactory.getLogger(SpringMockTracker.class);
+
+    /** 跟踪器在容器中的Bean名 */
+    public static final String BEAN_NAME = SpringMockTracker.class.getName();
+
+    private final Set<Object> mocks = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    /**
+     * 返回容器中的跟踪器，不存在时注册一个
+     *
+     * @param beanFactory 容器的BeanFactory
+     * @return 跟踪器
+     */
+    static SpringMockTracker of(ConfigurableListableBeanFactory beanFactory) {
+        synchronized (beanFactory.getSingletonMutex()) {
+            if (beanFactory.containsSingleton(BEAN_NAME)) {
+                return (SpringMockTracker) beanFactory.getSingleton(BEAN_NAME);
+            }
+            SpringMockTracker tracker = new SpringMockTracker();
+            beanFactory.registerSingleton(BEAN_NAME, tracker);
+            if (beanFactory instanceof DefaultSingletonBeanRegistry) {
+                // 手动注册的单例不会自动参与销毁回调
+                ((DefaultSingletonBeanRegistry) beanFactory).registerDisposableBean(BEAN_NAME, tracker);
+            }
+            return tracker;
+        }
+    }
+
+    /**
+     * 清除容器中所有被跟踪mock的行为配置与调用记录
+     *
+     * @param beanFactory 容器，通常为测试上下文中的ApplicationContext
+     * @return 被重置的mock数量，容器中没有跟踪器时为0
+     */
+    public static int resetMocks(ListableBeanFactory beanFactory) {
+        if (!beanFactory.containsBean(BEAN_NAME)) {
+            return 0;
+        }
+        return beanFactory.getBean(BEAN_NAME, SpringMockTracker.class).resetAll();
+    }
+
+    /**
+     * 记录一个mock
+     *
+     * @param mock mock对象，为null时忽略
+     * @return 传入的mock
+     */
+    <T> T track(T mock) {
+        if (mock != null) {
+            synchronized (mocks) {
+                mocks.add(mock);
+            }
+        }
+        return mock;
+    }
+
+    /**
+     * 清除所有被跟踪mock的行为配置与调用记录
+     *
+     * @return 被重置的mock数量
+     */
+    public int resetAll() {
+        List<Object> snapshot;
+        synchronized (mocks) {
+            snapshot = new ArrayList<>(mocks);
+        }
+        for (Object mock : snapshot) {
+            MockFactory.reset(mock);
+        }
+        return snapshot.size();
+    }
+
+    /**
+     * 返回仍未实例化（从未被调用、注册行为）的延迟mock数量
+     *
+     * @return 未实例化的mock数量
+     */
+    public int pendingCount() {
+        List<Object> snapshot;
+        synchronized (mocks) {
+            snapshot = new ArrayList<>(mocks);
+        }
+        int pending = 0;
+        for (Object mock : snapshot) {
+            if (!MockFactory.isMaterialized(mock)) {
+                pending++;
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * 返回注入mock的统计信息
+     *
+     * @return 形如"注入mock 12个，其中9个从未实例化"的描述
+     */
+    public String report() {
+        return "注入mock " + size() + "个，其中" + pendingCount() + "个从未实例化";
+    }
+
+    @Override
+    public void destroy() {
+        logger.info("[SpringMockTracker] {}", report());
+    }
+
+    /**
+     * 返回被跟踪的mock数量
+     *
+     * @return mock数量
+     */
+    public int size() {
+        synchronized (mocks) {
+            return mocks.size();
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.mocktutorial.core.internal;
+
+import javassist.ClassPool;
+import javassist.CtClass;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * ClassPoolManager测试：验证按类加载器管理ClassPool与CtClass缓存上限。
+ */
+public class ClassPoolManagerTest {
+
+    @Test
+    public void testClassPoolPerLoader() throws Exception {
+        System.out.println("[ClassPool] 同一类加载器应复用同一个ClassPool");
+        ClassLoader loader = getClass().getClassLoader();
+        ClassPool pool = ClassPoolManager.forLoader(loader);
+        assertSame(pool, ClassPoolManager.forLoader(loader), "同一加载器应返回同一个ClassPool");
+        assertSame(pool.get(MockState.class.getName()), pool.get(MockState.class.getName()), "重复查找应命中缓存");
+
+        System.out.println("[ClassPool] 反复解析并detach类文件，缓存大小应保持不变");
+        byte[] classfile;
+        try (InputStream in = loader.getResourceAsStream(LongKeyTable.class.getName().replace('.', '/') + ".class")) {
+            classfile = in.readAllBytes();
+        }
+        int cached = ClassPoolManager.cachedClassCount(pool);
+        for (int i = 0; i < 100; i++) {
+            CtClass ctClass = pool.makeClass(new ByteArrayInputStream(classfile));
+            ctClass.detach();
+        }
+        assertEquals(cached, ClassPoolManager.cachedClassCount(pool), "detach后缓存不应增长");
+
+        System.out.println("[ClassPool] 不同加载器使用独立的ClassPool，可单独释放");
+        ClassLoader other = new ClassLoader(loader) { };
+        int pools = ClassPoolManager.poolCount();
+        assertNotSame(pool, ClassPoolManager.forLoader(other), "不同加载器应使用不同的ClassPool");
+        assertEquals(pools + 1, ClassPoolManager.poolCount(), "应新增一个ClassPool");
+        ClassPoolManager.release(other);
+        assertEquals(pools, ClassPoolManager.poolCount(), "释放后ClassPool数量应恢复");
+        System.out.println("[通过] ClassPool按加载器管理正确");
+    }
+
+    @Test
+    public void testModifiedEldestClassDoesNotBlockEviction() throws Exception {
+        System.out.println("[ClassPool] 最久未使用的类被修改后，继续读取更多类");
+        ClassLoader loader = new ClassLoader(getClass().getClassLoader()) { };
+        ClassPool pool = ClassPoolManager.forLoader(loader);
+        try {
+            List<String> classNames = jdkClassNames(ClassPoolManager.MAX_CACHED_CLASSES + 100);
+            CtClass modified = pool.get(classNames.get(0));
+            modified.setModifiers(modified.getModifiers());
+            assertTrue(modified.isModified(), "应标记为已修改");
+            for (String className : classNames.subList(1, classNames.size())) {
+                pool.get(className);
+            }
+            System.out.println("实际缓存数: " + ClassPoolManager.cachedClassCount(pool));
+            assertEquals(ClassPoolManager.MAX_CACHED_CLASSES, ClassPoolManager.cachedClassCount(pool),
+                "已修改的最久条目不应阻止淘汰其后的未修改条目");
+            assertSame(modified, pool.get(classNames.get(0)), "已修改的类在detach前应保留");
+            System.out.println("[通过] 缓存上限不受已修改条目影响");
+        } finally {
+            ClassPoolManager.release(loader);
+        }
+    }
+
+    /**
+     * 从运行时镜像中列出java.base的类名
+     */
+    private static List<String> jdkClassNames(int count) throws Exception {
+        Path root = FileSystems.getFileSystem(URI.create("jrt:/")).getPath("modules", "java.base");
+        try (Stream<Path> files = Files.walk(root.resolve("java"))) {
+            return files.map(path -> root.relativize(path).toString())
+                .filter(name -> name.endsWith(".class"))
+                .map(name -> name.substring(0, name.length() - ".class".length()).replace('/', '.'))
+                .limit(count)
+                .collect(Collectors.toList());
+        }
+    }
+}
@@ -0,0 +1,350 @@
+package com.mocktutorial.core.internal;
+
+import com.mocktutorial.core.Mock;
+import com.mocktutorial.core.v3.MockFactory;
+import org.junit.jupiter.api.Test;
+
+import com.sun.management.ThreadMXBean;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * MockState共享状态测试：验证三种引擎创建的mock使用同一套存根与调用记录。
+ */
+public class MockStateTest {
+    public interface Greeter {
+        String greet(String name);
+        int count(int[] values);
+    }
+
+    public interface Repository {
+        String findById(long id);
+        boolean delete(long id);
+        String findByName(String name);
+    }
+
+    public static class Ledger {
+        public long balance(long account) {
+            return account;
+        }
+
+        public boolean active(int id) {
+            return true;
+        }
+
+        public double rate() {
+            return 1.0;
+        }
+
+        public String owner(long account) {
+            return "real";
+        }
+
+        public void touch(long account) {
+        }
+    }
+
+    public static class Counter {
+        public int next(int step) {
+            return step;
+        }
+    }
+
+    @Test
+    void testAllEnginesShareMockState() {
+        Greeter adapterMock = Mock.mock(Greeter.class);
+        Greeter v3Mock = MockFactory.create(Greeter.class);
+        Counter enhancedMock = Mock.mock(Counter.class, Mock.withSettings().useEnhancedMock());
+
+        for (Object mock : new Object[]{adapterMock, v3Mock, enhancedMock}) {
+            assertNotNull(MockState.of(mock), "每个引擎的mock都应有MockState: " + mock);
+        }
+        Mock.when(adapterMock, "greet", "a").thenReturn("adapter");
+        Mock.when(v3Mock, "greet", "b").thenReturn("v3");
+        assertEquals("adapter", adapterMock.greet("a"));
+        assertEquals("v3", v3Mock.greet("b"), "V2 API应能为V3 mock配置存根");
+        assertEquals(1, MockFactory.countInvocations(v3Mock, "greet", new Object[]{"b"}));
+        assertEquals(1, MockState.of(adapterMock).countInvocations("greet", new Object[]{"a"}));
+
+        Mock.when(adapterMock, "count", (Object) new int[]{1, 2}).thenReturn(2);
+        assertEquals(2, adapterMock.count(new int[]{1, 2}), "数组参数应按内容匹配");
+
+        assertNotNull(MockState.of(enhancedMock), "增强mock应持有实例级MockState");
+        Mock.when(enhancedMock, "next", 1).thenReturn(42);
+        assertEquals(42, enhancedMock.next(1), "增强mock应从MockState返回存根，基本类型需拆箱");
+        assertEquals(0, enhancedMock.next(2), "未配置存根时返回默认值");
+        Mock.reset(enhancedMock);
+        assertEquals(0, enhancedMock.next(1), "Mock.reset应清除增强mock的存根");
+
+        Mock.reset(v3Mock);
+        assertNull(v3Mock.greet("b"), "Mock.reset应能重置V3 mock");
+        assertEquals(1, MockState.of(v3Mock).invocationCount("greet"), "重置后只有新的调用被记录");
+        assertThrows(IllegalArgumentException.class, () -> Mock.when("不是mock", "length").thenReturn(1));
+    }
+
+    @Test
+    void testEnhancedMockBulkStubbing() {
+        Counter enhancedMock = Mock.mock(Counter.class, Mock.withSettings().useEnhancedMock());
+        assertTrue(enhancedMock instanceof MockState.Holder, "增强mock应实现MockState.Holder");
+        assertSame(MockState.of(enhancedMock), ((MockState.Holder) enhancedMock).mockState());
+
+        int entries = 10_000;
+        long start = System.nanoTime();
+        for (int i = 0; i < entries; i++) {
+            Mock.when(enhancedMock, "next", i).thenReturn(i * 2);
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.println("[MockState] 增强mock批量存根" + entries + "条耗时: " + elapsed / 1_000_000 + " ms");
+        for (int i = 0; i < entries; i++) {
+            assertEquals(i * 2, enhancedMock.next(i), "批量存根应全部生效");
+        }
+
+        Mock.reset(enhancedMock);
+        assertEquals(0, enhancedMock.next(1), "重置后存根应被清除");
+        assertThrows(IllegalArgumentException.class, () -> Mock.reset(new Counter()), "重置非mock对象应抛出异常");
+        assertThrows(IllegalArgumentException.class, () -> Mock.when(null, "next", 1).thenReturn(1));
+    }
+
+    @Test
+    void testBulkLongKeyStubbing() {
+        Repository mock = Mock.mock(Repository.class);
+        int entries = 200_000;
+        long[] ids = new long[entries];
+        for (int i = 0; i < entries; i++) {
+            ids[i] = i * 7L - 1000;
+        }
+        long start = System.nanoTime();
+        Mock.whenEach(mock, "findById", ids).thenReturn(id -> "user" + id);
+        Mock.whenEach(mock, "delete", ids).thenReturn(true);
+        long elapsed = System.nanoTime() - start;
+        System.out.println("[MockState] 批量存根" + entries * 2 + "条耗时: " + elapsed / 1_000_000 + " ms");
+
+        for (long id : ids) {
+            assertEquals("user" + id, mock.findById(id), "批量存根应按id返回");
+        }
+        assertTrue(mock.delete(-1000L));
+        assertNull(mock.findById(2L), "未配置的id返回默认值");
+        assertFalse(mock.delete(3L), "未配置的id返回基本类型默认值");
+
+        Mock.when(mock, "findById", 6L).thenReturn("override");
+        assertEquals("override", mock.findById(6L), "Mock.when应覆盖批量存根");
+        Mock.when(mock, "findById", 13).thenReturn("int");
+        assertEquals("int", mock.findById(13L), "整型参数按数值匹配，不区分装箱类型");
+        Mock.whenEach(mock, "findById", 20L).thenThrow(new IllegalStateException("boom"));
+        assertThrows(IllegalStateException.class, () -> mock.findById(20L));
+        Mock.when(mock, "findByName", "a").thenReturn("a");
+        assertEquals("a", mock.findByName("a"), "非整型参数仍按参数列表匹配");
+
+        MockState state = MockState.of(mock);
+        assertEquals(1, state.countInvocations("findById", new Object[]{-1000L}));
+        assertEquals(1, state.countInvocations("findById", new Object[]{6L}), "整型参数的调用按id计数");
+        state.clearInvocations();
+        assertEquals(0, state.countInvocations("findById", new Object[]{6L}));
+        assertEquals("override", mock.findById(6L), "清除调用记录不影响存根");
+        Mock.reset(mock);
+        assertNull(mock.findById(6L), "重置后整型键存根应被清除");
+    }
+
+    @Test
+    void testClearInvocationsDuringRecording() throws Exception {
+        MockState state = new MockState();
+        int threads = 4;
+        int calls = 50_000;
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < calls; i++) {
+                    state.invokedWithLong("findById", i & 7);
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        start.countDown();
+        for (int i = 0; i < 200; i++) {
+            state.clearInvocations();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long perKey = 0;
+        for (long key = 0; key < 8; key++) {
+            perKey += state.countInvocations("findById", new Object[]{key});
+        }
+        assertEquals(perKey, state.invocationCount("findById"), "清除期间并发记录后，总次数应等于各参数次数之和");
+
+        state.clearInvocations();
+        for (int i = 0; i < 80; i++) {
+            state.invokedWithLong("findById", i & 7);
+        }
+        assertEquals(80, state.invocationCount("findById"), "清除后的调用不应丢失");
+        assertEquals(10, state.countInvocations("findById", new Object[]{3L}));
+    }
+
+    @Test
+    void testLongKeyTable() {
+        LongKeyTable<String> table = new LongKeyTable<>();
+        for (long key = -5000; key < 5000; key++) {
+            table.put(key * 1024, "v" + key);
+        }
+        table.put(Long.MIN_VALUE, "min");
+        table.put(0L, "zero");
+        assertEquals(10_001, table.size(), "覆盖已有键不应增加条目数");
+        for (long key = -5000; key < 5000; key++) {
+            assertEquals(key == 0 ? "zero" : "v" + key, table.get(key * 1024), "扩容后应保留所有条目");
+        }
+        assertEquals("min", table.get(Long.MIN_VALUE));
+        assertNull(table.get(1L));
+        assertEquals("zero", table.computeIfAbsent(0L, k -> "other"));
+        assertEquals("new", table.computeIfAbsent(1L, k -> "new"));
+    }
+
+    @Test
+    void testPrimitiveDispatchWithoutAllocation() {
+        Ledger ledger = Mock.mock(Ledger.class, Mock.withSettings().useEnhancedMock());
+        long[] ids = {1, 2, 3};
+        Mock.when(ledger, "balance", 1L).thenReturn(100L);
+        Mock.when(ledger, "balance", 2L).thenReturnLong(() -> 200L);
+        Mock.when(ledger, "balance", 3L).thenImplement(args -> (Long) args[0] * 100);
+        Mock.whenEach(ledger, "active", ids).thenReturn(false);
+        Mock.whenEach(ledger, "owner", ids).thenReturn(id -> "owner" + id);
+        Mock.when(ledger, "rate").thenReturnDouble(() -> 0.5);
+        LongAdder touched = new LongAdder();
+        Mock.when(ledger, "touch", 1L).thenImplementLong(id -> {
+            touched.increment();
+            return null;
+        });
+
+        assertEquals(100L, ledger.balance(1L), "固定返回值从包装值拆箱");
+        assertEquals(200L, ledger.balance(2L), "LongSupplier存根不装箱返回");
+        assertEquals(300L, ledger.balance(3L), "普通存根仍按参数数组调用，参数保持原包装类型");
+        assertEquals(0L, ledger.balance(4L), "未配置存根时返回默认值");
+        assertFalse(ledger.active(2), "int参数按long键匹配批量存根");
+        assertEquals("owner3", ledger.owner(3L), "批量存根直接保存的返回值");
+        assertEquals(0.5, ledger.rate(), "无参方法走不装箱分派");
+        ledger.touch(1L);
+        assertEquals(1, touched.intValue(), "void方法调用LongFunction存根");
+
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long sink = 0;
+        int calls = 200_000;
+        for (int round = 0; round < 2; round++) {
+            // 第一轮预热，第二轮统计分配
+            long before = threads.getThreadAllocatedBytes(thread);
+            for (int i = 0; i < calls; i++) {
+                sink += ledger.balance(1L) + ledger.balance(2L) + (ledger.active(1) ? 1 : 0) + (long) ledger.rate();
+            }
+            long allocated = threads.getThreadAllocatedBytes(thread) - before;
+            if (round == 1) {
+                System.out.println("[MockState] 基本类型分派" + calls * 4 + "次调用共分配: " + allocated + " bytes");
+                assertTrue(allocated < calls, "基本类型分派每次调用不应分配对象，实际共分配" + allocated + "字节");
+            }
+        }
+        assertEquals(2L * calls * 300, sink);
+        assertEquals(2 * calls + 1, MockState.of(ledger).countInvocations("balance", new Object[]{1L}));
+    }
+
+    @Test
+    void testConsecutiveAnswers() throws InterruptedException {
+        Greeter adapterMock = Mock.mock(Greeter.class);
+        Mock.when(adapterMock, "greet", "x").thenReturn("a", "b", "c");
+        assertEquals("a", adapterMock.greet("x"));
+        assertEquals("b", adapterMock.greet("x"));
+        assertEquals("c", adapterMock.greet("x"));
+        assertEquals("c", adapterMock.greet("x"), "用尽后重复最后一个值");
+
+        Ledger ledger = Mock.mock(Ledger.class, Mock.withSettings().useEnhancedMock());
+        Mock.when(ledger, "balance", 1L).thenReturn(10L, 20L);
+        assertEquals(10L, ledger.balance(1L), "增强mock的基本类型分派应按顺序返回");
+        assertEquals(20L, ledger.balance(1L));
+        assertEquals(20L, ledger.balance(1L));
+
+        Greeter v3Mock = MockFactory.create(Greeter.class);
+        com.mocktutorial.core.v3.Mock.when(v3Mock, "greet", "y").thenReturn("1", "2");
+        assertEquals("1", v3Mock.greet("y"), "V3 API应支持连续返回值");
+        assertEquals("2", v3Mock.greet("y"));
+        assertEquals("2", v3Mock.greet("y"));
+
+        // 并发调用各自取得不同的元素
+        int threads = 8;
+        int perThread = 5_000;
+        Integer[] values = new Integer[threads * perThread];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = i;
+        }
+        Counter counter = Mock.mock(Counter.class, Mock.withSettings().useEnhancedMock());
+        Mock.when(counter, "next", 1).thenReturn(values[0], values[1], Arrays.copyOfRange(values, 2, values.length));
+        AtomicIntegerArray seen = new AtomicIntegerArray(values.length);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                for (int i = 0; i < perThread; i++) {
+                    seen.incrementAndGet(counter.next(1));
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        for (int i = 0; i < values.length; i++) {
+            assertEquals(1, seen.get(i), "第" + i + "个值应恰好被取到一次");
+        }
+        assertEquals(values.length - 1, counter.next(1), "序列用尽后重复最后一个值");
+        assertThrows(IllegalArgumentException.class, () -> MockState.consecutive());
+    }
+
+    @Test
+    void testConcurrentInvocationCounting() throws InterruptedException {
+        Greeter mock = Mock.mock(Greeter.class);
+        Mock.when(mock, "greet", "x").thenReturn("hi");
+        int threads = 8;
+        int calls = 10_000;
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                for (int i = 0; i < calls; i++) {
+                    assertEquals("hi", mock.greet("x"));
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        assertEquals(threads * calls, MockState.of(mock).countInvocations("greet", new Object[]{"x"}),
+                "并发调用计数不应丢失");
+        Mock.verify(mock).times(threads * calls).greet("x");
+    }
+}
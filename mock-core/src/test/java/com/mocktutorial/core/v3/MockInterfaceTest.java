@@ -2,10 +2,16 @@ package com.mocktutorial.core.v3;
 
 import org.junit.jupiter.api.Test;
 import static org.junit.jupiter.api.Assertions.*;
+import org.springframework.aop.framework.AopProxyUtils;
+import org.springframework.aop.framework.ProxyFactory;
+import org.springframework.aop.support.AopUtils;
+import org.springframework.beans.factory.config.BeanPostProcessor;
 import org.springframework.context.annotation.AnnotationConfigApplicationContext;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * V3接口mock主链路测试：验证when/thenReturn/thenThrow生效。
  */
@@ -94,4 +100,180 @@ public class MockInterfaceTest {
         assertEquals("hi, spring", bean.call("spring"));
         ctx.close();
     }
-} 
\ No newline at end of file
+
+    @Test
+    void testMockFieldMetadataCache() {
+        SpringMockPostProcessor processor = new SpringMockPostProcessor();
+        assertEquals(0, SpringMockPostProcessor.mockFieldCount(SampleClass.class), "无@MockField的类应缓存为空");
+        SampleClass plain = new SampleClass();
+        assertSame(plain, processor.postProcessBeforeInitialization(plain, "plain"));
+
+        assertEquals(1, SpringMockPostProcessor.mockFieldCount(SpringBean.class), "应只识别@MockField字段");
+        SpringBean bean = new SpringBean();
+        processor.postProcessBeforeInitialization(bean, "springBean");
+        SampleService first = bean.sampleService;
+        assertNotNull(first, "应注入mock对象");
+        processor.postProcessAfterInitialization(bean, "springBean");
+        assertSame(first, bean.sampleService, "字段仍是mock时初始化后不应新建mock");
+        bean.sampleService = new SampleService() { // 模拟初始化回调替换了依赖
+            public String hello(String name) { return "real"; }
+            public int add(int a, int b) { return a + b; }
+            public void fail() { }
+        };
+        processor.postProcessAfterInitialization(bean, "springBean");
+        assertNotEquals("real", bean.sampleService.hello("x"), "初始化后被替换的依赖应重新覆盖为mock");
+
+        ProxyFactory proxyFactory = new ProxyFactory(new SpringBean());
+        proxyFactory.setProxyTargetClass(true);
+        SpringBean proxy = (SpringBean) proxyFactory.getProxy();
+        processor.postProcessAfterInitialization(proxy, "springBean");
+        assertNull(proxy.sampleService, "不应为AOP代理子类上未使用的字段新建mock");
+    }
+
+    private static final AtomicInteger realServices = new AtomicInteger();
+
+    @Configuration
+    static class RegistryConfig {
+        @Bean
+        public static SpringMockRegistryPostProcessor springMockRegistryPostProcessor() {
+            return new SpringMockRegistryPostProcessor();
+        }
+        @Bean
+        public SampleService sampleService() {
+            realServices.incrementAndGet();
+            throw new IllegalStateException("真实Bean不应被创建");
+        }
+        @Bean
+        public SpringBean springBean() {
+            return new SpringBean();
+        }
+    }
+
+    @Test
+    void testSpringMockBeanDefinitionReplacement() {
+        realServices.set(0);
+        AnnotationConfigApplicationContext ctx = new AnnotationConfigApplicationContext(RegistryConfig.class);
+        SpringBean bean = ctx.getBean(SpringBean.class);
+        assertEquals(0, realServices.get(), "被mock的真实Bean不应被创建");
+        assertNotNull(bean.sampleService, "应注入mock Bean");
+        assertSame(ctx.getBean("sampleService"), bean.sampleService, "每个类型只应创建一个mock");
+        Mock.when(bean.sampleService, "hello", "registry").thenReturn("hi, registry");
+        assertEquals("hi, registry", bean.call("registry"));
+        ctx.close();
+    }
+
+    @Test
+    void testCompileTimeMockFieldIndex() {
+        MockFieldIndex index = MockFieldIndex.forLoader(getClass().getClassLoader());
+        assertTrue(index.contains(SpringBean.class.getName()), "注解处理器应登记声明@MockField的类");
+        assertFalse(index.contains(SampleClass.class.getName()), "未声明@MockField的类不应登记");
+        assertTrue(MockFieldIndex.mayDeclareMockFields(SpringBean.class));
+        assertFalse(MockFieldIndex.mayDeclareMockFields(SampleClass.class), "索引覆盖的类应跳过反射扫描");
+        assertFalse(MockFieldIndex.mayDeclareMockFields(String.class), "JDK类不可能声明@MockField");
+
+        SpringBean bean = new SpringBean();
+        assertEquals(1, MockFieldInjectors.injectMocks(bean), "不依赖Spring也应注入@MockField字段");
+        assertNotNull(bean.sampleService);
+    }
+
+    @Test
+    void testResetTrackedMocksBetweenTests() {
+        AnnotationConfigApplicationContext ctx = new AnnotationConfigApplicationContext(SpringConfig.class);
+        SpringBean bean = ctx.getBean(SpringBean.class);
+        SampleService service = bean.sampleService;
+        Mock.when(service, "hello", "first").thenReturn("hi, first");
+        assertEquals("hi, first", bean.call("first"));
+
+        assertTrue(SpringMockTracker.resetMocks(ctx) > 0, "应重置容器创建的mock");
+        assertSame(service, bean.sampleService, "重置不应替换mock对象");
+        assertNull(MockFactory.findBehavior(service, "hello", new Object[]{"first"}), "重置后应清除行为配置");
+        assertEquals(0, MockFactory.countInvocations(service, "hello", new Object[]{"first"}), "重置后应清除调用记录");
+
+        SampleService unrelated = Mock.mock(SampleService.class);
+        Mock.when(unrelated, "hello", "other").thenReturn("kept");
+        SpringMockTracker.resetMocks(ctx);
+        assertNotNull(MockFactory.findBehavior(unrelated, "hello", new Object[]{"other"}), "容器外的mock不应被重置");
+        assertEquals(0, SpringMockTracker.resetMocks(new AnnotationConfigApplicationContext()), "无跟踪器的容器应返回0");
+        ctx.close();
+    }
+
+    @Test
+    void testLazyInjectedMocks() {
+        AnnotationConfigApplicationContext ctx = new AnnotationConfigApplicationContext(SpringConfig.class);
+        SpringMockTracker tracker = ctx.getBean(SpringMockTracker.BEAN_NAME, SpringMockTracker.class);
+        SpringBean bean = ctx.getBean(SpringBean.class);
+        assertNotNull(bean.sampleService, "应注入延迟句柄");
+        assertFalse(MockFactory.isMaterialized(bean.sampleService), "未使用的mock不应被创建");
+        assertEquals(tracker.size(), tracker.pendingCount(), "启动后所有注入的mock都应未实例化");
+        assertEquals(0, MockFactory.countInvocations(bean.sampleService, "hello", new Object[]{"lazy"}));
+
+        Mock.when(bean.sampleService, "hello", "lazy").thenReturn("hi, lazy");
+        assertTrue(MockFactory.isMaterialized(bean.sampleService), "注册行为时应创建mock");
+        assertEquals("hi, lazy", bean.call("lazy"));
+        Mock.verify(bean.sampleService).method("hello", "lazy").once();
+        assertEquals(1, tracker.size(), "每个@MockField字段只应创建并跟踪一个mock");
+        assertEquals(0, tracker.pendingCount(), "使用过的mock不应再计为未实例化");
+        assertTrue(tracker.report().contains("从未实例化"));
+        ctx.close();
+    }
+
+    @Configuration
+    static class ProxiedConfig {
+        @Bean
+        public static BeanPostProcessor proxyingPostProcessor() {
+            return new BeanPostProcessor() {
+                @Override
+                public Object postProcessAfterInitialization(Object bean, String beanName) {
+                    if (!(bean instanceof SpringBean)) {
+                        return bean;
+                    }
+                    ProxyFactory proxyFactory = new ProxyFactory(bean);
+                    proxyFactory.setProxyTargetClass(true);
+                    return proxyFactory.getProxy();
+                }
+            };
+        }
+        @Bean
+        public static SpringMockPostProcessor springMockPostProcessor() {
+            return new SpringMockPostProcessor();
+        }
+        @Bean
+        public SpringBean springBean() {
+            return new SpringBean();
+        }
+    }
+
+    @Test
+    void testOneMockPerFieldWhenBeanIsProxied() {
+        AnnotationConfigApplicationContext ctx = new AnnotationConfigApplicationContext(ProxiedConfig.class);
+        SpringMockTracker tracker = ctx.getBean(SpringMockTracker.BEAN_NAME, SpringMockTracker.class);
+        SpringBean bean = ctx.getBean(SpringBean.class);
+        assertTrue(AopUtils.isCglibProxy(bean), "Bean应被先前的后置处理器代理");
+        assertEquals(1, tracker.size(), "代理后的Bean不应再创建并跟踪第二个mock");
+        Mock.when(((SpringBean) AopProxyUtils.getSingletonTarget(bean)).sampleService, "hello", "proxy")
+            .thenReturn("hi, proxy");
+        assertEquals("hi, proxy", bean.call("proxy"));
+        ctx.close();
+    }
+
+    @Test
+    void testV2ApiOnLazyInjectedMock() {
+        AnnotationConfigApplicationContext ctx = new AnnotationConfigApplicationContext(SpringConfig.class);
+        SpringBean bean = ctx.getBean(SpringBean.class);
+        SampleService service = bean.sampleService;
+        com.mocktutorial.core.Mock.reset(service);
+        assertFalse(MockFactory.isMaterialized(service), "重置未使用的句柄不应创建mock");
+        com.mocktutorial.core.Mock.verify(service).never().hello("v2");
+        assertFalse(MockFactory.isMaterialized(service), "验证未使用的句柄不应创建mock");
+
+        com.mocktutorial.core.Mock.when(service, "hello", "v2").thenReturn("hi, v2");
+        assertTrue(MockFactory.isMaterialized(service), "V2注册行为时应创建mock");
+        assertEquals("hi, v2", bean.call("v2"));
+        com.mocktutorial.core.Mock.verify(service).once().hello("v2");
+
+        com.mocktutorial.core.Mock.reset(service);
+        assertNull(service.hello("v2"), "V2重置后应清除行为配置");
+        assertThrows(IllegalArgumentException.class, () -> com.mocktutorial.core.Mock.reset("not a mock"));
+        ctx.close();
+    }
+}
@@ -0,0 +1,94 @@
+package com.mocktutorial.processor;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.TypeElement;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * 编译期@MockField索引处理器。
+ *
+ * 记录每个声明了@MockField字段的类（二进制名），在编译输出中生成
+ * {@value #INDEX_LOCATION}，每行一个类名。运行时MockFieldIndex读取该索引，
+ * 对索引覆盖范围内未登记的类跳过反射扫描。
+ *
+ * 处理器只按名称识别注解，不依赖mock-core。增量编译时会合并已有索引，
+ * 已删除类的残留条目只会导致一次多余的反射扫描。
+ */
+@SupportedAnnotationTypes(MockFieldIndexProcessor.MOCK_FIELD)
+public class MockFieldIndexProcessor extends AbstractProcessor {
+    static final String MOCK_FIELD = "com.mocktutorial.core.v3.MockField";
+    public static final String INDEX_LOCATION = "META-INF/mocktutorial/mockfield.index";
+
+    private final Set<String> indexed = new TreeSet<>();
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        if (roundEnv.processingOver()) {
+            if (!indexed.isEmpty()) {
+                writeIndex();
+            }
+            return false;
+        }
+        for (TypeElement annotation : annotations) {
+            for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+                if (element.getKind() == ElementKind.FIELD) {
+                    TypeElement owner = (TypeElement) element.getEnclosingElement();
+                    indexed.add(processingEnv.getElementUtils().getBinaryName(owner).toString());
+                }
+            }
+        }
+        return false;
+    }
+
+    private void writeIndex() {
+        readExistingIndex();
+        try {
+            FileObject index = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", INDEX_LOCATION);
+            try (Writer writer = index.openWriter()) {
+                for (String className : indexed) {
+                    writer.write(className);
+                    writer.write('\n');
+                }
+            }
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "无法写入@MockField索引: " + e);
+        }
+    }
+
+    /**
+     * 增量编译只处理变更的源文件，需保留上次编译登记的类
+     */
+    private void readExistingIndex() {
+        try {
+            FileObject existing = processingEnv.getFiler().getResource(StandardLocation.CLASS_OUTPUT, "", INDEX_LOCATION);
+            try (Reader reader = existing.openReader(true); BufferedReader lines = new BufferedReader(reader)) {
+                String line;
+                while ((line = lines.readLine()) != null) {
+                    if (!line.isBlank()) {
+                        indexed.add(line.trim());
+                    }
+                }
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            // 首次编译时索引不存在
+        }
+    }
+}